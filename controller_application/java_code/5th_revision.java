@@ -3,13 +3,13 @@ package com.example.motorcontroller;
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.DialogInterface;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.IBinder;
 import android.widget.Button;
 import android.widget.SeekBar;
 import android.widget.TextView;
@@ -19,26 +19,21 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.UUID;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements ControllerState.Listener {
 
     private static final int REQUEST_BLUETOOTH_CONNECT = 1;
 
-    // Bluetooth objects
+    // Bluetooth adapter, only used to list paired devices; the connection lives in MotorControlService
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothSocket bluetoothSocket;
-    private OutputStream outputStream;
-    private InputStream inputStream;
-    // Standard SPP UUID for Bluetooth modules
-    private final UUID BT_MODULE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // Bound service, null while detached
+    private MotorControlService service;
+    // Reconnect to the last controller only on a fresh launch, not after rotation
+    private boolean autoConnectPending;
 
     // UI elements
     private Button btnConnect, btnDisconnect;
@@ -47,34 +42,34 @@ public class MainActivity extends AppCompatActivity {
     private SeekBar speedSeekBar;
     private TextView speedValueTextView, connectedDeviceTextView,
             rpmValueTextView, statusValueTextView, consistencyRpmTextView;
+    private RpmChartView rpmChartView;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((MotorControlService.LocalBinder) binder).getService();
+            service.getState().addListener(MainActivity.this);
+            rpmChartView.setBuffer(service.getChart());
+
+            ControllerState.Snapshot state = service.getState().getSnapshot();
+            if (autoConnectPending && !state.isConnected() && !state.isConnecting()) {
+                // Skip the paired-devices dialog if we know which controller to use
+                service.connectToLastDevice();
+            }
+            autoConnectPending = false;
+        }
 
-    // Configurable thresholds
-    private static final int DROP_THRESHOLD = 50;      // "sudden drop" threshold for compensation
-    private static final int CONSISTENCY_TOLERANCE = 30;      // ±30 is considered consistent
-    private static final int COMPENSATION_INCREMENT = 10;       // increase speed by this during compensation
-    private static final int CONSISTENT_READINGS_TARGET = 3;   // revert after these many consistent RPM readings
-
-    // Handling speed changes
-    private int currentSpeed = 0;
-    private int originalSpeed = 0;     // speed before first compensation
-    private boolean isCompensating = false;
-
-    // Track RPM
-    private Integer lastRpm = null;
-    private int consecutiveConsistentReadings = 0;
-
-    // For ignoring quick manual speed changes
-    private boolean isManualSpeedChange = false;
-    private static final long MANUAL_SPEED_CHANGE_WINDOW = 1500; // ms to ignore compensation attempts
-    private long lastManualChangeTimestamp = 0;
-
-    // Handlers for scheduling
-    private Handler handler = new Handler();
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        autoConnectPending = savedInstanceState == null;
         // Initialize UI elements
         btnConnect = findViewById(R.id.btnConnect);
         btnDisconnect = findViewById(R.id.btnDisconnect);
@@ -91,6 +86,7 @@ public class MainActivity extends AppCompatActivity {
         rpmValueTextView = findViewById(R.id.rpmValueTextView);
         statusValueTextView = findViewById(R.id.statusValueTextView);
         consistencyRpmTextView = findViewById(R.id.optimalRpmValueTextView);
+        rpmChartView = findViewById(R.id.rpmChartView);
 
         // Assign initial text
         connectedDeviceTextView.setText("Not Connected");
@@ -103,6 +99,7 @@ public class MainActivity extends AppCompatActivity {
         if (bluetoothAdapter == null) {
             Toast.makeText(this, "Bluetooth not supported on this device", Toast.LENGTH_SHORT).show();
             finish();
+            return;
         }
         if (!bluetoothAdapter.isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -122,31 +119,23 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // Set up connect / disconnect
-        btnConnect.setOnClickListener(view -> showPairedDevicesList());
-        btnDisconnect.setOnClickListener(view -> disconnectDevice());
+        btnConnect.setOnClickListener(view -> findControllers());
+        btnDisconnect.setOnClickListener(view -> {
+            if (service != null) {
+                service.disconnectDevice();
+            }
+        });
 
         // SeekBar to set speed
         speedSeekBar.setMax(100);
         speedSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                currentSpeed = progress;
                 speedValueTextView.setText("Speed: " + progress);
 
-                // If user is changing speed manually, ignore compensation
-                if (fromUser) {
-                    isManualSpeedChange = true;
-                    lastManualChangeTimestamp = System.currentTimeMillis();
-                }
-
-                // If user changes speed while in compensation, revert it
-                if (fromUser && isCompensating) {
-                    revertToOriginalSpeed();
-                }
-
-                // Send speed command to device
-                if (outputStream != null) {
-                    sendCommand("SPEED" + progress + "\n");
+                // Programmatic changes only mirror the service state; the user drives speed
+                if (fromUser && service != null && service.getState().getSnapshot().isConnected()) {
+                    service.setSpeedFromUser(progress);
                 }
             }
 
@@ -172,6 +161,130 @@ public class MainActivity extends AppCompatActivity {
         btnMotor2Stop.setOnClickListener(view -> sendCommand("DIR2S\n"));
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Attach to the Bluetooth session; it keeps running across rotation
+        bindService(new Intent(this, MotorControlService.class), serviceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Detach only; the service disconnects when the user asks it to
+        if (service != null) {
+            service.getState().removeListener(this);
+            service = null;
+        }
+        rpmChartView.setBuffer(null);
+        unbindService(serviceConnection);
+    }
+
+    /**
+     * Render the service state.
+     */
+    @Override
+    public void onStateChanged(ControllerState.Snapshot state) {
+        if (state.isConnected()) {
+            String text = "Connected to: " + state.getConnectedDeviceName();
+            if (state.getTimeToFirstCommandMs() >= 0) {
+                text += " (ready in " + state.getTimeToFirstCommandMs() + " ms)";
+            }
+            connectedDeviceTextView.setText(text);
+        } else if (state.isConnecting()) {
+            connectedDeviceTextView.setText("Connecting...");
+        } else {
+            connectedDeviceTextView.setText("Not Connected");
+        }
+        rpmValueTextView.setText("RPM: " + state.getRpm());
+        String status = "Status: " + state.getStatus();
+        if (state.getFault() != null) {
+            status = "Status: Stopped (" + state.getFault() + ")";
+        } else if (state.hasTorque()) {
+            status += String.format(" (load %.2f N·m)", state.getLoadNm());
+        }
+        if (state.isHunting()) {
+            status += String.format(" (hunting at %.2f Hz, gain %.0f%%)",
+                    state.getHuntingHz(), state.getCompensationGain() * 100);
+        } else if (state.getCompensationGain() < 1.0) {
+            status += String.format(" (gain %.0f%%)", state.getCompensationGain() * 100);
+        }
+        statusValueTextView.setText(status);
+        StringBuilder consistency = new StringBuilder("Consistency: " + state.getConsistency());
+        List<CompensationHost.Stats> strategies = state.getStrategies();
+        if (strategies.size() > 1) {
+            // Shadow mode: one line per strategy, active first
+            for (CompensationHost.Stats stats : strategies) {
+                consistency.append('\n').append(stats);
+            }
+        }
+        if (state.getTrip().getRpmSamples() > 0) {
+            consistency.append('\n').append(state.getTrip());
+        }
+        if (state.isConnected() && state.getDevice().getConfirmedCount() > 0) {
+            consistency.append('\n').append(state.getDevice());
+        }
+        consistencyRpmTextView.setText(consistency);
+        if (speedSeekBar.getProgress() != state.getSpeed()) {
+            speedSeekBar.setProgress(state.getSpeed());
+        }
+    }
+
+    /**
+     * Probe paired devices for controllers. Connects straight away if exactly one answers,
+     * offers a ranked list if several do, and falls back to the plain paired-devices list.
+     */
+    private void findControllers() {
+        if (!hasBluetoothPermission()) {
+            Toast.makeText(this, "Bluetooth permission not granted", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (service == null || !service.discoverControllers(this::onControllersFound)) {
+            showPairedDevicesList();
+            return;
+        }
+        connectedDeviceTextView.setText("Searching for controllers...");
+    }
+
+    private void onControllersFound(List<ControllerDiscovery.Result> results) {
+        final ArrayList<ControllerDiscovery.Result> live = new ArrayList<>();
+        for (ControllerDiscovery.Result result : results) {
+            if (result.isLive()) {
+                live.add(result);
+            }
+        }
+        if (service == null) {
+            return;
+        }
+        onStateChanged(service.getState().getSnapshot());
+        if (live.isEmpty()) {
+            Toast.makeText(this, "No controller answered", Toast.LENGTH_SHORT).show();
+            showPairedDevicesList();
+            return;
+        }
+        if (live.size() == 1) {
+            service.connectToDiscovered(live.get(0));
+            return;
+        }
+        // Fastest first; the last entry opens the full paired list
+        ArrayList<String> labels = new ArrayList<>();
+        for (ControllerDiscovery.Result result : live) {
+            labels.add(result.getCandidate().getName() + "\n" + result.getLatencyMs() + " ms"
+                    + (result.getKind() == ControllerDiscovery.Kind.LEGACY ? " (old firmware)" : ""));
+        }
+        labels.add("Other paired devices...");
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Select Controller");
+        builder.setItems(labels.toArray(new CharSequence[0]), (dialog, which) -> {
+            if (which == live.size()) {
+                showPairedDevicesList();
+            } else if (service != null) {
+                service.connectToDiscovered(live.get(which));
+            }
+        });
+        builder.show();
+    }
+
     /**
      * Shows paired devices in a dialog and connects when selected.
      */
@@ -195,7 +308,9 @@ public class MainActivity extends AppCompatActivity {
             builder.setTitle("Select Bluetooth Device");
             builder.setItems(deviceNames.toArray(new CharSequence[0]), (dialog, which) -> {
                 BluetoothDevice selectedDevice = devicesList.get(which);
-                connectToDevice(selectedDevice);
+                if (service != null) {
+                    service.connectToDevice(selectedDevice);
+                }
             });
             builder.show();
         } else {
@@ -204,219 +319,16 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Connect to the chosen device.
-     */
-    private void connectToDevice(BluetoothDevice device) {
-        new Thread(() -> {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                if (checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT)
-                        != PackageManager.PERMISSION_GRANTED) {
-                    runOnUiThread(() ->
-                            Toast.makeText(MainActivity.this,
-                                    "Bluetooth permission not granted",
-                                    Toast.LENGTH_SHORT).show()
-                    );
-                    return;
-                }
-            }
-            try {
-                bluetoothSocket = device.createRfcommSocketToServiceRecord(BT_MODULE_UUID);
-                bluetoothSocket.connect();
-                outputStream = bluetoothSocket.getOutputStream();
-                inputStream = bluetoothSocket.getInputStream();
-
-                runOnUiThread(() -> {
-                    Toast.makeText(MainActivity.this,
-                            "Connected to " + device.getName(),
-                            Toast.LENGTH_SHORT
-                    ).show();
-                    connectedDeviceTextView.setText("Connected to: " + device.getName());
-                    speedSeekBar.setProgress(0);
-                    speedValueTextView.setText("Speed: 0");
-                    sendCommand("SPEED0\n");
-                    consistencyRpmTextView.setText("Consistency: Unknown");
-                    lastRpm = null;
-                });
-
-                // Start listening for data
-                startListeningForData();
-
-            } catch (IOException e) {
-                e.printStackTrace();
-                runOnUiThread(() ->
-                        Toast.makeText(MainActivity.this,
-                                "Connection failed: " + e.getMessage(),
-                                Toast.LENGTH_SHORT).show()
-                );
-            } catch (SecurityException e) {
-                e.printStackTrace();
-                runOnUiThread(() ->
-                        Toast.makeText(MainActivity.this,
-                                "Security exception: " + e.getMessage(),
-                                Toast.LENGTH_SHORT).show()
-                );
-            }
-        }).start();
-    }
-
-    /**
-     * Disconnect from the current device.
-     */
-    private void disconnectDevice() {
-        new Thread(() -> {
-            if (bluetoothSocket != null) {
-                try {
-                    bluetoothSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-            bluetoothSocket = null;
-            outputStream = null;
-            inputStream = null;
-
-            runOnUiThread(() -> {
-                Toast.makeText(MainActivity.this,
-                        "Disconnected", Toast.LENGTH_SHORT).show();
-                connectedDeviceTextView.setText("Not Connected");
-                rpmValueTextView.setText("RPM: 0");
-                statusValueTextView.setText("Status: N/A");
-                consistencyRpmTextView.setText("Consistency: Unknown");
-                lastRpm = null;
-                revertToOriginalSpeed();
-            });
-        }).start();
-    }
-
-    /**
-     * Send a command string over Bluetooth if connected.
+     * Send a command string through the service.
      */
     private void sendCommand(String command) {
-        if (outputStream != null) {
-            try {
-                outputStream.write(command.getBytes());
-            } catch (IOException e) {
-                e.printStackTrace();
-                Toast.makeText(this, "Failed to send command", Toast.LENGTH_SHORT).show();
-            }
+        if (service != null) {
+            service.sendCommand(command);
         } else {
             Toast.makeText(this, "Not connected to any device", Toast.LENGTH_SHORT).show();
         }
     }
 
-    /**
-     * Start listening for lines of data, e.g. "RPM<number>".
-     */
-    private void startListeningForData() {
-        new Thread(() -> {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("RPM")) {
-                        String rpmStr = line.substring(3).trim();
-                        try {
-                            int measuredRpm = Integer.parseInt(rpmStr);
-                            runOnUiThread(() -> handleRpmReading(measuredRpm));
-                        } catch (NumberFormatException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }).start();
-    }
-
-    /**
-     * Decide how to handle new RPM readings, including compensation for sudden drops.
-     */
-    private void handleRpmReading(int measuredRpm) {
-        // Update the UI
-        rpmValueTextView.setText("RPM: " + measuredRpm);
-
-        // If the user just changed speed, ignore compensation briefly
-        if (isManualSpeedChange && (System.currentTimeMillis() - lastManualChangeTimestamp < MANUAL_SPEED_CHANGE_WINDOW)) {
-            // Reset consistency counters in this window, but do not compensate
-            consistencyRpmTextView.setText("Consistency: Ignoring (Recent Manual Change)");
-            consecutiveConsistentReadings = 0;
-        } else {
-            // Past the quick-change window
-            isManualSpeedChange = false; // no longer ignoring
-
-            String consistencyStatus;
-            if (lastRpm == null) {
-                consistencyStatus = "No Previous Reading";
-                consecutiveConsistentReadings = 0;
-            } else {
-                int diff = Math.abs(measuredRpm - lastRpm);
-                if (diff <= CONSISTENCY_TOLERANCE) {
-                    consistencyStatus = "Consistent (±" + CONSISTENCY_TOLERANCE + ")";
-                    consecutiveConsistentReadings++;
-                } else {
-                    consistencyStatus = "Not Consistent (±" + CONSISTENCY_TOLERANCE + ")";
-                    consecutiveConsistentReadings = 0;
-
-                    // If there's a sudden drop, apply compensation
-                    if ((measuredRpm < lastRpm) && (lastRpm - measuredRpm >= DROP_THRESHOLD)) {
-                        applySpeedCompensation();
-                    }
-                }
-            }
-            consistencyRpmTextView.setText("Consistency: " + consistencyStatus);
-
-            // If in compensation mode, check if we have enough consecutive consistent readings
-            if (isCompensating && consecutiveConsistentReadings >= CONSISTENT_READINGS_TARGET) {
-                revertToOriginalSpeed();
-            }
-        }
-
-        // Update status
-        String status = (currentSpeed == 0)
-                ? (measuredRpm == 0 ? "Idle" : "Running")
-                : "Running";
-        statusValueTextView.setText("Status: " + status);
-
-        // Store last reading
-        lastRpm = measuredRpm;
-    }
-
-    /**
-     * Increase speed by COMPENSATION_INCREMENT, or further if already compensating.
-     */
-    private void applySpeedCompensation() {
-        if (!isCompensating) {
-            // First time we compensate: remember the speed
-            originalSpeed = currentSpeed;
-            isCompensating = true;
-        }
-        int newSpeed = Math.min(currentSpeed + COMPENSATION_INCREMENT, 100);
-        currentSpeed = newSpeed;
-        speedSeekBar.setProgress(newSpeed);
-        sendCommand("SPEED" + newSpeed + "\n");
-    }
-
-    /**
-     * Restore speed to original and reset compensation flags.
-     */
-    private void revertToOriginalSpeed() {
-        if (isCompensating) {
-            isCompensating = false;
-            consecutiveConsistentReadings = 0;
-            speedSeekBar.setProgress(originalSpeed);
-            currentSpeed = originalSpeed;
-            sendCommand("SPEED" + originalSpeed + "\n");
-        }
-    }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        disconnectDevice();
-        handler.removeCallbacksAndMessages(null);
-    }
-
     /**
      * Return whether we have the required Bluetooth permission for connecting to devices.
      */
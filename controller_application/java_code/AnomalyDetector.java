@@ -0,0 +1,228 @@
+package com.example.motorcontroller;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Watches the stream of RPM reports, speed commands and corrected current for patterns that
+ * need the motor stopped rather than compensated:
+ *
+ *   STALL       - commanded at least STALL_MIN_SPEED for a whole report window, yet RPM
+ *                 below STALL_RPM, in every report for STALL_MS
+ *   RUNAWAY     - RPM well above what the highest speed in the window can produce, in
+ *                 every report for RUNAWAY_MS
+ *   OVERCURRENT - back-EMF corrected current above OVERCURRENT_A, in every report for
+ *                 OVERCURRENT_MS; this is what a locked rotor looks like while
+ *                 compensation keeps raising the speed
+ *
+ * The durations are what used to be 3, 2 and 2 reports at one a second. They are summed from
+ * the time each report covers, so a faster report rate (see {@link ReportRate}) catches an
+ * anomaly within a fraction of a second of the duration instead of within a whole report,
+ * without tripping on a shorter glitch. Once tripped the detector stays quiet until
+ * {@link #rearm()}, so one fault gives one event. While motor 1 is set to 'S' it reads 0 RPM
+ * whatever the speed, so STALL and RUNAWAY are suspended, and count again from the first
+ * report window it spends wholly moving.
+ *
+ * The last CONTEXT_SAMPLES reports are kept in a ring buffer and copied into each event, so
+ * the log shows what led up to it. Used only on the control thread.
+ */
+public class AnomalyDetector {
+
+    public enum Kind {
+        STALL, RUNAWAY, OVERCURRENT
+    }
+
+    static final int STALL_MIN_SPEED = 20;
+    static final int STALL_RPM = 10;
+    static final long STALL_MS = 3000;
+    static final double RPM_PER_PERCENT = 4.0;   // bench calibration, ~400 RPM at SPEED100
+    static final double RUNAWAY_FACTOR = 1.3;
+    static final int RUNAWAY_MARGIN_RPM = 40;
+    static final long RUNAWAY_MS = 2000;
+    static final double OVERCURRENT_A = 4.0;
+    static final long OVERCURRENT_MS = 2000;
+    // A report arriving a little early still completes the duration
+    static final long SLACK_MS = ReadingWindow.NOMINAL_INTERVAL_MS / 4;
+    static final int CONTEXT_SAMPLES = 16;
+
+    /**
+     * One detected anomaly with the reports that led up to it, oldest first.
+     */
+    public static final class Event {
+        private final Kind kind;
+        private final long nanos;
+        private final String detail;
+        private final long[] contextNanos;
+        private final int[] contextRpm;
+        private final int[] contextSpeed;
+        private final double[] contextCurrent;
+
+        Event(Kind kind, long nanos, String detail, long[] contextNanos, int[] contextRpm,
+              int[] contextSpeed, double[] contextCurrent) {
+            this.kind = kind;
+            this.nanos = nanos;
+            this.detail = detail;
+            this.contextNanos = contextNanos;
+            this.contextRpm = contextRpm;
+            this.contextSpeed = contextSpeed;
+            this.contextCurrent = contextCurrent;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        /**
+         * Write the event as CSV, context times relative to the event.
+         */
+        public void writeCsv(Writer out) throws IOException {
+            out.write("# anomaly," + kind + "\n");
+            out.write("# detail," + detail + "\n");
+            out.write("t_ms,rpm,speed,current_a\n");
+            for (int i = 0; i < contextNanos.length; i++) {
+                out.write((contextNanos[i] - nanos) / 1_000_000L + "," + contextRpm[i] + ","
+                        + contextSpeed[i] + ","
+                        + (Double.isNaN(contextCurrent[i]) ? "" : String.format("%.2f", contextCurrent[i]))
+                        + "\n");
+            }
+            out.flush();
+        }
+    }
+
+    private final long[] ringNanos = new long[CONTEXT_SAMPLES];
+    private final int[] ringRpm = new int[CONTEXT_SAMPLES];
+    private final int[] ringSpeed = new int[CONTEXT_SAMPLES];
+    private final double[] ringCurrent = new double[CONTEXT_SAMPLES];
+    private int ringCount = 0;
+
+    // Speeds commanded since the last report, including the one in force at its start
+    private int speed = 0;
+    private int windowMinSpeed = 0;
+    private int windowMaxSpeed = 0;
+    // Motor 1 set to 'S', now and at any time since the last report
+    private boolean stopped = false;
+    private boolean windowStopped = false;
+
+    // Time covered by the reports in a row showing each anomaly
+    private long stallMs = 0;
+    private long runawayMs = 0;
+    private long overcurrentMs = 0;
+    private long lastReportNanos = 0;
+    private boolean tripped = false;
+
+    /**
+     * A speed command went out.
+     */
+    public void onSpeedCommand(int speed) {
+        this.speed = speed;
+        windowMinSpeed = Math.min(windowMinSpeed, speed);
+        windowMaxSpeed = Math.max(windowMaxSpeed, speed);
+    }
+
+    /**
+     * Motor 1's direction was sent; stopped is true for 'S'.
+     */
+    public void onDirection(boolean stopped) {
+        this.stopped = stopped;
+        if (stopped) {
+            windowStopped = true;
+            stallMs = 0;
+            runawayMs = 0;
+        }
+    }
+
+    /**
+     * An RPM report arrived. correctedCurrent is NaN if no estimate is available.
+     *
+     * @return the anomaly this report completed, or null
+     */
+    public Event onRpmReport(int rpm, double correctedCurrent, long nowNanos) {
+        int slot = ringCount % CONTEXT_SAMPLES;
+        ringNanos[slot] = nowNanos;
+        ringRpm[slot] = rpm;
+        ringSpeed[slot] = speed;
+        ringCurrent[slot] = correctedCurrent;
+        long coveredMs = ringCount > 0
+                ? Math.min((nowNanos - lastReportNanos) / 1_000_000L, ReportRate.MAX_INTERVAL_MS)
+                : ReadingWindow.NOMINAL_INTERVAL_MS;
+        lastReportNanos = nowNanos;
+        ringCount++;
+
+        int minSpeed = windowMinSpeed;
+        int maxSpeed = windowMaxSpeed;
+        windowMinSpeed = speed;
+        windowMaxSpeed = speed;
+        boolean moving = !windowStopped;
+        windowStopped = stopped;
+        if (tripped) {
+            return null;
+        }
+
+        stallMs = (moving && minSpeed >= STALL_MIN_SPEED && rpm < STALL_RPM) ? stallMs + coveredMs : 0;
+        runawayMs = (moving && rpm > RPM_PER_PERCENT * maxSpeed * RUNAWAY_FACTOR + RUNAWAY_MARGIN_RPM)
+                ? runawayMs + coveredMs : 0;
+        overcurrentMs = (!Double.isNaN(correctedCurrent) && correctedCurrent > OVERCURRENT_A)
+                ? overcurrentMs + coveredMs : 0;
+
+        // A stalled rotor also draws overcurrent; report the more specific cause
+        if (stallMs >= STALL_MS - SLACK_MS) {
+            return trip(Kind.STALL, nowNanos, "RPM " + rpm + " at SPEED" + minSpeed + " for "
+                    + stallMs + " ms");
+        }
+        if (overcurrentMs >= OVERCURRENT_MS - SLACK_MS) {
+            return trip(Kind.OVERCURRENT, nowNanos, String.format("%.2f A at SPEED%d, RPM %d",
+                    correctedCurrent, speed, rpm));
+        }
+        if (runawayMs >= RUNAWAY_MS - SLACK_MS) {
+            return trip(Kind.RUNAWAY, nowNanos, "RPM " + rpm + " with at most SPEED" + maxSpeed);
+        }
+        return null;
+    }
+
+    /**
+     * Start watching again, e.g. after the user picked a new speed.
+     */
+    public void rearm() {
+        tripped = false;
+        stallMs = 0;
+        runawayMs = 0;
+        overcurrentMs = 0;
+    }
+
+    public boolean isTripped() {
+        return tripped;
+    }
+
+    /**
+     * Forget everything, for a new connection.
+     */
+    public void reset() {
+        rearm();
+        ringCount = 0;
+        speed = 0;
+        windowMinSpeed = 0;
+        windowMaxSpeed = 0;
+        windowStopped = stopped;
+    }
+
+    private Event trip(Kind kind, long nowNanos, String detail) {
+        tripped = true;
+        int n = Math.min(ringCount, CONTEXT_SAMPLES);
+        long[] nanos = new long[n];
+        int[] rpm = new int[n];
+        int[] speeds = new int[n];
+        double[] current = new double[n];
+        for (int i = 0; i < n; i++) {
+            int slot = (ringCount - n + i) % CONTEXT_SAMPLES;
+            nanos[i] = ringNanos[slot];
+            rpm[i] = ringRpm[slot];
+            speeds[i] = ringSpeed[slot];
+            current[i] = ringCurrent[slot];
+        }
+        return new Event(kind, nowNanos, detail, nanos, rpm, speeds, current);
+    }
+}
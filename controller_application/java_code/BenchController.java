@@ -0,0 +1,554 @@
+package com.example.motorcontroller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless controller for bench rigs. Runs the same {@link ControlLoop}, protocol and
+ * compensation strategies as the app, over TCP to a serial-to-TCP bridge or to
+ * {@link FirmwareSimulator}, reconnecting when the link drops. It can play drive profiles,
+ * repeatedly for soak tests, and streams metrics to stdout as CSV while it runs:
+ *
+ *   java com.example.motorcontroller.BenchController --port 7777 --dir F --speed 50 \
+ *       --profile cycle.txt --repeat 100 --out results/ > metrics.csv
+ *
+ * Log messages go to stderr. The exit status is 1 if a drive cycle was aborted, the motor
+ * was stopped for an anomaly, or the controller could not be reached.
+ *
+ * The main thread plays the part of the app's UI thread: it is the only caller of the
+ * ControlLoop methods. Events from the control thread only set flags for it.
+ */
+public class BenchController implements ControlLoop.Events {
+
+    static final long POLL_MS = 50;
+    static final long DEFAULT_METRICS_MS = 1000;
+
+    // Motor 1 keeps turning throughout, so the simulated sensor sees no stall
+    private static final DriveMacro[] MACRO_CYCLE = {
+            DriveMacro.SPIN_RIGHT, DriveMacro.STRAIGHT, DriveMacro.PIVOT_RIGHT, DriveMacro.STRAIGHT};
+    private static final long MACRO_INTERVAL_MS = 400;
+    // After connecting, for the speed to settle and the reports to steady
+    private static final long LOAD_STEP_DELAY_MS = 5000;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: BenchController [options]",
+            "  --host HOST          controller or bridge address (localhost)",
+            "  --port PORT          TCP port (" + FirmwareSimulator.DEFAULT_PORT + ")",
+            "  --dir F|R            direction for both motors after connecting",
+            "  --speed N            speed after connecting (0-100)",
+            "  --dir-mode M         set both motors with separate DIR1/DIR2 commands or one compound",
+            "                       DRIVE frame: separate|compound (separate)",
+            "  --macros N           run N spin/straight/pivot manoeuvres, measuring inter-motor skew",
+            "  --strategy NAME      compensation strategy, one of " + CompensationHost.STRATEGIES,
+            "  --shadow A,B         strategies to run in shadow mode",
+            "  --schedule FILE      compensation gain schedule",
+            "  --rpm-hz N           rebuild RPM from pulse periods at N Hz (50-200), 0 = off (0)",
+            "  --stream N           sample stream, N samples per frame (1 = text lines), 0 = off (0)",
+            "  --report-ms N        RPM report interval (100-5000), 0 = chosen by the app (0)",
+            "  --load-step RPM      simulator load step " + LOAD_STEP_DELAY_MS / 1000 + " s after connecting,",
+            "                       timing how long compensation and anomaly detection take",
+            "  --load-motor 1|2     motor the load step applies to; on motor 2 it times traction",
+            "                       control instead (1)",
+            "  --serve PORT         serve live telemetry to dashboards (TCP lines or WebSocket)",
+            "  --profile FILE       drive profile to run",
+            "  --repeat N           times to run the profile, 0 = until stopped (1)",
+            "  --duration S         stop after S seconds, 0 = when the profiles are done (0)",
+            "  --metrics-ms N       metrics interval (" + DEFAULT_METRICS_MS + ")",
+            "  --out DIR            where drive-cycle and anomaly reports go (.)");
+
+    // Options
+    private String host = "localhost";
+    private int port = FirmwareSimulator.DEFAULT_PORT;
+    private char direction = 0;
+    private int speed = -1;
+    private boolean compound = false;
+    private int macros = 0;
+    private String strategy = null;
+    private List<String> shadows = null;
+    private String schedulePath = null;
+    private int rpmHz = 0;
+    private int streamBatch = 0;
+    private int reportMs = 0;
+    private int loadStepRpm = -1;
+    private int loadMotor = 1;
+    private int servePort = -1;
+    private String profilePath = null;
+    private int repeat = 1;
+    private long durationMs = 0;
+    private long metricsMs = DEFAULT_METRICS_MS;
+    private File outDir = new File(".");
+
+    // Set on the control thread, acted on by the main thread
+    private volatile boolean connected = false;
+    private volatile boolean linkLost = false;
+    private volatile boolean connectFailed = false;
+    private volatile boolean anomalySeen = false;
+    // System.nanoTime() of the load step and of its detection, 0 until then
+    private volatile long loadStepNanos = 0;
+    private volatile long compensatedNanos = 0;
+    private volatile long trimmedNanos = 0;
+    private volatile long anomalyNanos = 0;
+    // Set by the shutdown hook on Ctrl-C
+    private volatile boolean stopRequested = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ConcurrentLinkedQueue<DriveCycleRecord> finishedRuns = new ConcurrentLinkedQueue<>();
+
+    private final ControllerState state = new ControllerState(Runnable::run);
+    private final PrintStream log = System.err;
+
+    public static void main(String[] args) throws Exception {
+        BenchController bench = new BenchController();
+        try {
+            bench.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(bench.run());
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if ("--help".equals(option)) {
+                throw new IllegalArgumentException("");
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--host":
+                        host = value;
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--dir":
+                        if (!value.equals("F") && !value.equals("R")) {
+                            throw new IllegalArgumentException("--dir must be F or R");
+                        }
+                        direction = value.charAt(0);
+                        break;
+                    case "--speed":
+                        speed = Integer.parseInt(value);
+                        if (speed < 0 || speed > 100) {
+                            throw new IllegalArgumentException("--speed must be 0-100");
+                        }
+                        break;
+                    case "--dir-mode":
+                        if (!value.equals("separate") && !value.equals("compound")) {
+                            throw new IllegalArgumentException("--dir-mode must be separate or compound");
+                        }
+                        compound = value.equals("compound");
+                        break;
+                    case "--macros":
+                        macros = Integer.parseInt(value);
+                        break;
+                    case "--strategy":
+                        if (!CompensationHost.STRATEGIES.contains(value)) {
+                            throw new IllegalArgumentException("Unknown strategy " + value);
+                        }
+                        strategy = value;
+                        break;
+                    case "--shadow":
+                        shadows = Arrays.asList(value.split(","));
+                        break;
+                    case "--schedule":
+                        schedulePath = value;
+                        break;
+                    case "--rpm-hz":
+                        rpmHz = Integer.parseInt(value);
+                        if (rpmHz != 0 && (rpmHz < PulseRpmReconstructor.MIN_OUTPUT_HZ
+                                || rpmHz > PulseRpmReconstructor.MAX_OUTPUT_HZ)) {
+                            throw new IllegalArgumentException("--rpm-hz must be 0 or "
+                                    + PulseRpmReconstructor.MIN_OUTPUT_HZ + "-"
+                                    + PulseRpmReconstructor.MAX_OUTPUT_HZ);
+                        }
+                        break;
+                    case "--stream":
+                        streamBatch = Integer.parseInt(value);
+                        if (streamBatch < 0 || streamBatch > FrameDecoder.MAX_SAMPLES) {
+                            throw new IllegalArgumentException("--stream must be 0-" + FrameDecoder.MAX_SAMPLES);
+                        }
+                        break;
+                    case "--report-ms":
+                        reportMs = Integer.parseInt(value);
+                        if (reportMs != 0 && (reportMs < ReportRate.MIN_INTERVAL_MS
+                                || reportMs > ReportRate.MAX_INTERVAL_MS)) {
+                            throw new IllegalArgumentException("--report-ms must be 0 or "
+                                    + ReportRate.MIN_INTERVAL_MS + "-" + ReportRate.MAX_INTERVAL_MS);
+                        }
+                        break;
+                    case "--load-step":
+                        loadStepRpm = Integer.parseInt(value);
+                        break;
+                    case "--load-motor":
+                        loadMotor = Integer.parseInt(value);
+                        if (loadMotor != 1 && loadMotor != 2) {
+                            throw new IllegalArgumentException("--load-motor must be 1 or 2");
+                        }
+                        break;
+                    case "--serve":
+                        servePort = Integer.parseInt(value);
+                        break;
+                    case "--profile":
+                        profilePath = value;
+                        break;
+                    case "--repeat":
+                        repeat = Integer.parseInt(value);
+                        break;
+                    case "--duration":
+                        durationMs = Long.parseLong(value) * 1000;
+                        break;
+                    case "--metrics-ms":
+                        metricsMs = Math.max(POLL_MS, Long.parseLong(value));
+                        break;
+                    case "--out":
+                        outDir = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad number for " + option + ": " + value);
+            }
+        }
+    }
+
+    private int run() throws InterruptedException {
+        DriveProfile profile = null;
+        if (profilePath != null) {
+            try (Reader reader = new FileReader(profilePath)) {
+                profile = DriveProfile.parse(new File(profilePath).getName(), reader);
+            } catch (IOException e) {
+                log.println("Bad drive profile: " + e.getMessage());
+                return 1;
+            }
+        }
+        GainSchedule schedule = GainSchedule.DEFAULT;
+        if (schedulePath != null) {
+            try (Reader reader = new FileReader(schedulePath)) {
+                schedule = GainSchedule.parse(new File(schedulePath).getName(), reader);
+            } catch (IOException e) {
+                log.println("Bad gain schedule: " + e.getMessage());
+                return 1;
+            }
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            log.println("Could not create " + outDir);
+            return 1;
+        }
+
+        ControlLoop loop = new ControlLoop(state, this);
+        loop.setGainSchedule(schedule);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Ctrl-C: let the main thread disconnect cleanly; it is the loop's only producer
+            stopRequested = true;
+            try {
+                stopped.await(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        if (strategy != null) {
+            loop.setCompensationStrategy(strategy);
+        }
+        if (shadows != null) {
+            loop.setShadowStrategies(shadows);
+        }
+        if (rpmHz > 0) {
+            loop.setHighResolutionRpm(rpmHz);
+        }
+        if (streamBatch > 0) {
+            loop.setTelemetryStream(streamBatch);
+        }
+        if (reportMs > 0) {
+            loop.setReportInterval(reportMs);
+        }
+        if (loadStepRpm >= 0) {
+            // Published on the control thread as soon as compensation starts
+            state.addListener(snapshot -> {
+                if (loadStepNanos != 0 && compensatedNanos == 0 && snapshot.isCompensating()) {
+                    compensatedNanos = System.nanoTime();
+                }
+                if (loadStepNanos != 0 && trimmedNanos == 0 && snapshot.getTractionTrim() != 0) {
+                    trimmedNanos = System.nanoTime();
+                }
+            });
+        }
+        TelemetryServer telemetryServer = null;
+        if (servePort >= 0) {
+            telemetryServer = new TelemetryServer(servePort);
+            try {
+                telemetryServer.start();
+            } catch (IOException e) {
+                log.println("Could not serve telemetry: " + e.getMessage());
+                loop.shutdown();
+                return 1;
+            }
+            state.addListener(telemetryServer);
+            loop.setSampleTap(telemetryServer);
+            log.println("Serving telemetry on port " + telemetryServer.getPort());
+        }
+
+        ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+        TcpConnector connector = new TcpConnector(host, port);
+        loop.connect(connector);
+        log.println("Connecting to " + host + ":" + port);
+
+        long start = System.nanoTime();
+        long nextMetricsMs = 0;
+        long reconnectAtMs = -1;
+        boolean wasConnected = false;
+        int runsStarted = 0;
+        int runsFinished = 0;
+        boolean runActive = false;
+        boolean failed = false;
+        long lastLines = 0;
+        long lastCommands = 0;
+        long lastSamples = 0;
+        long lastBytes = 0;
+        long lastMetricsMs = 0;
+        int macrosSent = 0;
+        long nextMacroMs = 0;
+        long loadStepAtMs = -1;
+
+        printMetricsHeader();
+        while (!stopRequested) {
+            long nowMs = (System.nanoTime() - start) / 1_000_000L;
+
+            if (connected && !wasConnected) {
+                wasConnected = true;
+                reconnectPolicy.reset();
+                if (direction != 0 && compound) {
+                    loop.drive(direction == 'F' ? DriveMacro.STRAIGHT : DriveMacro.REVERSE, true);
+                } else if (direction != 0) {
+                    loop.sendCommand("DIR1" + direction + "\n");
+                    loop.sendCommand("DIR2" + direction + "\n");
+                }
+                nextMacroMs = nowMs + 2 * MACRO_INTERVAL_MS;   // let the speed settle first
+                if (loadStepAtMs < 0) {
+                    loadStepAtMs = nowMs + LOAD_STEP_DELAY_MS;
+                }
+                if (speed >= 0) {
+                    loop.setSpeedFromUser(speed);
+                }
+            }
+            if (linkLost || connectFailed) {
+                linkLost = false;
+                connectFailed = false;
+                wasConnected = false;
+                runActive = false;
+                long delayMs = reconnectPolicy.nextDelayMs();
+                if (delayMs < 0) {
+                    log.println("Giving up on " + host + ":" + port);
+                    failed = true;
+                    break;
+                }
+                reconnectAtMs = nowMs + delayMs;
+                log.println("Reconnecting in " + delayMs + " ms (attempt " + reconnectPolicy.getAttempt() + ")");
+            }
+            if (reconnectAtMs >= 0 && nowMs >= reconnectAtMs) {
+                reconnectAtMs = -1;
+                loop.connect(connector);
+            }
+
+            DriveCycleRecord record;
+            while ((record = finishedRuns.poll()) != null) {
+                runsFinished++;
+                runActive = false;
+                failed |= record.isAborted();
+                saveRun(record, runsFinished);
+            }
+            boolean moreRuns = profile != null && (repeat == 0 || runsStarted < repeat);
+            if (connected && !runActive && moreRuns) {
+                runsStarted++;
+                runActive = true;
+                log.println("Drive cycle " + runsStarted + (repeat == 0 ? "" : "/" + repeat)
+                        + ": " + profile.getName());
+                loop.runDriveCycle(profile, finishedRuns::add);
+            }
+
+            if (connected && macrosSent < macros && nowMs >= nextMacroMs) {
+                loop.drive(MACRO_CYCLE[macrosSent % MACRO_CYCLE.length], compound);
+                macrosSent++;
+                nextMacroMs = nowMs + MACRO_INTERVAL_MS;
+            }
+
+            if (connected && loadStepRpm >= 0 && loadStepNanos == 0 && nowMs >= loadStepAtMs) {
+                loop.sendCommand((loadMotor == 2 ? "SIMLOAD2" : "SIMLOAD") + loadStepRpm + "\n");
+                loadStepNanos = System.nanoTime();
+                log.println("Load step to " + loadStepRpm + " RPM on motor " + loadMotor);
+            }
+
+            if (nowMs >= nextMetricsMs) {
+                long lines = loop.getLinesReceived();
+                long commands = loop.getCommandsSent();
+                long samples = loop.getSamplesReceived();
+                long bytes = loop.getBytesReceived();
+                double seconds = Math.max(1, nowMs - lastMetricsMs) / 1000.0;
+                printMetrics(nowMs, (lines - lastLines) / seconds, (commands - lastCommands) / seconds,
+                        (samples - lastSamples) / seconds, (bytes - lastBytes) / seconds,
+                        loop.getReportInterval());
+                lastLines = lines;
+                lastCommands = commands;
+                lastSamples = samples;
+                lastBytes = bytes;
+                lastMetricsMs = nowMs;
+                nextMetricsMs += metricsMs;
+            }
+
+            boolean timeUp = durationMs > 0 && nowMs >= durationMs;
+            boolean profilesDone = profile == null || !moreRuns && !runActive;
+            // The last manoeuvre's SKEW answer needs a moment to come back
+            boolean macrosDone = macros == 0
+                    || macrosSent >= macros && nowMs >= nextMacroMs + MACRO_INTERVAL_MS;
+            boolean workDone = durationMs == 0 && (profile != null || macros > 0)
+                    && profilesDone && macrosDone;
+            boolean nothingToDo = profile == null && durationMs == 0 && speed < 0 && macros == 0;
+            if (timeUp || workDone || nothingToDo) {
+                break;
+            }
+            Thread.sleep(POLL_MS);
+        }
+
+        loop.disconnect();
+        Thread.sleep(200);
+        loop.shutdown();
+        if (telemetryServer != null) {
+            telemetryServer.stop();
+        }
+        log.println(state.getSnapshot().getTrip());
+        log.println(state.getSnapshot().getDevice());
+        log.println(state.getSnapshot().getClock());
+        log.println("Lines received " + loop.getLinesReceived() + ", commands sent " + loop.getCommandsSent()
+                + String.format(Locale.US, ", %.0f bytes/s received",
+                loop.getBytesReceived() / Math.max(0.001, (System.nanoTime() - start) / 1e9)));
+        if (loadStepNanos != 0) {
+            log.println("Load step detected: compensation "
+                    + (compensatedNanos != 0 ? (compensatedNanos - loadStepNanos) / 1_000_000L + " ms" : "never")
+                    + ", anomaly "
+                    + (anomalyNanos != 0 ? (anomalyNanos - loadStepNanos) / 1_000_000L + " ms" : "never")
+                    + ", traction trim "
+                    + (trimmedNanos != 0 ? (trimmedNanos - loadStepNanos) / 1_000_000L + " ms" : "never"));
+        }
+        if (streamBatch > 0) {
+            log.println("Samples received " + loop.getSamplesReceived());
+        }
+        if (rpmHz > 0) {
+            log.println("High-resolution RPM: " + loop.getFastRpmSamples() + " samples, "
+                    + loop.getFastLoadSteps() + " load steps caught");
+        }
+        stopped.countDown();
+        return failed || anomalySeen ? 1 : 0;
+    }
+
+    private void printMetricsHeader() {
+        System.out.println("t_s,connected,rpm,rpm2,slip,trim,speed,compensating,load_nm,load_rpm,fault,"
+                + "rx_lines_s,tx_cmds_s,rx_samples_s,rx_bytes_s,report_ms,drift_ppm,transit_p50_ms,"
+                + "transit_p95_ms");
+    }
+
+    private void printMetrics(long nowMs, double linesPerSecond, double commandsPerSecond,
+                              double samplesPerSecond, double bytesPerSecond, int reportMs) {
+        ControllerState.Snapshot snapshot = state.getSnapshot();
+        ClockSync.Status clock = snapshot.getClock();
+        System.out.println(String.format(Locale.US, "%.1f,%d,%d,%s,%s,%d,%d,%d,%s,%s,%s,%.1f,%.1f,%.1f,%.0f,%d,%s,%s,%s",
+                nowMs / 1000.0,
+                snapshot.isConnected() ? 1 : 0,
+                snapshot.getRpm(),
+                snapshot.getRpm2() < 0 ? "" : Integer.toString(snapshot.getRpm2()),
+                Double.isNaN(snapshot.getSlipRatio()) ? "" : String.format(Locale.US, "%.2f", snapshot.getSlipRatio()),
+                snapshot.getTractionTrim(),
+                snapshot.getSpeed(),
+                snapshot.isCompensating() ? 1 : 0,
+                snapshot.hasTorque() ? String.format(Locale.US, "%.3f", snapshot.getLoadNm()) : "",
+                Double.isNaN(snapshot.getLoadRpm()) ? "" : String.format(Locale.US, "%.0f", snapshot.getLoadRpm()),
+                snapshot.getFault() != null ? snapshot.getFault()
+                        : snapshot.isMotor2Fault() ? "MOTOR2_NO_RPM" : "",
+                linesPerSecond,
+                commandsPerSecond,
+                samplesPerSecond,
+                bytesPerSecond,
+                reportMs,
+                Double.isNaN(clock.getDriftPpm()) ? "" : String.format(Locale.US, "%.1f", clock.getDriftPpm()),
+                clock.getDeliveries() == 0 ? "" : String.format(Locale.US, "%.1f", clock.getTransitP50Micros() / 1000),
+                clock.getDeliveries() == 0 ? "" : String.format(Locale.US, "%.1f", clock.getTransitP95Micros() / 1000)));
+        if (snapshot.getStrategies().size() > 1) {
+            for (CompensationHost.Stats stats : snapshot.getStrategies()) {
+                log.println("  " + stats);
+            }
+        }
+    }
+
+    private void saveRun(DriveCycleRecord record, int index) {
+        String baseName = record.getProfile().getName() + "-" + index;
+        try (Writer writer = new FileWriter(new File(outDir, baseName + ".csv"))) {
+            record.writeCsv(writer);
+            record.writeTelemetry(new FileOutputStream(new File(outDir, baseName + ".mtl")));
+        } catch (IOException e) {
+            log.println("Could not save " + baseName + ": " + e.getMessage());
+        }
+        log.println((record.isAborted() ? "Drive cycle aborted" : "Drive cycle done")
+                + String.format(Locale.US, ", timing error mean %.0f us, max %d us",
+                record.getMeanApplyErrorMicros(), record.getMaxApplyErrorMicros()));
+    }
+
+    // ---- ControlLoop.Events, called on the control thread ----
+
+    @Override
+    public void onConnected(String deviceName) {
+        log.println("Connected to " + deviceName);
+        connected = true;
+    }
+
+    @Override
+    public void onConnectFailed(String message) {
+        log.println("Connection failed: " + message);
+        connectFailed = true;
+    }
+
+    @Override
+    public void onDisconnected(boolean requested) {
+        connected = false;
+        if (!requested) {
+            log.println("Connection lost");
+            linkLost = true;
+        }
+    }
+
+    @Override
+    public void onFirstCommandSent(long timeToFirstCommandMs) {
+        log.println("Time to first command: " + timeToFirstCommandMs + " ms");
+    }
+
+    @Override
+    public void onAnomaly(AnomalyDetector.Event event) {
+        if (anomalyNanos == 0) {
+            anomalyNanos = System.nanoTime();
+        }
+        anomalySeen = true;
+        log.println("Motor stopped: " + event.getKind() + ", " + event.getDetail());
+        File file = new File(outDir, event.getKind() + "-" + System.currentTimeMillis() + ".csv");
+        try (Writer writer = new FileWriter(file)) {
+            event.writeCsv(writer);
+        } catch (IOException e) {
+            log.println("Could not save " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.motorcontroller;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Opens an RFCOMM link to a paired controller over the Serial Port Profile.
+ *
+ * The socket can be created ahead of time with {@link #prewarm()}, and any running device
+ * discovery is cancelled before connecting, since discovery slows RFCOMM connects down
+ * considerably.
+ */
+public class BluetoothConnector implements LinkIo.Connector {
+
+    // Standard SPP UUID for Bluetooth modules
+    static final UUID BT_MODULE_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter adapter;
+    private final BluetoothDevice device;
+    // Socket created by prewarm(); a socket can only be connected once
+    private volatile BluetoothSocket preparedSocket;
+    // Socket being connected by open(), so abort() can close it
+    private volatile BluetoothSocket connectingSocket;
+
+    public BluetoothConnector(BluetoothAdapter adapter, BluetoothDevice device) {
+        this.adapter = adapter;
+        this.device = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * Create the RFCOMM socket now so that open() only has to connect it.
+     */
+    public void prewarm() {
+        if (preparedSocket != null) {
+            return;
+        }
+        try {
+            preparedSocket = device.createRfcommSocketToServiceRecord(BT_MODULE_UUID);
+        } catch (IOException | SecurityException e) {
+            // open() will simply create the socket itself
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public LinkIo.Link open() throws IOException {
+        BluetoothSocket socket = preparedSocket;
+        preparedSocket = null;
+        if (socket == null) {
+            socket = device.createRfcommSocketToServiceRecord(BT_MODULE_UUID);
+        }
+        try {
+            adapter.cancelDiscovery();
+        } catch (SecurityException e) {
+            // Needs BLUETOOTH_SCAN on Android 12+; connecting still works, just slower
+        }
+        connectingSocket = socket;
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } finally {
+            connectingSocket = null;
+        }
+        return new BluetoothLink(socket, device.getName());
+    }
+
+    @Override
+    public void abort() {
+        BluetoothSocket socket = connectingSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A connected RFCOMM socket.
+     */
+    static class BluetoothLink implements LinkIo.Link {
+        private final BluetoothSocket socket;
+        private final String name;
+
+        BluetoothLink(BluetoothSocket socket, String name) {
+            this.socket = socket;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.motorcontroller;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * History behind the live chart: one entry per RPM reading, with the setpoint, the motor
+ * current and whether compensation was active at that moment, on the app's clock. A fixed
+ * ring of primitive columns, written by the control thread and read by the chart's render
+ * thread, with no lock and no allocation on either side.
+ *
+ * The writer never waits. A reader copies what it wants, then checks how far the writer got
+ * meanwhile and throws away any entries that may have been overwritten under it.
+ */
+public class ChartBuffer {
+
+    public static final int FLAG_COMPENSATING = 1;
+
+    private final long[] micros;
+    private final float[] rpm;
+    private final float[] setpoint;
+    private final float[] currentMa;
+    private final byte[] flags;
+    private final int mask;
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public ChartBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        micros = new long[size];
+        rpm = new float[size];
+        setpoint = new float[size];
+        currentMa = new float[size];
+        flags = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return micros.length;
+    }
+
+    /**
+     * Writer side; one thread only.
+     *
+     * @param appMicros  when the reading was taken, System.nanoTime() / 1000
+     * @param current    motor current in mA, or NaN if not known
+     */
+    public void append(long appMicros, float readingRpm, float speed, float current, int entryFlags) {
+        long sequence = written.get();
+        int index = (int) sequence & mask;
+        micros[index] = appMicros;
+        rpm[index] = readingRpm;
+        setpoint[index] = speed;
+        currentMa[index] = current;
+        flags[index] = (byte) entryFlags;
+        // Release store: the entry is visible before the new count
+        written.lazySet(sequence + 1);
+    }
+
+    /**
+     * Entries written so far; a reader that sees no change has nothing new to draw.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Reader side: copy the entries taken at or after fromMicros, oldest first, into the
+     * given arrays, each at least {@link #capacity()} long.
+     *
+     * @return the number of entries copied
+     */
+    public int copySince(long fromMicros, long[] toMicros, float[] toRpm, float[] toSetpoint,
+                         float[] toCurrentMa, byte[] toFlags) {
+        long end = written.get();
+        long start = Math.max(0, end - micros.length);
+        // Newest first until the window starts; times only go forward
+        long first = end;
+        while (first > start && micros[(int) (first - 1) & mask] >= fromMicros) {
+            first--;
+        }
+        int count = 0;
+        for (long i = first; i < end; i++) {
+            int index = (int) i & mask;
+            toMicros[count] = micros[index];
+            toRpm[count] = rpm[index];
+            toSetpoint[count] = setpoint[index];
+            toCurrentMa[count] = currentMa[index];
+            toFlags[count] = flags[index];
+            count++;
+        }
+        // Entries older than a full ring behind the writer may have changed while copying
+        long overwritten = written.get() - micros.length - first;
+        if (overwritten <= 0) {
+            return count;
+        }
+        int drop = (int) Math.min(count, overwritten);
+        count -= drop;
+        System.arraycopy(toMicros, drop, toMicros, 0, count);
+        System.arraycopy(toRpm, drop, toRpm, 0, count);
+        System.arraycopy(toSetpoint, drop, toSetpoint, 0, count);
+        System.arraycopy(toCurrentMa, drop, toCurrentMa, 0, count);
+        System.arraycopy(toFlags, drop, toFlags, 0, count);
+        return count;
+    }
+}
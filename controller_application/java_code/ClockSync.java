@@ -0,0 +1,423 @@
+package com.example.motorcontroller;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The controller's clock on the app's. Streamed samples and pulse batches carry the
+ * controller's micros(), but the app only sees them when the reader thread does, after
+ * whatever the Bluetooth stack held them for. So the app pings the controller, NTP fashion:
+ *
+ *   SYNC<seq>       answered "Sync: <seq> <rx_us> <tx_us>", micros() when the command was
+ *                   read and when the answer was written
+ *
+ * With t0 when the writer thread put the ping on the link and t3 when the reader thread took
+ * the answer off it, on the app's monotonic clock, and t1, t2 the controller's two times,
+ * each exchange gives
+ *
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2      controller clock minus app clock
+ *   delay  = (t3 - t0) - (t2 - t1)            round trip spent on the link
+ *
+ * The offset is exact if both ways took equally long and off by up to half the delay
+ * otherwise, so only the quarter of the last HISTORY exchanges with the smallest delay are
+ * trusted: a least-squares line through their offsets against app time gives the offset and
+ * the drift, the two crystals' rate difference. Drift needs MIN_DRIFT_SPAN_MICROS of those
+ * exchanges to be seen and is clamped to MAX_DRIFT_PPM. Pings go out BURST_INTERVAL_MS apart
+ * until BURST have been answered, then every INTERVAL_MS, one at a time; firmware that
+ * leaves the first MAX_UNANSWERED unanswered ("Unknown command") is not asked again on this
+ * connection.
+ *
+ * {@link #toAppMicros} maps a controller time onto the app's clock. Times are compared
+ * modulo 2^32, as micros() wraps, so raw and unwrapped times both map, within 35 minutes of
+ * the last exchange. Samples that arrived together are one delivery, whose transit is its
+ * arrival minus its newest sample's mapped time: the firmware's batching plus the link's
+ * delay. That is the transport jitter, kept apart from the clock as P50, P95 and maximum.
+ *
+ * Used only on the control thread. Constant work per sample, no allocation but the pings.
+ */
+public class ClockSync {
+
+    static final String PING = "SYNC";
+    static final int BURST = 8;
+    static final long BURST_INTERVAL_MS = 250;
+    static final long INTERVAL_MS = 2000;
+    static final long TIMEOUT_MS = 1000;
+    static final int MAX_UNANSWERED = 3;
+    static final int HISTORY = 32;                       // about a minute of pings
+    static final long MIN_DRIFT_SPAN_MICROS = 10_000_000L;
+    static final double MAX_DRIFT_PPM = 500;             // crystals are good to 50
+    // Samples read this close together came in one delivery
+    static final long SAME_DELIVERY_NANOS = 1_000_000L;
+    private static final long WRAP = 1L << 32;
+
+    /**
+     * The clock estimate and transport jitter for the UI. Immutable.
+     */
+    public static final class Status {
+        static final Status EMPTY = new Status(true, false, 0, 0, 0, 0, Double.NaN, 0,
+                Double.NaN, Double.NaN, 0);
+
+        private final boolean supported;
+        private final boolean synced;
+        private final long exchanges;
+        private final long lost;
+        private final long minDelayMicros;
+        private final long offsetMicros;
+        private final double driftPpm;
+        private final long deliveries;
+        private final double transitP50Micros;
+        private final double transitP95Micros;
+        private final long transitMaxMicros;
+
+        Status(boolean supported, boolean synced, long exchanges, long lost, long minDelayMicros,
+               long offsetMicros, double driftPpm, long deliveries, double transitP50Micros,
+               double transitP95Micros, long transitMaxMicros) {
+            this.supported = supported;
+            this.synced = synced;
+            this.exchanges = exchanges;
+            this.lost = lost;
+            this.minDelayMicros = minDelayMicros;
+            this.offsetMicros = offsetMicros;
+            this.driftPpm = driftPpm;
+            this.deliveries = deliveries;
+            this.transitP50Micros = transitP50Micros;
+            this.transitP95Micros = transitP95Micros;
+            this.transitMaxMicros = transitMaxMicros;
+        }
+
+        /**
+         * False once the controller has left the first pings unanswered.
+         */
+        public boolean isSupported() {
+            return supported;
+        }
+
+        public boolean isSynced() {
+            return synced;
+        }
+
+        /**
+         * Pings answered on this connection.
+         */
+        public long getExchanges() {
+            return exchanges;
+        }
+
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Round trip of the fastest exchange kept.
+         */
+        public long getMinDelayMicros() {
+            return minDelayMicros;
+        }
+
+        /**
+         * Controller clock minus app clock, now.
+         */
+        public long getOffsetMicros() {
+            return offsetMicros;
+        }
+
+        /**
+         * How much faster the controller's clock runs; NaN until measured.
+         */
+        public double getDriftPpm() {
+            return driftPpm;
+        }
+
+        public long getDeliveries() {
+            return deliveries;
+        }
+
+        public double getTransitP50Micros() {
+            return transitP50Micros;
+        }
+
+        public double getTransitP95Micros() {
+            return transitP95Micros;
+        }
+
+        public long getTransitMaxMicros() {
+            return transitMaxMicros;
+        }
+
+        /**
+         * Spread of the transit, P95 over P50.
+         */
+        public double getJitterMicros() {
+            return transitP95Micros - transitP50Micros;
+        }
+
+        @Override
+        public String toString() {
+            if (!supported) {
+                return "Clock: not synced, no SYNC in this firmware";
+            }
+            if (!synced) {
+                return "Clock: not synced";
+            }
+            String text = String.format(Locale.US,
+                    "Clock: offset %d us, drift %s, rtt min %.1f ms, %d pings, %d lost",
+                    offsetMicros,
+                    Double.isNaN(driftPpm) ? "?" : String.format(Locale.US, "%.1f ppm", driftPpm),
+                    minDelayMicros / 1000.0, exchanges, lost);
+            if (deliveries > 0) {
+                text += String.format(Locale.US, ", transit p50/p95/max %.1f/%.1f/%.1f ms (%d)",
+                        transitP50Micros / 1000.0, transitP95Micros / 1000.0,
+                        transitMaxMicros / 1000.0, deliveries);
+            }
+            return text;
+        }
+    }
+
+    // Exchanges, the newest at (exchanges - 1) % HISTORY: app time halfway through, offset, delay
+    private final long[] exchangeMicros = new long[HISTORY];
+    private final long[] offsetMicros = new long[HISTORY];
+    private final long[] delayMicros = new long[HISTORY];
+    private final long[] sortedDelays = new long[HISTORY];
+    private int exchanges = 0;
+    private long lost = 0;
+
+    private boolean supported = true;
+    private int sequence = 0;
+    private boolean awaiting = false;
+    private long sentNanos = 0;
+    private boolean scheduled = false;
+    private long nextPingNanos = 0;
+    private int unanswered = 0;
+    // The controller's micros() unwrapped from the first answer
+    private long lastRawMicros = -1;
+    private long epochMicros = 0;
+
+    // The fitted line: offset at refMicros, and drift as a fraction
+    private boolean synced = false;
+    private long refMicros = 0;
+    private long refOffsetMicros = 0;
+    private double drift = 0;
+    private boolean driftKnown = false;
+    private long minDelay = 0;
+
+    // The delivery being gathered, closed by the next one
+    private boolean deliveryOpen = false;
+    private long deliveryNanos = 0;
+    private long deliveryNewestMicros = 0;
+    private long deliveries = 0;
+    private final P2Quantile transitP50 = new P2Quantile(0.5);
+    private final P2Quantile transitP95 = new P2Quantile(0.95);
+    private long transitMax = 0;
+
+    private boolean changed = true;
+    private Status status = Status.EMPTY;
+
+    /**
+     * Called regularly while connected.
+     *
+     * @return the ping to send now, or null
+     */
+    public String update(long nowNanos) {
+        if (!supported) {
+            return null;
+        }
+        if (awaiting) {
+            if (nowNanos - sentNanos < TIMEOUT_MS * 1_000_000L) {
+                return null;
+            }
+            awaiting = false;
+            lost++;
+            changed = true;
+            if (exchanges == 0 && ++unanswered >= MAX_UNANSWERED) {
+                supported = false;
+                return null;
+            }
+        }
+        if (scheduled && nowNanos - nextPingNanos < 0) {
+            return null;
+        }
+        scheduled = true;
+        nextPingNanos = nowNanos + (exchanges < BURST ? BURST_INTERVAL_MS : INTERVAL_MS) * 1_000_000L;
+        sequence++;
+        awaiting = true;
+        sentNanos = nowNanos;
+        return PING + sequence + "\n";
+    }
+
+    /**
+     * A "Sync: ..." line that arrived at arrivalNanos. writtenNanos is when the last ping was
+     * written to the link (see {@link LinkIo#getPingWriteNanos}); if that is older than the
+     * ping being answered, the time update() queued it stands in. Answers to pings given up
+     * on are ignored, since their send time is gone.
+     *
+     * @throws NumberFormatException if the line is malformed
+     */
+    public void onReply(String line, long writtenNanos, long arrivalNanos) {
+        String[] fields = line.substring(5).trim().split("\\s+");
+        if (fields.length != 3) {
+            throw new NumberFormatException("Expected three numbers: " + line);
+        }
+        int replySequence = Integer.parseInt(fields[0]);
+        long rawReceived = Long.parseLong(fields[1]);
+        long rawSent = Long.parseLong(fields[2]);
+        if (!awaiting || replySequence != sequence) {
+            return;
+        }
+        awaiting = false;
+
+        // Queued pings can wait behind other commands; that wait is not on the link
+        boolean written = writtenNanos - sentNanos >= 0 && arrivalNanos - writtenNanos >= 0;
+        long t0 = (written ? writtenNanos : sentNanos) / 1000;
+        long t1 = unwrap(rawReceived);
+        long t2 = t1 + ((rawSent - rawReceived) & (WRAP - 1));
+        long t3 = arrivalNanos / 1000;
+        int slot = exchanges % HISTORY;
+        exchangeMicros[slot] = t0 + (t3 - t0) / 2;
+        offsetMicros[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+        delayMicros[slot] = Math.max(0, (t3 - t0) - (t2 - t1));
+        exchanges++;
+        fit();
+        synced = true;
+        changed = true;
+    }
+
+    // Least squares through the exchanges with the smallest delays
+    private void fit() {
+        int n = Math.min(exchanges, HISTORY);
+        System.arraycopy(delayMicros, 0, sortedDelays, 0, n);
+        Arrays.sort(sortedDelays, 0, n);
+        minDelay = sortedDelays[0];
+        long limit = sortedDelays[Math.max(1, n / 4) - 1];
+        int kept = 0;
+        long baseOffset = 0;
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            if (delayMicros[i] <= limit) {
+                if (kept++ == 0) {
+                    baseOffset = offsetMicros[i];
+                }
+                earliest = Math.min(earliest, exchangeMicros[i]);
+                latest = Math.max(latest, exchangeMicros[i]);
+            }
+        }
+        // Relative to the newest kept exchange and the first offset, so the sums stay small
+        double sumT = 0;
+        double sumY = 0;
+        for (int i = 0; i < n; i++) {
+            if (delayMicros[i] <= limit) {
+                sumT += exchangeMicros[i] - latest;
+                sumY += offsetMicros[i] - baseOffset;
+            }
+        }
+        double meanT = sumT / kept;
+        double meanY = sumY / kept;
+        if (latest - earliest >= MIN_DRIFT_SPAN_MICROS) {
+            double sumTT = 0;
+            double sumTY = 0;
+            for (int i = 0; i < n; i++) {
+                if (delayMicros[i] <= limit) {
+                    double t = exchangeMicros[i] - latest - meanT;
+                    sumTT += t * t;
+                    sumTY += t * (offsetMicros[i] - baseOffset - meanY);
+                }
+            }
+            double maxDrift = MAX_DRIFT_PPM / 1e6;
+            drift = Math.max(-maxDrift, Math.min(maxDrift, sumTY / sumTT));
+            driftKnown = true;
+        }
+        refMicros = latest + Math.round(meanT);
+        refOffsetMicros = baseOffset + Math.round(meanY);
+    }
+
+    private long unwrap(long rawMicros) {
+        if (lastRawMicros >= 0 && rawMicros < lastRawMicros - WRAP / 2) {
+            epochMicros += WRAP;
+        }
+        lastRawMicros = rawMicros;
+        return epochMicros + rawMicros;
+    }
+
+    /**
+     * A controller time, raw or unwrapped, on the app's clock in micros; only meaningful
+     * once {@link #isSynced()}.
+     */
+    public long toAppMicros(long deviceMicros) {
+        long refDevice = refMicros + refOffsetMicros;
+        long delta = (int) (deviceMicros - refDevice);
+        return refMicros + Math.round(delta / (1 + drift));
+    }
+
+    /**
+     * A sample read at arrivalNanos, for the transit. Samples before the first exchange are
+     * not counted.
+     */
+    public void onSample(long deviceMicros, long arrivalNanos) {
+        if (!synced) {
+            return;
+        }
+        if (deliveryOpen && arrivalNanos - deliveryNanos > SAME_DELIVERY_NANOS) {
+            closeDelivery();
+        }
+        if (!deliveryOpen) {
+            deliveryOpen = true;
+            deliveryNewestMicros = deviceMicros;
+        } else if ((int) (deviceMicros - deliveryNewestMicros) > 0) {
+            deliveryNewestMicros = deviceMicros;
+        }
+        deliveryNanos = arrivalNanos;
+    }
+
+    private void closeDelivery() {
+        deliveryOpen = false;
+        long transit = deliveryNanos / 1000 - toAppMicros(deliveryNewestMicros);
+        transitP50.add(transit);
+        transitP95.add(transit);
+        transitMax = Math.max(transitMax, transit);
+        deliveries++;
+        changed = true;
+    }
+
+    /**
+     * For a new connection: ping again from the start, as the controller may have restarted.
+     */
+    public void reset() {
+        exchanges = 0;
+        supported = true;
+        awaiting = false;
+        scheduled = false;
+        unanswered = 0;
+        lastRawMicros = -1;
+        epochMicros = 0;
+        synced = false;
+        drift = 0;
+        driftKnown = false;
+        deliveryOpen = false;
+        deliveries = 0;
+        transitP50.reset();
+        transitP95.reset();
+        transitMax = 0;
+        lost = 0;
+        changed = true;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Offset and jitter; the same object as last time if nothing happened since.
+     */
+    public Status getStatus() {
+        if (!changed) {
+            return status;
+        }
+        changed = false;
+        long now = System.nanoTime() / 1000;
+        status = new Status(supported, synced, exchanges, lost, minDelay,
+                synced ? refOffsetMicros + Math.round((now - refMicros) * drift) : 0,
+                driftKnown ? drift * 1e6 : Double.NaN, deliveries, transitP50.getEstimate(),
+                transitP95.getEstimate(), transitMax);
+        return status;
+    }
+}
@@ -0,0 +1,351 @@
+package com.example.motorcontroller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the selected {@link CompensationStrategy} and, in shadow mode, any number of others
+ * on the same stream of speed changes and RPM readings. Only the active strategy's commands
+ * reach the motor; shadow strategies' commands are counted and then dropped. Every call into
+ * every strategy is timed, so their decisions and cost can be compared side by side.
+ *
+ * Shadows see the RPM the motor makes under the active strategy, not under their own
+ * decisions, so their speed is what they would command at that moment, not a replay of what
+ * would have happened had they been in charge.
+ *
+ * The host is itself a CompensationStrategy, so the control loop drives it like one. Used
+ * only on the control thread.
+ */
+public class CompensationHost implements CompensationStrategy {
+
+    public static final String DEFAULT_STRATEGY = SpeedCompensator.NAME;
+
+    /**
+     * Names accepted by {@link #setActive} and {@link #setShadows}, oldest revision first.
+     */
+    public static final List<String> STRATEGIES = Collections.unmodifiableList(Arrays.asList(
+            ExpectedBandMonitor.NAME_REV2, ExpectedBandMonitor.NAME_REV3,
+            TimedBoostCompensator.NAME, SpeedCompensator.NAME));
+
+    static Factory factory(String name) {
+        if (ExpectedBandMonitor.NAME_REV2.equals(name)) {
+            return ExpectedBandMonitor::rev2;
+        } else if (ExpectedBandMonitor.NAME_REV3.equals(name)) {
+            return ExpectedBandMonitor::rev3;
+        } else if (TimedBoostCompensator.NAME.equals(name)) {
+            return TimedBoostCompensator::new;
+        } else if (SpeedCompensator.NAME.equals(name)) {
+            return SpeedCompensator::new;
+        }
+        return null;
+    }
+
+    /**
+     * What one strategy is doing and what it has cost so far. Immutable.
+     */
+    public static final class Stats {
+        private final String name;
+        private final boolean shadow;
+        private final int speed;
+        private final boolean compensating;
+        private final String status;
+        private final long commands;
+        private final long calls;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Stats(String name, boolean shadow, int speed, boolean compensating, String status,
+              long commands, long calls, long totalNanos, long maxNanos) {
+            this.name = name;
+            this.shadow = shadow;
+            this.speed = speed;
+            this.compensating = compensating;
+            this.status = status;
+            this.commands = commands;
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isShadow() {
+            return shadow;
+        }
+
+        /**
+         * The speed this strategy wants right now.
+         */
+        public int getSpeed() {
+            return speed;
+        }
+
+        public boolean isCompensating() {
+            return compensating;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public long getCommands() {
+            return commands;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public double getMeanNanos() {
+            return calls == 0 ? 0 : totalNanos / (double) calls;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%s: SPEED%d%s, %d cmds, %.0f ns avg, %d ns max",
+                    name, shadow ? " (shadow)" : "", speed, compensating ? "+" : "",
+                    commands, getMeanNanos(), maxNanos);
+        }
+    }
+
+    // A strategy with its command counter and timings
+    private static final class Slot implements SpeedSink {
+        final CompensationStrategy strategy;
+        final SpeedSink downstream;   // null for shadows
+        long commands = 0;
+        long calls = 0;
+        long totalNanos = 0;
+        long maxNanos = 0;
+
+        Slot(Factory factory, SpeedSink downstream) {
+            this.downstream = downstream;
+            this.strategy = factory.create(this);
+        }
+
+        @Override
+        public void sendSpeed(int speed) {
+            commands++;
+            if (downstream != null) {
+                downstream.sendSpeed(speed);
+            }
+        }
+
+        void charge(long startNanos) {
+            long spent = System.nanoTime() - startNanos;
+            calls++;
+            totalNanos += spent;
+            maxNanos = Math.max(maxNanos, spent);
+        }
+
+        Stats stats() {
+            return new Stats(strategy.getName(), downstream == null, strategy.getCurrentSpeed(),
+                    strategy.isCompensating(), strategy.getStatus(),
+                    commands, calls, totalNanos, maxNanos);
+        }
+    }
+
+    private final SpeedSink sink;
+    private double gain = 1.0;
+    private int loadBoost = 0;
+    private GainSchedule schedule = GainSchedule.DEFAULT;
+    private char direction = 'F';
+    private Slot active;
+    private final ArrayList<Slot> slots = new ArrayList<>();   // active first, then shadows
+
+    public CompensationHost(SpeedSink sink) {
+        this.sink = sink;
+        this.active = new Slot(factory(DEFAULT_STRATEGY), sink);
+        slots.add(active);
+    }
+
+    /**
+     * Hand control to another strategy. The current one gives up any compensation first and
+     * the new one starts from that speed. Returns false for an unknown name.
+     */
+    public boolean setActive(String name, long nowMs) {
+        Factory factory = factory(name);
+        if (factory == null) {
+            return false;
+        }
+        if (name.equals(active.strategy.getName())) {
+            return true;
+        }
+        active.strategy.revertToOriginalSpeed();
+        int speed = active.strategy.getCurrentSpeed();
+        Slot next = new Slot(factory, sink);
+        next.strategy.setGain(gain);
+        next.strategy.setLoadBoost(loadBoost);
+        next.strategy.setGainSchedule(schedule, direction);
+        next.strategy.onManualSpeedChange(speed, nowMs);
+        slots.set(0, next);
+        // A strategy cannot shadow itself
+        for (int i = slots.size() - 1; i > 0; i--) {
+            if (slots.get(i).strategy.getName().equals(name)) {
+                slots.remove(i);
+            }
+        }
+        active = next;
+        return true;
+    }
+
+    /**
+     * Replace the shadow strategies; an empty list ends shadow mode. Unknown names and the
+     * active strategy are skipped. New shadows start from the active strategy's speed.
+     */
+    public void setShadows(List<String> names, long nowMs) {
+        while (slots.size() > 1) {
+            slots.remove(slots.size() - 1);
+        }
+        int speed = active.strategy.getCurrentSpeed();
+        for (String name : names) {
+            Factory factory = factory(name);
+            if (factory == null || name.equals(active.strategy.getName())) {
+                continue;
+            }
+            Slot shadow = new Slot(factory, null);
+            shadow.strategy.setGain(gain);
+            shadow.strategy.setLoadBoost(loadBoost);
+            shadow.strategy.setGainSchedule(schedule, direction);
+            shadow.strategy.onManualSpeedChange(speed, nowMs);
+            slots.add(shadow);
+        }
+    }
+
+    public boolean hasShadows() {
+        return slots.size() > 1;
+    }
+
+    /**
+     * Active strategy first, then the shadows.
+     */
+    public List<Stats> getStats() {
+        ArrayList<Stats> stats = new ArrayList<>(slots.size());
+        for (int i = 0; i < slots.size(); i++) {
+            stats.add(slots.get(i).stats());
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    @Override
+    public String getName() {
+        return active.strategy.getName();
+    }
+
+    @Override
+    public void onManualSpeedChange(int speed, long nowMs) {
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            long start = System.nanoTime();
+            slot.strategy.onManualSpeedChange(speed, nowMs);
+            slot.charge(start);
+        }
+    }
+
+    @Override
+    public void onRpmReading(int measuredRpm, long nowMs) {
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            long start = System.nanoTime();
+            slot.strategy.onRpmReading(measuredRpm, nowMs);
+            slot.charge(start);
+        }
+    }
+
+    @Override
+    public void onLoadRise(long nowMs) {
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            long start = System.nanoTime();
+            slot.strategy.onLoadRise(nowMs);
+            slot.charge(start);
+        }
+    }
+
+    // Not charged: ticks are frequent and nearly free, and would drown the per-reading cost
+    @Override
+    public boolean onTick(long nowMs) {
+        boolean changed = false;
+        for (int i = 0; i < slots.size(); i++) {
+            if (slots.get(i).strategy.onTick(nowMs)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Shadows are damped too, so they stay comparable with the active strategy
+    @Override
+    public void setGain(double gain) {
+        this.gain = gain;
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).strategy.setGain(gain);
+        }
+    }
+
+    @Override
+    public void setLoadBoost(int boost) {
+        if (boost == loadBoost) {
+            return;
+        }
+        loadBoost = boost;
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).strategy.setLoadBoost(boost);
+        }
+    }
+
+    @Override
+    public void setGainSchedule(GainSchedule schedule, char direction) {
+        if (schedule == this.schedule && direction == this.direction) {
+            return;
+        }
+        this.schedule = schedule;
+        this.direction = direction;
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).strategy.setGainSchedule(schedule, direction);
+        }
+    }
+
+    @Override
+    public void revertToOriginalSpeed() {
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).strategy.revertToOriginalSpeed();
+        }
+    }
+
+    @Override
+    public void reset() {
+        gain = 1.0;
+        loadBoost = 0;
+        for (int i = 0; i < slots.size(); i++) {
+            slots.get(i).strategy.reset();
+        }
+    }
+
+    @Override
+    public int getCurrentSpeed() {
+        return active.strategy.getCurrentSpeed();
+    }
+
+    @Override
+    public boolean isCompensating() {
+        return active.strategy.isCompensating();
+    }
+
+    @Override
+    public String getConsistencyStatus() {
+        return active.strategy.getConsistencyStatus();
+    }
+
+    @Override
+    public String getStatus() {
+        return active.strategy.getStatus();
+    }
+}
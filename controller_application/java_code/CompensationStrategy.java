@@ -0,0 +1,90 @@
+package com.example.motorcontroller;
+
+/**
+ * One way of reacting to load. Each app revision had its own, compiled straight into its
+ * Activity; they are ported behind this interface so the service can switch between them at
+ * runtime and run several side by side (see {@link CompensationHost}).
+ *
+ * A strategy only decides: every speed it wants goes to its {@link SpeedSink}. All calls
+ * come from one thread, with times from the same monotonic clock.
+ */
+public interface CompensationStrategy {
+
+    /**
+     * Receives the speed commands decided by a strategy.
+     */
+    interface SpeedSink {
+        void sendSpeed(int speed);
+    }
+
+    /**
+     * Creates a strategy that sends to the given sink.
+     */
+    interface Factory {
+        CompensationStrategy create(SpeedSink sink);
+    }
+
+    String getName();
+
+    /**
+     * The user picked a new speed. The strategy passes it on to its sink.
+     */
+    void onManualSpeedChange(int speed, long nowMs);
+
+    void onRpmReading(int measuredRpm, long nowMs);
+
+    /**
+     * The torque estimate shows the load rising (see {@link TorqueEstimator}).
+     */
+    default void onLoadRise(long nowMs) {
+    }
+
+    /**
+     * Called regularly, for strategies with timers of their own.
+     *
+     * @return true if the speed or labels changed
+     */
+    default boolean onTick(long nowMs) {
+        return false;
+    }
+
+    /**
+     * Scale the boost, e.g. to damp hunting (see {@link HuntingDetector}). 1 is the
+     * revision's own increment; reset() goes back to it. Strategies without a boost ignore it.
+     */
+    default void setGain(double gain) {
+    }
+
+    /**
+     * Speed to add to the one the user chose for the load now estimated, 0 if there is no
+     * estimate (see {@link DisturbanceObserver}). Strategies with a boost size it to this
+     * instead of their fixed increment while it is above 0.
+     */
+    default void setLoadBoost(int boost) {
+    }
+
+    /**
+     * Thresholds to use from now on, and the direction motor 1 runs in. Strategies with
+     * fixed thresholds ignore it.
+     */
+    default void setGainSchedule(GainSchedule schedule, char direction) {
+    }
+
+    /**
+     * Drop any compensation and go back to the speed the user chose.
+     */
+    void revertToOriginalSpeed();
+
+    /**
+     * Forget everything learned from the previous connection; the speed is back at 0.
+     */
+    void reset();
+
+    int getCurrentSpeed();
+
+    boolean isCompensating();
+
+    String getConsistencyStatus();
+
+    String getStatus();
+}
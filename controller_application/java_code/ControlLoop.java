@@ -0,0 +1,1008 @@
+package com.example.motorcontroller;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Single-threaded control loop. The control thread owns the compensator, the connection
+ * state and the draft of {@link ControllerState}; nothing else touches them. Other threads
+ * talk to it only through SPSC queues:
+ *
+ *   reader thread  -> fromReader -> control thread
+ *   UI thread      -> fromUi     -> control thread
+ *   drive cycle    -> fromScript -> control thread
+ *   control thread -> LinkIo     -> writer thread
+ *
+ * Speed changes go through a {@link SetpointRamp} that the control thread steps every
+ * CONTROL_PERIOD_NANOS while it is moving. Ticks are scheduled against absolute deadlines,
+ * so late wake-ups do not accumulate into drift.
+ *
+ * With high-resolution RPM on, the firmware also streams pulse periods, rebuilt into 50-200
+ * samples per second by {@link PulseRpmReconstructor}; a {@link FastDropDetector} on that
+ * stream lets compensation react to a load step within tens of milliseconds instead of at
+ * the next once-a-second RPM report. The reports still drive everything else. The STREAM
+ * telemetry (samples batched into frames by the firmware) feeds the same fast path when
+ * pulse periods are not requested; its samples reach this thread through a primitive
+ * {@link SampleQueue}, not as one message each.
+ *
+ * Every RPM reading also goes into a {@link ChartBuffer} for the live chart, with the
+ * setpoint, the latest current and the compensation flag: the fast samples when they are
+ * coming, otherwise the reports. Fast samples are charted at their controller time, mapped
+ * onto the app's clock by {@link ClockSync}, not at whenever the link delivered them.
+ *
+ * The public methods are meant to be called from the UI thread (the single producer of
+ * fromUi); they only enqueue work.
+ */
+public class ControlLoop implements LinkIo.Receiver {
+
+    /**
+     * Session events for the owner (e.g. to show a toast or go to the foreground).
+     * Called on the control thread.
+     */
+    public interface Events {
+        void onConnected(String deviceName);
+
+        void onConnectFailed(String message);
+
+        /**
+         * @param requested true if disconnect() asked for it, false if the link was lost
+         */
+        void onDisconnected(boolean requested);
+
+        /**
+         * The first command of a new connection reached the socket.
+         *
+         * @param timeToFirstCommandMs from the connect() call to that write
+         */
+        void onFirstCommandSent(long timeToFirstCommandMs);
+
+        /**
+         * The motor was stopped because of this anomaly.
+         */
+        void onAnomaly(AnomalyDetector.Event event);
+    }
+
+    /**
+     * Receives every fast RPM sample, e.g. for live dashboards. Called on the control thread,
+     * so it must return at once.
+     */
+    public interface SampleTap {
+        /**
+         * @param currentMa -1 when the sample came without a current, e.g. rebuilt from pulses
+         */
+        void onSample(long deviceMicros, int rpm, int currentMa);
+    }
+
+    // Message from the reader thread, stamped when it read it
+    private static final class LinkEvent {
+        static final int LINE = 0;
+        static final int UP = 1;
+        static final int DOWN = 2;
+        static final int FAILED = 3;
+
+        final int type;
+        final String text;
+        final LinkIo.Link link;
+        final long nanos = System.nanoTime();
+
+        LinkEvent(int type, String text, LinkIo.Link link) {
+            this.type = type;
+            this.text = text;
+            this.link = link;
+        }
+    }
+
+    private static final int READER_QUEUE_CAPACITY = 1024;
+    private static final int UI_QUEUE_CAPACITY = 256;
+    private static final int SAMPLE_QUEUE_CAPACITY = 1024;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    static final long CONTROL_PERIOD_NANOS = 20_000_000L;   // 50 Hz while ramping
+    // Coast both motors; sent ahead of anything still queued
+    private static final String[] STOP_COMMANDS = {SetpointRamp.speedCommand(0), "DIR1S\n", "DIR2S\n"};
+    private static final long RPM_DISPLAY_INTERVAL_MICROS = 100_000L;   // UI refresh from the fast stream
+    private static final int CHART_CAPACITY = 4096;   // 20 s at 200 samples/s
+    // The chart takes reports again once fast samples have been missing this long
+    private static final long CHART_FAST_TIMEOUT_MICROS = 2_000_000L;
+    // Per fast sample, how far the device-to-app clock offset may creep up (200 ppm at 200 Hz),
+    // until ClockSync has the controller's clock
+    private static final long CHART_OFFSET_CREEP_MICROS = 1;
+
+    private final SpscQueue<LinkEvent> fromReader = new SpscQueue<>(READER_QUEUE_CAPACITY);
+    private final SpscQueue<Runnable> fromUi = new SpscQueue<>(UI_QUEUE_CAPACITY);
+    private final SampleQueue samplesFromReader = new SampleQueue(SAMPLE_QUEUE_CAPACITY);
+    // Producer is the runner thread of the current drive cycle; runs never overlap
+    private final SpscQueue<DriveProfile.Step> fromScript = new SpscQueue<>(64);
+
+    private final Events events;
+    private final ControllerState state;
+    private final LinkIo linkIo;
+    private final CompensationHost compensator;
+    private final SetpointRamp ramp = new SetpointRamp();
+    private final TorqueEstimator torque = new TorqueEstimator();
+    private final DisturbanceObserver observer = new DisturbanceObserver();
+    private final AnomalyDetector anomalies = new AnomalyDetector();
+    private final TripStats trip = new TripStats();
+    private final HuntingDetector hunting = new HuntingDetector();
+    private final DeviceMirror mirror = new DeviceMirror();
+    private final FastDropDetector fastDrops = new FastDropDetector();
+    private final ChartBuffer chart = new ChartBuffer(CHART_CAPACITY);
+    private final ReportRate reportRate = new ReportRate();
+    private final TractionControl traction = new TractionControl();
+    private final ClockSync clockSync = new ClockSync();
+    private final PulseRpmReconstructor.Sink fastRpmSink =
+            (micros, rpm) -> handleFastRpm(micros, rpm, -1, this.lineArrivalNanos);
+    private final SampleQueue.Consumer streamSampleSink = this::handleStreamSample;
+    // Swapped from any thread; read once per RPM reading
+    private final AtomicReference<GainSchedule> gainSchedule = new AtomicReference<>(GainSchedule.DEFAULT);
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long fastRpmSamples = 0;
+    private volatile long fastLoadSteps = 0;
+    private volatile int reportIntervalMs = 0;
+
+    // Control-thread state
+    private LinkIo.Link activeLink = null;
+    private char motor1Direction = 'F';   // last DIR1 sent; the firmware keeps it across connections
+    // Both motors as last sent, stops included, for traction control
+    private char motor1Drive = 'S';
+    private char motor2Drive = 'S';
+    private boolean stateDirty = false;
+    private boolean disconnectRequested = false;
+    private long connectRequestedNanos = 0;
+    private boolean awaitingFirstWrite = false;
+    private long nextTickNanos = 0;
+    private long lastTickNanos = 0;
+    private long lateTicks = 0;
+    private DriveCycleRunner activeRun = null;
+    private Consumer<DriveCycleRecord> runFinished = null;
+    // Outbound number of each drive-cycle step's command; steps before stepsWritten are timed
+    private long[] stepCommandNumbers = new long[0];
+    private int stepsSent = 0;
+    private int stepsWritten = 0;
+    private PulseRpmReconstructor pulses = null;   // null while high-resolution RPM is off
+    private int streamBatch = 0;                  // samples per STREAM frame, 0 = off
+    private SampleTap sampleTap = null;
+    private long lastRpmDisplayMicros = 0;
+    private float lastCurrentMa = Float.NaN;
+    private long lineArrivalNanos = 0;        // of the line being handled
+    private boolean chartClockSet = false;
+    private long chartOffsetMicros = 0;       // app micros minus device micros
+    private long lastChartMicros = 0;
+    private long lastFastChartMicros = Long.MIN_VALUE / 2;
+
+    public ControlLoop(ControllerState state, Events events) {
+        this.state = state;
+        this.events = events;
+        this.compensator = new CompensationHost(this::sendSpeedCommand);
+        this.linkIo = new LinkIo(this);
+        this.thread = new Thread(this::run, "control-loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void connect(LinkIo.Connector connector) {
+        long requestedNanos = System.nanoTime();
+        post(() -> {
+            connectRequestedNanos = requestedNanos;
+            disconnectRequested = activeLink != null;
+            linkIo.close();
+            linkIo.connect(connector);
+            state.setConnecting(true);
+            stateDirty = true;
+        });
+    }
+
+    public void disconnect() {
+        post(() -> {
+            compensator.revertToOriginalSpeed();
+            if (ramp.isActive() && activeLink != null) {
+                // No time left to ramp; send the final speed before the link closes
+                ramp.reset(ramp.getTarget());
+                send(SetpointRamp.speedCommand(ramp.getTarget()));
+            }
+            disconnectRequested = true;
+            state.setConnecting(false);
+            stateDirty = true;
+            linkIo.close();
+        });
+    }
+
+    /**
+     * Speed chosen by the user on the SeekBar.
+     */
+    public void setSpeedFromUser(int speed) {
+        post(() -> {
+            if (activeLink != null) {
+                anomalies.rearm();
+                state.setFault(null);
+                compensator.onManualSpeedChange(speed, nowMs());
+                hunting.restart();
+                state.updateFrom(compensator);
+                stateDirty = true;
+            }
+        });
+    }
+
+    /**
+     * Switch to another compensation strategy, one of {@link CompensationHost#STRATEGIES}.
+     */
+    public void setCompensationStrategy(String name) {
+        post(() -> {
+            if (compensator.setActive(name, nowMs())) {
+                hunting.restart();
+                state.updateFrom(compensator);
+                stateDirty = true;
+            }
+        });
+    }
+
+    /**
+     * Run these strategies in shadow mode next to the active one; empty to stop.
+     */
+    public void setShadowStrategies(List<String> names) {
+        post(() -> {
+            compensator.setShadows(names, nowMs());
+            state.updateFrom(compensator);
+            stateDirty = true;
+        });
+    }
+
+    /**
+     * Use these compensation thresholds from the next RPM reading on. Unlike the other
+     * methods this does not go through the UI queue: it may be called from any thread, and
+     * the control thread never waits for it.
+     */
+    public void setGainSchedule(GainSchedule schedule) {
+        gainSchedule.set(schedule);
+    }
+
+    public GainSchedule getGainSchedule() {
+        return gainSchedule.get();
+    }
+
+    /**
+     * Ask the controller for pulse periods and rebuild RPM from them at outputHz samples per
+     * second (50-200), or 0 to go back to the once-a-second reports alone. Kept across
+     * reconnections.
+     */
+    public void setHighResolutionRpm(int outputHz) {
+        PulseRpmReconstructor reconstructor = outputHz > 0
+                ? new PulseRpmReconstructor(fastRpmSink, outputHz) : null;
+        post(() -> {
+            pulses = reconstructor;
+            fastDrops.reset();
+            if (activeLink != null) {
+                send(pulses != null ? "PULSES1\n" : "PULSES0\n");
+            }
+        });
+    }
+
+    /**
+     * Ask the controller for its sample stream, samplesPerFrame samples to a frame (1 sends
+     * each as a text line), or 0 to stop it. Kept across reconnections.
+     */
+    public void setTelemetryStream(int samplesPerFrame) {
+        post(() -> {
+            streamBatch = samplesPerFrame;
+            if (activeLink != null) {
+                send("STREAM" + samplesPerFrame + "\n");
+            }
+        });
+    }
+
+    /**
+     * Ask the controller for RPM reports every intervalMs (100-5000), or 0 to let the app
+     * choose by what the motor is doing (see {@link ReportRate}). Kept across reconnections.
+     */
+    public void setReportInterval(int intervalMs) {
+        post(() -> reportRate.setFixedInterval(intervalMs));
+    }
+
+    /**
+     * The RPM report interval last asked of the controller, 0 if none on this connection;
+     * safe from any thread.
+     */
+    public int getReportInterval() {
+        return reportIntervalMs;
+    }
+
+    /**
+     * Bytes received from the controller so far; safe from any thread.
+     */
+    public long getBytesReceived() {
+        return linkIo.getBytesRead();
+    }
+
+    /**
+     * Hand every fast RPM sample to this tap too, or null to stop.
+     */
+    public void setSampleTap(SampleTap tap) {
+        post(() -> sampleTap = tap);
+    }
+
+    /**
+     * Readings for the live chart; read from any thread.
+     */
+    public ChartBuffer getChart() {
+        return chart;
+    }
+
+    /**
+     * STREAM samples received so far; safe from any thread.
+     */
+    public long getSamplesReceived() {
+        return linkIo.getSamplesRead();
+    }
+
+    /**
+     * Fast-path RPM samples handled so far, rebuilt from pulse periods or streamed; safe
+     * from any thread.
+     */
+    public long getFastRpmSamples() {
+        return fastRpmSamples;
+    }
+
+    /**
+     * Load steps caught on the high-resolution stream so far; safe from any thread.
+     */
+    public long getFastLoadSteps() {
+        return fastLoadSteps;
+    }
+
+    /**
+     * Change how fast speed changes are ramped.
+     */
+    public void setRampLimits(SetpointRamp.Limits limits) {
+        post(() -> ramp.setLimits(limits));
+    }
+
+    /**
+     * Execute a drive cycle against this connection. onFinished receives the record on the
+     * control thread, also when the run could not start or was cut short.
+     */
+    public void runDriveCycle(DriveProfile profile, Consumer<DriveCycleRecord> onFinished) {
+        post(() -> {
+            if (activeLink == null || activeRun != null) {
+                DriveCycleRecord record = new DriveCycleRecord(profile, System.nanoTime());
+                record.markAborted();
+                onFinished.accept(record);
+                return;
+            }
+            activeRun = new DriveCycleRunner(profile, fromScript, thread);
+            runFinished = onFinished;
+            stepCommandNumbers = new long[profile.getSteps().size()];
+            activeRun.start();
+        });
+    }
+
+    public void cancelDriveCycle() {
+        post(() -> {
+            if (activeRun != null) {
+                activeRun.getRecord().markAborted();
+                activeRun.cancel();
+            }
+        });
+    }
+
+    /**
+     * Set both motors' directions for a manoeuvre at the current speed: as one DRIVE frame the
+     * firmware applies to both motors at once, or with compound false as the DIR1 and DIR2
+     * commands the buttons send. Either way a SKEW query follows, so the mirror can compare
+     * the inter-motor skew of the two.
+     */
+    public void drive(DriveMacro macro, boolean compound) {
+        post(() -> {
+            if (activeLink == null) {
+                return;
+            }
+            noteDirection(macro.motor1Command());
+            noteDirection(macro.motor2Command());
+            if (compound) {
+                send(macro.frame(ramp.getCurrentSpeed()));
+            } else {
+                send(macro.motor1Command());
+                send(macro.motor2Command());
+            }
+            send("SKEW\n");
+        });
+    }
+
+    public void sendCommand(String command) {
+        post(() -> {
+            if (activeLink != null) {
+                noteDirection(command);
+                send(command);
+            }
+        });
+    }
+
+    /**
+     * Lines received from the controller so far; safe from any thread.
+     */
+    public long getLinesReceived() {
+        return linkIo.getLinesRead();
+    }
+
+    /**
+     * Commands written to the controller so far; safe from any thread.
+     */
+    public long getCommandsSent() {
+        return linkIo.getCommandsWritten();
+    }
+
+    /**
+     * Stop all three threads. The loop cannot be restarted.
+     */
+    public void shutdown() {
+        running = false;
+        linkIo.shutdown();
+        LockSupport.unpark(thread);
+    }
+
+    private void post(Runnable task) {
+        if (!fromUi.offer(task)) {
+            // The control thread is hundreds of messages behind; dropping a UI tap is the lesser evil
+            return;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    // ---- Reader thread side ----
+
+    @Override
+    public void onLinkUp(LinkIo.Link link) {
+        postFromReader(new LinkEvent(LinkEvent.UP, link.getName(), link));
+    }
+
+    @Override
+    public void onLine(String line) {
+        postFromReader(new LinkEvent(LinkEvent.LINE, line, null));
+    }
+
+    @Override
+    public void onSample(long deviceMicros, int rpm, int currentMa) {
+        long arrivalNanos = System.nanoTime();
+        // Like lines, samples must not be lost
+        while (!samplesFromReader.offer(deviceMicros, rpm, currentMa, arrivalNanos)) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(1_000_000L);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void onLinkDown(LinkIo.Link link) {
+        postFromReader(new LinkEvent(LinkEvent.DOWN, null, link));
+    }
+
+    @Override
+    public void onConnectFailed(Exception error) {
+        postFromReader(new LinkEvent(LinkEvent.FAILED, error.getMessage(), null));
+    }
+
+    private void postFromReader(LinkEvent event) {
+        // Telemetry and echoes must not be lost, so wait for room instead of dropping
+        while (!fromReader.offer(event)) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(1_000_000L);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    // ---- Control thread ----
+
+    private void run() {
+        while (running) {
+            // Samples first: those of a new link are then dropped until its UP is handled, and
+            // those of a lost link are all seen before its DOWN
+            boolean worked = samplesFromReader.drain(streamSampleSink) > 0;
+            LinkEvent event;
+            while ((event = fromReader.poll()) != null) {
+                handleLinkEvent(event);
+                worked = true;
+            }
+            Runnable task;
+            while ((task = fromUi.poll()) != null) {
+                task.run();
+                worked = true;
+            }
+            DriveProfile.Step step;
+            while ((step = fromScript.poll()) != null) {
+                applyScriptStep(step);
+                worked = true;
+            }
+            if (activeRun != null && activeRun.isFinished() && fromScript.isEmpty()
+                    && (stepsWritten == stepsSent || activeRun.getRecord().isAborted())) {
+                finishDriveCycle();
+            }
+            if (activeLink != null && compensator.onTick(nowMs())) {
+                state.updateFrom(compensator);
+                stateDirty = true;
+            }
+            if (activeLink != null) {
+                String resend = mirror.takeResend(System.nanoTime());
+                if (resend != null) {
+                    send(resend);
+                    stateDirty = true;
+                }
+                updateReportRate();
+                updateClockSync();
+            }
+            long parkNanos = IDLE_PARK_NANOS;
+            if (ramp.isActive()) {
+                long now = System.nanoTime();
+                if (now - nextTickNanos >= 0) {
+                    tick(now);
+                }
+                parkNanos = Math.max(0, nextTickNanos - System.nanoTime());
+                worked |= parkNanos == 0;
+            }
+            if (awaitingFirstWrite) {
+                checkFirstWrite();
+                // Poll the writer quickly while we wait for it to send the first command
+                parkNanos = Math.min(parkNanos, 1_000_000L);
+            }
+            if (stepsWritten < stepsSent) {
+                checkStepsWritten();
+                parkNanos = Math.min(parkNanos, 1_000_000L);
+            }
+            if (stateDirty) {
+                stateDirty = false;
+                if (activeLink != null) {
+                    updateSessionStats();
+                }
+                state.publish();
+            }
+            if (!worked) {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+    }
+
+    /**
+     * One fixed-rate step of the speed ramp.
+     */
+    private void tick(long now) {
+        double dtSeconds = (now - lastTickNanos) / 1e9;
+        lastTickNanos = now;
+        int speed = ramp.step(dtSeconds);
+        if (speed >= 0 && activeLink != null) {
+            send(SetpointRamp.speedCommand(speed));
+            anomalies.onSpeedCommand(speed);
+            observer.onSpeedCommand(speed, now);
+        }
+        nextTickNanos += CONTROL_PERIOD_NANOS;
+        if (now - nextTickNanos >= 0) {
+            // More than a whole period late: skip ahead rather than firing a burst of ticks
+            lateTicks++;
+            nextTickNanos = now + CONTROL_PERIOD_NANOS;
+        }
+    }
+
+    private void applyScriptStep(DriveProfile.Step step) {
+        if (activeRun == null || activeRun.getRecord().isAborted() || activeLink == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (step.speed >= 0) {
+            compensator.onManualSpeedChange(step.speed, now / 1_000_000L);
+            hunting.restart();
+            state.updateFrom(compensator);
+            stateDirty = true;
+            // A scripted step stays a step; the ramp would spread it over several ticks
+            ramp.reset(step.speed);
+            send(SetpointRamp.speedCommand(step.speed));
+            anomalies.onSpeedCommand(step.speed);
+            observer.onSpeedCommand(step.speed, now);
+        } else {
+            noteDirection(step.command);
+            send(step.command);
+        }
+        // Applied is when the writer puts the step's command on the link
+        stepCommandNumbers[step.index] = linkIo.getLastSentNumber();
+        stepsSent = step.index + 1;
+    }
+
+    private void checkStepsWritten() {
+        while (stepsWritten < stepsSent) {
+            long writtenNanos = linkIo.getWriteNanos(stepCommandNumbers[stepsWritten]);
+            if (writtenNanos < 0) {
+                return;   // still queued
+            }
+            if (writtenNanos > 0) {
+                activeRun.getRecord().markApplied(stepsWritten, writtenNanos);
+            }
+            stepsWritten++;
+        }
+    }
+
+    private void finishDriveCycle() {
+        stepsSent = 0;
+        stepsWritten = 0;
+        DriveCycleRecord record = activeRun.getRecord();
+        Consumer<DriveCycleRecord> callback = runFinished;
+        activeRun = null;
+        runFinished = null;
+        callback.accept(record);
+    }
+
+    private void handleLinkEvent(LinkEvent event) {
+        switch (event.type) {
+            case LinkEvent.UP:
+                activeLink = event.link;
+                compensator.reset();
+                hunting.reset();
+                torque.reset();
+                anomalies.reset();
+                state.resetReadings();
+                trip.reset(System.nanoTime());
+                state.setConnecting(false);
+                state.setConnectedDeviceName(event.text);
+                stateDirty = true;
+                ramp.reset(0);
+                mirror.reset();
+                send(SetpointRamp.speedCommand(0));
+                observer.reset();
+                observer.onSpeedCommand(0, System.nanoTime());
+                observer.onDirection(motor1Drive == 'S', System.nanoTime());
+                anomalies.onDirection(motor1Drive == 'S');
+                reportRate.reset();
+                updateReportRate();
+                // The controller keeps its trim across connections
+                traction.reset();
+                traction.onDirections(motor1Drive, motor2Drive);
+                send(traction.command());
+                send(TractionControl.REPORT_COMMAND);
+                fastDrops.reset();
+                lastCurrentMa = Float.NaN;
+                chartClockSet = false;
+                clockSync.reset();
+                updateClockSync();
+                if (pulses != null) {
+                    pulses.reset();
+                    send("PULSES1\n");
+                }
+                if (streamBatch > 0) {
+                    send("STREAM" + streamBatch + "\n");
+                }
+                awaitingFirstWrite = true;
+                disconnectRequested = false;
+                events.onConnected(event.text);
+                break;
+            case LinkEvent.DOWN:
+                if (activeLink != event.link) {
+                    break;   // a link we had already given up on
+                }
+                activeLink = null;
+                awaitingFirstWrite = false;
+                if (activeRun != null) {
+                    activeRun.getRecord().markAborted();
+                    activeRun.cancel();
+                }
+                ramp.reset(0);
+                compensator.reset();
+                hunting.reset();
+                torque.reset();
+                anomalies.reset();
+                reportRate.reset();
+                reportIntervalMs = 0;
+                traction.reset();
+                // The trip ends here; its summary stays on screen until the next connection
+                updateSessionStats();
+                mirror.reset();
+                state.resetReadings();
+                state.setConnectedDeviceName(null);
+                stateDirty = true;
+                events.onDisconnected(disconnectRequested);
+                disconnectRequested = false;
+                break;
+            case LinkEvent.FAILED:
+                state.setConnecting(false);
+                stateDirty = true;
+                events.onConnectFailed(event.text);
+                break;
+            case LinkEvent.LINE:
+                lineArrivalNanos = event.nanos;
+                handleLine(event.text);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void checkFirstWrite() {
+        long writtenNanos = linkIo.getFirstWriteNanos();
+        if (writtenNanos != 0) {
+            awaitingFirstWrite = false;
+            long ms = (writtenNanos - connectRequestedNanos) / 1_000_000L;
+            state.setTimeToFirstCommandMs(ms);
+            stateDirty = true;
+            events.onFirstCommandSent(ms);
+        }
+    }
+
+    /**
+     * Lines of data, e.g. "RPM<number>" or "CURRENT<amps>", and echoes of our commands.
+     */
+    private void handleLine(String line) {
+        if (PulseRpmReconstructor.isBatch(line)) {
+            // Most frequent line by far when streaming; after PULSES0 a few may still come
+            if (pulses != null) {
+                pulses.onBatch(line);
+            }
+        } else if (line.startsWith("M2RPM")) {
+            try {
+                handleRpm2Reading(Integer.parseInt(line.substring(5).trim()));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        } else if (line.startsWith("RPM")) {
+            String rpmStr = line.substring(3).trim();
+            try {
+                handleRpmReading(Integer.parseInt(rpmStr));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        } else if (line.startsWith("CURRENT")) {
+            String currentStr = line.substring(7).trim();
+            try {
+                double amps = Double.parseDouble(currentStr);
+                lastCurrentMa = (float) (amps * 1000);
+                torque.onCurrent(amps, lineArrivalNanos);
+                trip.onCurrent(amps);
+                stateDirty = true;
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        } else if (line.startsWith("Rate:")) {
+            try {
+                reportRate.onEcho(Integer.parseInt(line.substring(5).trim()));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        } else if (line.startsWith("Sync:")) {
+            try {
+                clockSync.onReply(line, linkIo.getPingWriteNanos(), lineArrivalNanos);
+                stateDirty = true;
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        } else if (mirror.onLine(line, System.nanoTime())) {
+            stateDirty = true;
+        }
+    }
+
+    /**
+     * One STREAM sample. Its RPM goes to the fast path unless pulse periods are streamed
+     * too; the current channel changes only with the duty, which the CURRENT lines already
+     * report to the torque estimate.
+     */
+    private void handleStreamSample(long deviceMicros, int rpm, int currentMa, long arrivalNanos) {
+        if (pulses == null) {
+            handleFastRpm(deviceMicros, rpm, currentMa, arrivalNanos);
+        }
+    }
+
+    /**
+     * One sample rebuilt from pulse periods or streamed, on the controller's clock, read by
+     * the reader thread at arrivalNanos.
+     */
+    private void handleFastRpm(long deviceMicros, double rpm, int currentMa, long arrivalNanos) {
+        fastRpmSamples++;
+        if (activeLink == null) {
+            return;
+        }
+        clockSync.onSample(deviceMicros, arrivalNanos);
+        if (sampleTap != null) {
+            sampleTap.onSample(deviceMicros, (int) Math.round(rpm), currentMa);
+        }
+        int speed = compensator.getCurrentSpeed();
+        GainSchedule.Gains gains = gainSchedule.get().get(motor1Direction, speed);
+        if (fastDrops.onSample(deviceMicros, rpm, speed, gains)) {
+            fastLoadSteps++;
+            compensator.onLoadRise(nowMs());
+            state.updateFrom(compensator);
+            stateDirty = true;
+        }
+        long chartMicros = chartTime(deviceMicros);
+        lastFastChartMicros = chartMicros;
+        addToChart(chartMicros, (float) rpm, currentMa >= 0 ? currentMa : lastCurrentMa);
+        if (deviceMicros - lastRpmDisplayMicros >= RPM_DISPLAY_INTERVAL_MICROS
+                || deviceMicros < lastRpmDisplayMicros) {
+            lastRpmDisplayMicros = deviceMicros;
+            state.setRpm((int) Math.round(rpm));
+            stateDirty = true;
+        }
+    }
+
+    private void handleRpmReading(int measuredRpm) {
+        // When the reader thread took the line off the link, not when this loop got to it
+        long now = lineArrivalNanos;
+        int speedBefore = compensator.getCurrentSpeed();
+        // Before the strategies see the reading, so a boost it prompts is sized with it
+        boolean loadEstimateRose = observer.onRpm(measuredRpm, now, reportRate.getConfirmed());
+        compensator.setLoadBoost(observer.getBoost());
+        compensator.setGainSchedule(gainSchedule.get(), motor1Direction);
+        compensator.onRpmReading(measuredRpm, now / 1_000_000L);
+        traction.onRpm1(measuredRpm);
+        boolean loadRose = torque.onRpm(measuredRpm, now);
+        if (!torque.isValid()) {
+            // No CURRENT lines from this firmware: the observer's estimate is all there is
+            loadRose = loadEstimateRose;
+        }
+        if (loadRose && compensator.getCurrentSpeed() == speedBefore) {
+            // Not already handled as an RPM drop
+            compensator.onLoadRise(now / 1_000_000L);
+        }
+        if (hunting.onSample(measuredRpm, compensator.getCurrentSpeed(), now / 1_000_000L)) {
+            compensator.setGain(hunting.getGain());
+        }
+        state.setHunting(hunting);
+        state.setTorque(torque);
+        state.setLoadEstimate(observer);
+        AnomalyDetector.Event anomaly = anomalies.onRpmReport(measuredRpm,
+                torque.isValid() ? torque.getCorrectedCurrent() : Double.NaN, now);
+        if (anomaly != null) {
+            emergencyStop(anomaly);
+        }
+        if (activeRun != null) {
+            activeRun.getRecord().addRpmSample(now, measuredRpm,
+                    compensator.getCurrentSpeed());
+        }
+        trip.onRpm(measuredRpm);
+        long nowMicros = now / 1000;
+        if (nowMicros - lastFastChartMicros > CHART_FAST_TIMEOUT_MICROS) {
+            addToChart(nowMicros, measuredRpm, lastCurrentMa);
+        }
+        state.setRpm(measuredRpm);
+        state.updateFrom(compensator);
+        stateDirty = true;
+    }
+
+    /**
+     * Motor 2's RPM, reported right after motor 1's: one sample for traction control.
+     */
+    private void handleRpm2Reading(int measuredRpm) {
+        double rpmPerPercent = observer.getUpdates() > 0 ? observer.getGain() : Double.NaN;
+        if (traction.onRpm2(measuredRpm, rpmPerPercent, lineArrivalNanos / 1_000_000L)) {
+            send(traction.command());
+        }
+        state.setTraction(traction);
+        stateDirty = true;
+    }
+
+    /**
+     * A fast sample's time on the app's clock, from {@link ClockSync} once it has answers.
+     * Until then the offset is the smallest delay seen so far, which is the sample that
+     * waited least in the link, and it may creep up a little per sample so that a device
+     * clock running slow cannot leave it behind.
+     */
+    private long chartTime(long deviceMicros) {
+        if (clockSync.isSynced()) {
+            return clockSync.toAppMicros(deviceMicros);
+        }
+        long offset = System.nanoTime() / 1000 - deviceMicros;
+        if (!chartClockSet || offset < chartOffsetMicros) {
+            chartClockSet = true;
+            chartOffsetMicros = offset;
+        } else {
+            chartOffsetMicros += CHART_OFFSET_CREEP_MICROS;
+        }
+        return deviceMicros + chartOffsetMicros;
+    }
+
+    private void addToChart(long appMicros, float rpm, float currentMa) {
+        // The chart needs its times in order; fast and reported readings may interleave
+        lastChartMicros = Math.max(lastChartMicros, appMicros);
+        chart.append(lastChartMicros, rpm, compensator.getCurrentSpeed(), currentMa,
+                compensator.isCompensating() ? ChartBuffer.FLAG_COMPENSATING : 0);
+    }
+
+    /**
+     * Ask for fast RPM reports while compensation or the ramp is at work, and slow ones while
+     * stopped. Called every pass of the loop; sends only when the interval changes.
+     */
+    private void updateReportRate() {
+        int interval = reportRate.update(
+                compensator.isCompensating() || ramp.isActive() || traction.isActive(),
+                compensator.getCurrentSpeed() == 0, nowMs());
+        if (interval > 0) {
+            reportIntervalMs = interval;
+            send(ReportRate.command(interval));
+        }
+    }
+
+    /**
+     * Ping the controller for {@link ClockSync}. Called every pass of the loop while
+     * connected; sends only when a ping is due.
+     */
+    private void updateClockSync() {
+        String ping = clockSync.update(System.nanoTime());
+        if (ping != null) {
+            send(ping);
+        }
+    }
+
+    // Every compensation change marks the state dirty, so catching them at publish is enough
+    private void updateSessionStats() {
+        long now = System.nanoTime();
+        trip.onCompensation(compensator.isCompensating(), now);
+        state.setTrip(trip.getSummary(now));
+        state.setDevice(mirror.getStatus());
+        state.setClock(clockSync.getStatus());
+    }
+
+    /**
+     * Stop the motors now: no ramp, and ahead of any command still waiting to be written.
+     * The speed stays at 0 until the user picks a new one.
+     */
+    private void emergencyStop(AnomalyDetector.Event anomaly) {
+        if (activeRun != null) {
+            activeRun.getRecord().markAborted();
+            activeRun.cancel();
+        }
+        compensator.onManualSpeedChange(0, nowMs());
+        hunting.restart();
+        ramp.reset(0);
+        long now = System.nanoTime();
+        for (String command : STOP_COMMANDS) {
+            mirror.onSent(command, now, true);
+        }
+        linkIo.sendUrgent(STOP_COMMANDS);
+        for (String command : STOP_COMMANDS) {
+            noteDirection(command);
+        }
+        anomalies.onSpeedCommand(0);
+        observer.onSpeedCommand(0, now);
+        state.setFault(anomaly.getKind().name());
+        events.onAnomaly(anomaly);
+    }
+
+    // Every command to the controller goes through here, so the mirror sees it
+    private void send(String command) {
+        mirror.onSent(command, System.nanoTime(), false);
+        linkIo.send(command);
+    }
+
+    // Motor 1 carries the RPM sensor, so its direction picks the schedule. A turn or a stop
+    // takes traction control's trim away at once.
+    private void noteDirection(String command) {
+        if (command.startsWith("DIR1") && command.length() > 4) {
+            char direction = command.charAt(4);
+            if (direction == 'F' || direction == 'R') {
+                motor1Direction = direction;
+            }
+            motor1Drive = direction;
+            observer.onDirection(direction == 'S', System.nanoTime());
+            anomalies.onDirection(direction == 'S');
+        } else if (command.startsWith("DIR2") && command.length() > 4) {
+            motor2Drive = command.charAt(4);
+        } else {
+            return;
+        }
+        if (activeLink != null && traction.onDirections(motor1Drive, motor2Drive)) {
+            send(traction.command());
+        }
+    }
+
+    /**
+     * Speed requested by the compensator or the user; reached through the ramp.
+     */
+    private void sendSpeedCommand(int speed) {
+        if (activeLink == null) {
+            return;
+        }
+        if (!ramp.isActive()) {
+            // Starting from rest: first tick one period from now
+            lastTickNanos = System.nanoTime();
+            nextTickNanos = lastTickNanos + CONTROL_PERIOD_NANOS;
+        }
+        ramp.setTarget(speed);
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000L;
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.motorcontroller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds live controllers among a list of candidates (usually the bonded Bluetooth devices)
+ * by probing them in parallel. Each probe opens a link, sends "PING" and waits for
+ * "PONG MotorController". Firmware that predates the handshake answers "Unknown command",
+ * which still tells us a controller is listening.
+ *
+ * Every probe has its own deadline, so a discovery run takes about as long as the slowest
+ * probe in a batch of MAX_PARALLEL_PROBES, not the sum of all connect timeouts.
+ */
+public class ControllerDiscovery {
+
+    static final long PROBE_TIMEOUT_MS = 4000;
+    static final int MAX_PARALLEL_PROBES = 4;
+    // On top of the probe timeouts, for the last probes to close their links and return
+    static final long RESULT_SLACK_MS = 1000;
+    static final String PONG_REPLY = "PONG MotorController";
+
+    /**
+     * How a candidate answered the probe, best first.
+     */
+    public enum Kind {
+        IDENTIFIED,    // answered PONG
+        LEGACY,        // answered, but with firmware that does not know PING
+        SILENT,        // link opened but nothing recognisable came back
+        UNREACHABLE    // could not open a link
+    }
+
+    /**
+     * Something we could connect to.
+     */
+    public static final class Candidate {
+        final String name;
+        final LinkIo.Connector connector;
+
+        public Candidate(String name, LinkIo.Connector connector) {
+            this.name = name;
+            this.connector = connector;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LinkIo.Connector getConnector() {
+            return connector;
+        }
+    }
+
+    /**
+     * Outcome of probing one candidate.
+     */
+    public static final class Result implements Comparable<Result> {
+        final Candidate candidate;
+        final Kind kind;
+        final long latencyMs;   // from starting to connect until the reply, -1 if none
+
+        Result(Candidate candidate, Kind kind, long latencyMs) {
+            this.candidate = candidate;
+            this.kind = kind;
+            this.latencyMs = latencyMs;
+        }
+
+        public Candidate getCandidate() {
+            return candidate;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+
+        /**
+         * True if a controller answered.
+         */
+        public boolean isLive() {
+            return kind == Kind.IDENTIFIED || kind == Kind.LEGACY;
+        }
+
+        @Override
+        public int compareTo(Result other) {
+            if (kind != other.kind) {
+                return kind.compareTo(other.kind);
+            }
+            return Long.compare(latencyMs, other.latencyMs);
+        }
+    }
+
+    /**
+     * Probe every candidate and return the results ranked: identified controllers by handshake
+     * latency first, then legacy ones, then the rest. Blocks; call from a background thread.
+     */
+    public static List<Result> probeAll(List<Candidate> candidates) {
+        List<Result> results = new ArrayList<>();
+        if (candidates.isEmpty()) {
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(candidates.size(), MAX_PARALLEL_PROBES));
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+        // Probes run in batches of MAX_PARALLEL_PROBES, each bounded by its own timeout
+        int batches = (candidates.size() + MAX_PARALLEL_PROBES - 1) / MAX_PARALLEL_PROBES;
+        long deadline = System.nanoTime()
+                + (batches * PROBE_TIMEOUT_MS + RESULT_SLACK_MS) * 1_000_000L;
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                futures.add(pool.submit(() -> probe(candidate, watchdog)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    long remainingNanos = Math.max(0, deadline - System.nanoTime());
+                    results.add(futures.get(i).get(remainingNanos, TimeUnit.NANOSECONDS));
+                } catch (Exception e) {
+                    results.add(new Result(candidates.get(i), Kind.UNREACHABLE, -1));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            watchdog.shutdownNow();
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    private static Result probe(Candidate candidate, ScheduledExecutorService watchdog) {
+        long start = System.nanoTime();
+        // The watchdog aborts the connect, or closes the link, once the probe runs out of time
+        final LinkIo.Link[] opened = new LinkIo.Link[1];
+        final boolean[] expired = new boolean[1];   // guarded by opened, like opened[0]
+        ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+            candidate.connector.abort();
+            synchronized (opened) {
+                expired[0] = true;
+                if (opened[0] != null) {
+                    closeQuietly(opened[0]);
+                }
+            }
+        }, PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        LinkIo.Link link;
+        try {
+            link = candidate.connector.open();
+        } catch (IOException | SecurityException e) {
+            timeout.cancel(false);
+            return new Result(candidate, Kind.UNREACHABLE, -1);
+        }
+        boolean tooLate;
+        synchronized (opened) {
+            opened[0] = link;
+            tooLate = expired[0];
+        }
+        if (tooLate) {
+            // The watchdog fired between open() returning and the link being published, so
+            // it had nothing to abort or close; a silent device would block readLine() forever
+            closeQuietly(link);
+            return new Result(candidate, Kind.SILENT, -1);
+        }
+        try {
+            link.getOutputStream().write("PING\n".getBytes());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(link.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long latencyMs = (System.nanoTime() - start) / 1_000_000L;
+                if (line.trim().equals(PONG_REPLY)) {
+                    return new Result(candidate, Kind.IDENTIFIED, latencyMs);
+                }
+                if (line.startsWith("Unknown command")) {
+                    return new Result(candidate, Kind.LEGACY, latencyMs);
+                }
+                // Telemetry (RPM/CURRENT) may arrive before the reply; keep reading
+            }
+        } catch (IOException e) {
+            // Timed out or dropped
+        } finally {
+            timeout.cancel(false);
+            closeQuietly(link);
+        }
+        return new Result(candidate, Kind.SILENT, -1);
+    }
+
+    private static void closeQuietly(LinkIo.Link link) {
+        try {
+            link.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.example.motorcontroller;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Everything the UI shows about the controller. Owned by MotorControlService, so it survives
+ * Activity recreation; an Activity reads it when it attaches and listens for changes after that.
+ *
+ * The control thread is the only writer. It edits the draft fields and then calls
+ * {@link #publish()}, which swaps in an immutable {@link Snapshot} and notifies listeners
+ * on the UI executor. Readers only ever see whole snapshots.
+ */
+public class ControllerState {
+
+    /**
+     * Called on the UI executor whenever a new snapshot is published.
+     */
+    public interface Listener {
+        void onStateChanged(Snapshot state);
+    }
+
+    /**
+     * One consistent view of the controller.
+     */
+    public static final class Snapshot {
+        private final String connectedDeviceName;   // null while not connected
+        private final boolean connecting;
+        private final int rpm;
+        private final int speed;
+        private final boolean compensating;
+        private final String status;
+        private final String consistency;
+        private final long timeToFirstCommandMs;   // -1 until measured for this connection
+        private final double torqueNm;            // NaN until CURRENT and RPM are both known
+        private final double loadNm;
+        private final double loadRpm;             // NaN until the observer has an estimate
+        private final String fault;               // anomaly that stopped the motor, or null
+        private final double huntingHz;           // NaN while not hunting
+        private final double compensationGain;
+        private final int rpm2;                   // motor 2, -1 until reported
+        private final double slipRatio;           // NaN unless both motors run the same way
+        private final int tractionTrim;
+        private final boolean motor2Fault;
+        private final List<CompensationHost.Stats> strategies;   // active first, then shadows
+        private final TripStats.Summary trip;
+        private final DeviceMirror.Status device;
+        private final ClockSync.Status clock;
+
+        Snapshot(String connectedDeviceName, boolean connecting, int rpm, int speed,
+                 boolean compensating, String status, String consistency,
+                 long timeToFirstCommandMs, double torqueNm, double loadNm, double loadRpm,
+                 String fault, double huntingHz, double compensationGain, int rpm2, double slipRatio,
+                 int tractionTrim, boolean motor2Fault, List<CompensationHost.Stats> strategies,
+                 TripStats.Summary trip, DeviceMirror.Status device, ClockSync.Status clock) {
+            this.connectedDeviceName = connectedDeviceName;
+            this.connecting = connecting;
+            this.rpm = rpm;
+            this.speed = speed;
+            this.compensating = compensating;
+            this.status = status;
+            this.consistency = consistency;
+            this.timeToFirstCommandMs = timeToFirstCommandMs;
+            this.torqueNm = torqueNm;
+            this.loadNm = loadNm;
+            this.loadRpm = loadRpm;
+            this.fault = fault;
+            this.huntingHz = huntingHz;
+            this.compensationGain = compensationGain;
+            this.rpm2 = rpm2;
+            this.slipRatio = slipRatio;
+            this.tractionTrim = tractionTrim;
+            this.motor2Fault = motor2Fault;
+            this.strategies = strategies;
+            this.trip = trip;
+            this.device = device;
+            this.clock = clock;
+        }
+
+        public boolean isConnected() {
+            return connectedDeviceName != null;
+        }
+
+        public boolean isConnecting() {
+            return connecting;
+        }
+
+        public String getConnectedDeviceName() {
+            return connectedDeviceName;
+        }
+
+        public int getRpm() {
+            return rpm;
+        }
+
+        public int getSpeed() {
+            return speed;
+        }
+
+        public boolean isCompensating() {
+            return compensating;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getConsistency() {
+            return consistency;
+        }
+
+        public long getTimeToFirstCommandMs() {
+            return timeToFirstCommandMs;
+        }
+
+        public boolean hasTorque() {
+            return !Double.isNaN(torqueNm);
+        }
+
+        public double getTorqueNm() {
+            return torqueNm;
+        }
+
+        /**
+         * Torque beyond what the unloaded motor needs at this speed.
+         */
+        public double getLoadNm() {
+            return loadNm;
+        }
+
+        /**
+         * RPM the load takes away, estimated from the speed commands and RPM alone (see
+         * {@link DisturbanceObserver}); NaN until estimated.
+         */
+        public double getLoadRpm() {
+            return loadRpm;
+        }
+
+        public String getFault() {
+            return fault;
+        }
+
+        public boolean isHunting() {
+            return !Double.isNaN(huntingHz);
+        }
+
+        /**
+         * Frequency at which compensation is bouncing the speed; NaN while it is not.
+         */
+        public double getHuntingHz() {
+            return huntingHz;
+        }
+
+        /**
+         * Factor applied to the compensation increment to damp hunting; 1 when undamped.
+         */
+        public double getCompensationGain() {
+            return compensationGain;
+        }
+
+        /**
+         * Motor 2's RPM, -1 if the controller does not report it.
+         */
+        public int getRpm2() {
+            return rpm2;
+        }
+
+        /**
+         * RPM gap between the motors as a share of the faster one; NaN while turning or
+         * stopped.
+         */
+        public double getSlipRatio() {
+            return slipRatio;
+        }
+
+        /**
+         * Percent traction control adds to motor 2's speed to match motor 1.
+         */
+        public int getTractionTrim() {
+            return tractionTrim;
+        }
+
+        /**
+         * Motor 2 reads 0 RPM while motor 1 turns: its sensor is lost or the motor stalled.
+         */
+        public boolean isMotor2Fault() {
+            return motor2Fault;
+        }
+
+        /**
+         * The active compensation strategy first, then any running in shadow mode. Empty
+         * until the first reading.
+         */
+        public List<CompensationHost.Stats> getStrategies() {
+            return strategies;
+        }
+
+        /**
+         * Statistics of the current connection, or of the last one while disconnected.
+         */
+        public TripStats.Summary getTrip() {
+            return trip;
+        }
+
+        /**
+         * What the controller has confirmed running, from its echoes of our commands.
+         */
+        public DeviceMirror.Status getDevice() {
+            return device;
+        }
+
+        /**
+         * The controller's clock against the app's, and how late its samples arrive.
+         */
+        public ClockSync.Status getClock() {
+            return clock;
+        }
+    }
+
+    private final Executor uiExecutor;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Runnable notifyTask = this::notifyListeners;
+
+    private volatile Snapshot snapshot = new Snapshot(null, false, 0, 0, false, "N/A", "Unknown", -1,
+            Double.NaN, Double.NaN, Double.NaN, null, Double.NaN, 1.0, -1, Double.NaN, 0, false,
+            Collections.emptyList(), TripStats.Summary.EMPTY, DeviceMirror.Status.EMPTY, ClockSync.Status.EMPTY);
+
+    // Draft fields, touched only by the control thread
+    private String connectedDeviceName = null;
+    private boolean connecting = false;
+    private int rpm = 0;
+    private int speed = 0;
+    private boolean compensating = false;
+    private String status = "N/A";
+    private String consistency = "Unknown";
+    private long timeToFirstCommandMs = -1;
+    private double torqueNm = Double.NaN;
+    private double loadNm = Double.NaN;
+    private double loadRpm = Double.NaN;
+    private String fault = null;
+    private double huntingHz = Double.NaN;
+    private double compensationGain = 1.0;
+    private int rpm2 = -1;
+    private double slipRatio = Double.NaN;
+    private int tractionTrim = 0;
+    private boolean motor2Fault = false;
+    private List<CompensationHost.Stats> strategies = Collections.emptyList();
+    private TripStats.Summary trip = TripStats.Summary.EMPTY;
+    private DeviceMirror.Status device = DeviceMirror.Status.EMPTY;
+    private ClockSync.Status clock = ClockSync.Status.EMPTY;
+
+    public ControllerState(Executor uiExecutor) {
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Must be called on the UI executor. The listener immediately receives the current snapshot.
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+        listener.onStateChanged(snapshot);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Make the draft visible to readers and tell listeners about it.
+     */
+    void publish() {
+        snapshot = new Snapshot(connectedDeviceName, connecting, rpm, speed,
+                compensating, status, consistency, timeToFirstCommandMs, torqueNm, loadNm, loadRpm,
+                fault, huntingHz, compensationGain, rpm2, slipRatio, tractionTrim, motor2Fault,
+                strategies, trip, device, clock);
+        uiExecutor.execute(notifyTask);
+    }
+
+    private void notifyListeners() {
+        Snapshot current = snapshot;
+        for (Listener listener : listeners) {
+            listener.onStateChanged(current);
+        }
+    }
+
+    void setConnecting(boolean connecting) {
+        this.connecting = connecting;
+    }
+
+    void setConnectedDeviceName(String connectedDeviceName) {
+        this.connectedDeviceName = connectedDeviceName;
+    }
+
+    void setTimeToFirstCommandMs(long timeToFirstCommandMs) {
+        this.timeToFirstCommandMs = timeToFirstCommandMs;
+    }
+
+    void setRpm(int rpm) {
+        this.rpm = rpm;
+    }
+
+    void setTorque(TorqueEstimator estimator) {
+        torqueNm = estimator.isValid() ? estimator.getTorqueNm() : Double.NaN;
+        loadNm = estimator.isValid() ? estimator.getLoadNm() : Double.NaN;
+    }
+
+    void setLoadEstimate(DisturbanceObserver observer) {
+        loadRpm = observer.getLoadRpm();
+    }
+
+    void setTrip(TripStats.Summary trip) {
+        this.trip = trip;
+    }
+
+    void setDevice(DeviceMirror.Status device) {
+        this.device = device;
+    }
+
+    void setClock(ClockSync.Status clock) {
+        this.clock = clock;
+    }
+
+    void setHunting(HuntingDetector detector) {
+        huntingHz = detector.getFrequencyHz();
+        compensationGain = detector.getGain();
+    }
+
+    void setTraction(TractionControl traction) {
+        rpm2 = traction.getRpm2();
+        slipRatio = traction.getSlipRatio();
+        tractionTrim = traction.getTrim();
+        motor2Fault = traction.isMotor2Fault();
+    }
+
+    void setFault(String fault) {
+        this.fault = fault;
+    }
+
+    /**
+     * Copy the labels and speed the active strategy currently holds, and the statistics of
+     * all strategies.
+     */
+    void updateFrom(CompensationHost compensator) {
+        speed = compensator.getCurrentSpeed();
+        compensating = compensator.isCompensating();
+        status = compensator.getStatus();
+        consistency = compensator.getConsistencyStatus();
+        strategies = compensator.getStats();
+    }
+
+    void resetReadings() {
+        rpm = 0;
+        speed = 0;
+        compensating = false;
+        status = "N/A";
+        consistency = "Unknown";
+        timeToFirstCommandMs = -1;
+        torqueNm = Double.NaN;
+        loadNm = Double.NaN;
+        loadRpm = Double.NaN;
+        fault = null;
+        huntingHz = Double.NaN;
+        compensationGain = 1.0;
+        rpm2 = -1;
+        slipRatio = Double.NaN;
+        tractionTrim = 0;
+        motor2Fault = false;
+    }
+}
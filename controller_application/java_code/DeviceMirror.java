@@ -0,0 +1,518 @@
+package com.example.motorcontroller;
+
+import java.util.Locale;
+
+/**
+ * What the controller is actually running, as far as its echo lines tell. The firmware
+ * answers every command with one line ("Speed set to: 40", "Motor 1 direction: F",
+ * "Invalid speed value (0-100)", ...), in the order the commands arrived. For the speed and
+ * each motor's direction the mirror keeps
+ *
+ *   desired   - the last value the app sent
+ *   in flight - values sent but not yet echoed, with their send times
+ *   confirmed - the last value the firmware echoed
+ *
+ * An echo confirms the oldest command in flight with that value; older ones in flight were
+ * overtaken by it and are counted as lost. A command that sees no echo within
+ * CONFIRM_TIMEOUT_NANOS is lost too. When nothing is left in flight and the confirmed value
+ * differs from the desired one, {@link #takeResend} hands back the one command that fixes
+ * it, never a dump of the whole state. Values the firmware rejected are not resent.
+ *
+ * A compound DRIVE frame (see {@link DriveMacro}) counts as both directions and the speed.
+ * The mirror also keeps the inter-motor skew: after changing both directions the app sends
+ * SKEW and the firmware answers "Skew: <us>", the time between the last changes to motor 1
+ * and motor 2. Answers are filed under whether the directions went out as one frame or as
+ * two commands, so the two can be compared on the same link.
+ *
+ * Used only on the control thread. Tracking a command or an echo does not allocate.
+ */
+public class DeviceMirror {
+
+    static final long CONFIRM_TIMEOUT_NANOS = 1_500_000_000L;
+    static final int MAX_RESENDS = 3;   // per divergence, before giving up until the next change
+    static final int IN_FLIGHT_CAPACITY = 64;
+    static final int UNKNOWN = -1;
+    private static final int SKEW_QUERIES = 8;   // SKEWs awaiting their answer
+
+    private static final String[] DIR1_COMMANDS = {"DIR1F\n", "DIR1R\n", "DIR1S\n"};
+    private static final String[] DIR2_COMMANDS = {"DIR2F\n", "DIR2R\n", "DIR2S\n"};
+
+    /**
+     * One mirrored setting: the speed, or one motor's direction.
+     */
+    static final class Register {
+        int desired = UNKNOWN;
+        int confirmed = UNKNOWN;
+        // In-flight values and send times, oldest at head
+        final int[] values = new int[IN_FLIGHT_CAPACITY];
+        final long[] sentNanos = new long[IN_FLIGHT_CAPACITY];
+        int head = 0;
+        int size = 0;
+        int resends = 0;
+        boolean rejected = false;   // the firmware refused the desired value
+
+        void add(int value, long nanos) {
+            if (size == IN_FLIGHT_CAPACITY) {
+                head = (head + 1) % IN_FLIGHT_CAPACITY;   // far too many unanswered; forget the oldest
+                size--;
+            }
+            int at = (head + size) % IN_FLIGHT_CAPACITY;
+            values[at] = value;
+            sentNanos[at] = nanos;
+            size++;
+        }
+
+        void dropHead() {
+            head = (head + 1) % IN_FLIGHT_CAPACITY;
+            size--;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+
+        boolean isDiverged() {
+            return size == 0 && desired != UNKNOWN && confirmed != desired && !rejected;
+        }
+    }
+
+    /**
+     * Counters and latencies for the UI. Immutable.
+     */
+    public static final class Status {
+        static final Status EMPTY = new Status(UNKNOWN, UNKNOWN, UNKNOWN, 0, 0, 0, 0, 0,
+                Double.NaN, Double.NaN, 0, 0, Double.NaN, 0, 0, Double.NaN, 0);
+
+        private final int speed;
+        private final int direction1;
+        private final int direction2;
+        private final int inFlight;
+        private final long confirmedCount;
+        private final long lost;
+        private final long rejected;
+        private final long resends;
+        private final double latencyP50Ms;
+        private final double latencyP95Ms;
+        private final long maxLatencyMs;
+        private final long separateSkews;
+        private final double separateSkewP50Micros;
+        private final long separateSkewMaxMicros;
+        private final long compoundSkews;
+        private final double compoundSkewP50Micros;
+        private final long compoundSkewMaxMicros;
+
+        Status(int speed, int direction1, int direction2, int inFlight, long confirmedCount,
+               long lost, long rejected, long resends, double latencyP50Ms, double latencyP95Ms,
+               long maxLatencyMs, long separateSkews, double separateSkewP50Micros,
+               long separateSkewMaxMicros, long compoundSkews, double compoundSkewP50Micros,
+               long compoundSkewMaxMicros) {
+            this.speed = speed;
+            this.direction1 = direction1;
+            this.direction2 = direction2;
+            this.inFlight = inFlight;
+            this.confirmedCount = confirmedCount;
+            this.lost = lost;
+            this.rejected = rejected;
+            this.resends = resends;
+            this.latencyP50Ms = latencyP50Ms;
+            this.latencyP95Ms = latencyP95Ms;
+            this.maxLatencyMs = maxLatencyMs;
+            this.separateSkews = separateSkews;
+            this.separateSkewP50Micros = separateSkewP50Micros;
+            this.separateSkewMaxMicros = separateSkewMaxMicros;
+            this.compoundSkews = compoundSkews;
+            this.compoundSkewP50Micros = compoundSkewP50Micros;
+            this.compoundSkewMaxMicros = compoundSkewMaxMicros;
+        }
+
+        /**
+         * Speed the firmware last confirmed; UNKNOWN until it has.
+         */
+        public int getSpeed() {
+            return speed;
+        }
+
+        /**
+         * 'F', 'R' or 'S' as last confirmed, UNKNOWN until then.
+         */
+        public int getDirection1() {
+            return direction1;
+        }
+
+        public int getDirection2() {
+            return direction2;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getConfirmedCount() {
+            return confirmedCount;
+        }
+
+        public long getLost() {
+            return lost;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getResends() {
+            return resends;
+        }
+
+        public double getLatencyP50Ms() {
+            return latencyP50Ms;
+        }
+
+        public double getLatencyP95Ms() {
+            return latencyP95Ms;
+        }
+
+        public long getMaxLatencyMs() {
+            return maxLatencyMs;
+        }
+
+        /**
+         * Skew measurements after directions sent as two commands, and their median and
+         * largest absolute skew.
+         */
+        public long getSeparateSkews() {
+            return separateSkews;
+        }
+
+        public double getSeparateSkewP50Micros() {
+            return separateSkewP50Micros;
+        }
+
+        public long getSeparateSkewMaxMicros() {
+            return separateSkewMaxMicros;
+        }
+
+        /**
+         * The same after directions sent as one DRIVE frame.
+         */
+        public long getCompoundSkews() {
+            return compoundSkews;
+        }
+
+        public double getCompoundSkewP50Micros() {
+            return compoundSkewP50Micros;
+        }
+
+        public long getCompoundSkewMaxMicros() {
+            return compoundSkewMaxMicros;
+        }
+
+        @Override
+        public String toString() {
+            String text = String.format(Locale.US, "Device: SPEED%s %s/%s, %d in flight, "
+                            + "confirm p50/p95 %.0f/%.0f ms, %d lost, %d rejected, %d resent",
+                    speed == UNKNOWN ? "?" : String.valueOf(speed),
+                    direction1 == UNKNOWN ? "?" : String.valueOf((char) direction1),
+                    direction2 == UNKNOWN ? "?" : String.valueOf((char) direction2),
+                    inFlight, latencyP50Ms, latencyP95Ms, lost, rejected, resends);
+            if (separateSkews > 0) {
+                text += String.format(Locale.US, ", skew separate p50/max %.0f/%d us (%d)",
+                        separateSkewP50Micros, separateSkewMaxMicros, separateSkews);
+            }
+            if (compoundSkews > 0) {
+                text += String.format(Locale.US, ", skew compound p50/max %.0f/%d us (%d)",
+                        compoundSkewP50Micros, compoundSkewMaxMicros, compoundSkews);
+            }
+            return text;
+        }
+    }
+
+    private final Register speed = new Register();
+    private final Register direction1 = new Register();
+    private final Register direction2 = new Register();
+    private final Register[] registers = {speed, direction1, direction2};
+    private final P2Quantile latencyP50 = new P2Quantile(0.5);
+    private final P2Quantile latencyP95 = new P2Quantile(0.95);
+    private long maxLatencyNanos = 0;
+    private long confirmedCount = 0;
+    private long lost = 0;
+    private long rejected = 0;
+    private long resends = 0;
+    private boolean changed = false;
+    private Status status = Status.EMPTY;
+
+    // Skew: how the directions last went out, and the same for each SKEW still unanswered
+    private boolean directionsCompound = false;
+    private final boolean[] skewQueryCompound = new boolean[SKEW_QUERIES];
+    private int skewQueryHead = 0;
+    private int skewQueries = 0;
+    private final P2Quantile separateSkewP50 = new P2Quantile(0.5);
+    private final P2Quantile compoundSkewP50 = new P2Quantile(0.5);
+    private long separateSkewMax = 0;
+    private long compoundSkewMax = 0;
+
+    /**
+     * Forget everything, e.g. for a new connection: the firmware's state is unknown again.
+     */
+    public void reset() {
+        for (Register register : registers) {
+            register.desired = UNKNOWN;
+            register.confirmed = UNKNOWN;
+            register.resends = 0;
+            register.rejected = false;
+            register.clear();
+        }
+        latencyP50.reset();
+        latencyP95.reset();
+        maxLatencyNanos = 0;
+        directionsCompound = false;
+        skewQueryHead = 0;
+        skewQueries = 0;
+        separateSkewP50.reset();
+        compoundSkewP50.reset();
+        separateSkewMax = 0;
+        compoundSkewMax = 0;
+        confirmedCount = 0;
+        lost = 0;
+        rejected = 0;
+        resends = 0;
+        changed = false;
+        status = Status.EMPTY;
+    }
+
+    /**
+     * A command was queued for the controller. Commands sent with urgency overtake the ones
+     * queued before them, which may then never be written, so those stop being waited for.
+     */
+    public void onSent(String command, long nowNanos, boolean urgent) {
+        if (command.startsWith("SPEED")) {
+            track(speed, parseSpeed(command), nowNanos, urgent);
+        } else if (command.startsWith("DIR1") && command.length() > 4) {
+            directionsCompound = false;
+            track(direction1, command.charAt(4), nowNanos, urgent);
+        } else if (command.startsWith("DIR2") && command.length() > 4) {
+            directionsCompound = false;
+            track(direction2, command.charAt(4), nowNanos, urgent);
+        } else if (command.startsWith("DRIVE") && command.length() > 7) {
+            directionsCompound = true;
+            track(direction1, command.charAt(5), nowNanos, urgent);
+            track(direction2, command.charAt(6), nowNanos, urgent);
+            track(speed, parseInt(command, 7), nowNanos, urgent);
+        } else if (command.startsWith("SKEW")) {
+            if (skewQueries == SKEW_QUERIES) {
+                skewQueryHead = (skewQueryHead + 1) % SKEW_QUERIES;   // never answered
+                skewQueries--;
+            }
+            skewQueryCompound[(skewQueryHead + skewQueries) % SKEW_QUERIES] = directionsCompound;
+            skewQueries++;
+        }
+    }
+
+    private void track(Register register, int value, long nowNanos, boolean urgent) {
+        if (urgent) {
+            register.clear();
+        }
+        if (value != register.desired) {
+            register.resends = 0;
+            register.rejected = false;
+        }
+        register.desired = value;
+        register.add(value, nowNanos);
+        changed = true;
+    }
+
+    /**
+     * Look for an echo in a line from the controller.
+     *
+     * @return true if the line was an echo
+     */
+    public boolean onLine(String line, long nowNanos) {
+        if (line.startsWith("Speed set to:")) {
+            confirm(speed, parseInt(line, "Speed set to:".length()), nowNanos);
+        } else if (line.startsWith("Motor 1 direction:")) {
+            confirm(direction1, lastChar(line), nowNanos);
+        } else if (line.startsWith("Motor 2 direction:")) {
+            confirm(direction2, lastChar(line), nowNanos);
+        } else if (line.startsWith("Invalid speed value")) {
+            reject(speed);
+        } else if (line.startsWith("Invalid direction for Motor 1")) {
+            reject(direction1);
+        } else if (line.startsWith("Invalid direction for Motor 2")) {
+            reject(direction2);
+        } else if (line.startsWith("Invalid drive command")) {
+            reject(direction1);
+            reject(direction2);
+            reject(speed);
+        } else if (line.startsWith("Skew:")) {
+            onSkew(parseSigned(line, "Skew:".length()));
+        } else {
+            return false;
+        }
+        changed = true;
+        return true;
+    }
+
+    private void confirm(Register register, int value, long nowNanos) {
+        register.confirmed = value;
+        for (int i = 0; i < register.size; i++) {
+            int at = (register.head + i) % IN_FLIGHT_CAPACITY;
+            if (register.values[at] != value) {
+                continue;
+            }
+            // Everything sent before it got overtaken or lost on the way
+            for (int j = 0; j < i; j++) {
+                register.dropHead();
+                lost++;
+            }
+            long latency = nowNanos - register.sentNanos[register.head];
+            register.dropHead();
+            latencyP50.add(latency / 1e6);
+            latencyP95.add(latency / 1e6);
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            confirmedCount++;
+            if (value == register.desired) {
+                register.resends = 0;
+            }
+            return;
+        }
+        // An echo nothing in flight asked for: still what the device runs now
+    }
+
+    private void onSkew(long micros) {
+        if (skewQueries == 0 || micros == Long.MIN_VALUE) {
+            return;   // not ours, or unreadable
+        }
+        boolean compound = skewQueryCompound[skewQueryHead];
+        skewQueryHead = (skewQueryHead + 1) % SKEW_QUERIES;
+        skewQueries--;
+        long skew = Math.abs(micros);
+        if (compound) {
+            compoundSkewP50.add(skew);
+            compoundSkewMax = Math.max(compoundSkewMax, skew);
+        } else {
+            separateSkewP50.add(skew);
+            separateSkewMax = Math.max(separateSkewMax, skew);
+        }
+    }
+
+    private void reject(Register register) {
+        if (register.size > 0) {
+            int refused = register.values[register.head];
+            register.dropHead();
+            if (refused == register.desired) {
+                register.rejected = true;
+            }
+        }
+        rejected++;
+    }
+
+    /**
+     * Expire unanswered commands and return the command that brings one diverged setting
+     * back in line, or null if all agree. Call regularly; cheap when nothing is in flight.
+     */
+    public String takeResend(long nowNanos) {
+        for (Register register : registers) {
+            while (register.size > 0
+                    && nowNanos - register.sentNanos[register.head] > CONFIRM_TIMEOUT_NANOS) {
+                register.dropHead();
+                lost++;
+                changed = true;
+            }
+        }
+        for (Register register : registers) {
+            if (register.isDiverged() && register.resends < MAX_RESENDS) {
+                register.resends++;
+                resends++;
+                changed = true;
+                return command(register);
+            }
+        }
+        return null;
+    }
+
+    private String command(Register register) {
+        if (register == speed) {
+            return SetpointRamp.speedCommand(register.desired);
+        }
+        String[] commands = register == direction1 ? DIR1_COMMANDS : DIR2_COMMANDS;
+        int index = register.desired == 'F' ? 0 : register.desired == 'R' ? 1 : 2;
+        return commands[index];
+    }
+
+    /**
+     * Speed the firmware last confirmed, UNKNOWN until it has.
+     */
+    public int getConfirmedSpeed() {
+        return speed.confirmed;
+    }
+
+    /**
+     * Commands still waiting for their echo.
+     */
+    public int getInFlight() {
+        return speed.size + direction1.size + direction2.size;
+    }
+
+    /**
+     * Counters and latencies; the same object as last time if nothing happened since.
+     */
+    public Status getStatus() {
+        if (!changed) {
+            return status;
+        }
+        changed = false;
+        status = new Status(speed.confirmed, direction1.confirmed, direction2.confirmed,
+                getInFlight(), confirmedCount, lost, rejected, resends,
+                latencyP50.getEstimate(), latencyP95.getEstimate(), maxLatencyNanos / 1_000_000L,
+                separateSkewP50.getCount(), separateSkewP50.getEstimate(), separateSkewMax,
+                compoundSkewP50.getCount(), compoundSkewP50.getEstimate(), compoundSkewMax);
+        return status;
+    }
+
+    // "SPEED<n>\n" without building a substring
+    private static int parseSpeed(String command) {
+        return parseInt(command, 5);
+    }
+
+    private static int parseInt(String text, int from) {
+        int value = 0;
+        boolean digits = false;
+        for (int i = from; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+            } else if (digits || (c != ' ' && c != '\t')) {
+                break;
+            }
+        }
+        return digits ? value : UNKNOWN;
+    }
+
+    // Signed decimal after the prefix, or Long.MIN_VALUE if there is none
+    private static long parseSigned(String text, int from) {
+        int i = from;
+        while (i < text.length() && text.charAt(i) == ' ') {
+            i++;
+        }
+        boolean negative = i < text.length() && text.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        int start = i;
+        long value = 0;
+        while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            value = value * 10 + (text.charAt(i) - '0');
+            i++;
+        }
+        if (i == start) {
+            return Long.MIN_VALUE;
+        }
+        return negative ? -value : value;
+    }
+
+    private static int lastChar(String line) {
+        String trimmed = line.trim();
+        return trimmed.isEmpty() ? UNKNOWN : trimmed.charAt(trimmed.length() - 1);
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.motorcontroller;
+
+/**
+ * Load estimate from the speed commands and RPM reports alone, for rigs whose firmware sends
+ * no CURRENT lines (motor_control_final.ino) and so leaves {@link TorqueEstimator} without
+ * data. The motor is taken as first order, as the bench motors are:
+ *
+ *   tau * dw/dt = K * u + c - w - d      u: speed sent, w: RPM, d: load, the RPM it takes away
+ *
+ * with tau the nominal TIME_CONSTANT_S, and the gain K and offset c identified online, since
+ * they are what differs between rigs, gearboxes and batteries. The observer passes the speed
+ * sent, and whether it is above 0, through that same lag:
+ *
+ *   tau * ds/dt = u - s       tau * dr/dt = (u > 0 ? 1 : 0) - r
+ *
+ * integrated exactly from one command to the next, and averages s and r over each report's
+ * interval as the firmware averages pulses. For a steady load a report then satisfies
+ *
+ *   rpm = K * s + c * r - d
+ *
+ * whatever the interval and wherever in it the commands fell, so a speed change is not
+ * mistaken for a load. Recursive least squares with forgetting fits K and c; the load is
+ * K * s + c * r - rpm, smoothed over LOAD_FILTER_S. Reports the model cannot explain within
+ * GATE_SIGMAS of its own uncertainty and the report noise are taken as load rather than
+ * learned from, so a load is estimated for as long as it lasts instead of being absorbed into
+ * the model. A load already there while the model is still uncertain, e.g. at connection, or
+ * one below the noise, becomes part of the model.
+ *
+ * The load is offered as the boost that would give the speed sent back its unloaded RPM (see
+ * {@link CompensationStrategy#setLoadBoost}), and a rise of LOAD_RISE_THRESHOLD_RPM is
+ * reported like {@link TorqueEstimator}'s. Constant work per command, and per report as many
+ * steps as commands fell in its interval; no allocation. Used only on the control thread.
+ */
+public class DisturbanceObserver {
+
+    static final double TIME_CONSTANT_S = 0.25;          // the bench motors
+    static final double PRIOR_RPM_PER_PERCENT = AnomalyDetector.RPM_PER_PERCENT;
+    // Prior uncertainty of K and c, as variances
+    static final double PRIOR_GAIN_VARIANCE = 4.0;       // +-2 RPM per percent
+    static final double PRIOR_OFFSET_VARIANCE = 400.0;   // +-20 RPM
+    static final double FORGETTING = 0.98;               // ~50 reports of memory
+    static final double MAX_COVARIANCE_TRACE = 1000.0;   // no wind-up while the speed holds
+    static final double NOISE_RPM = 5.0;
+    static final double GATE_SIGMAS = 3.0;
+    static final double LOAD_FILTER_S = 0.5;
+    static final double LOAD_RISE_THRESHOLD_RPM = 20.0;  // as TorqueEstimator's threshold
+    static final long MAX_REPORT_INTERVAL_NANOS = ReportRate.MAX_INTERVAL_MS * 1_000_000L;
+    private static final int HISTORY = 512;   // a 50 Hz ramp over the longest report interval
+
+    // Ring of input segments, newest at (count - 1) % HISTORY: from its start, the input u
+    // and its running flag held, with s, r and their integrals since reset at the start
+    private final long[] segmentNanos = new long[HISTORY];
+    private final double[] segmentInput = new double[HISTORY];
+    private final double[] segmentRunningInput = new double[HISTORY];
+    private final double[] segmentLagged = new double[HISTORY];
+    private final double[] segmentLaggedRunning = new double[HISTORY];
+    private final double[] segmentSum = new double[HISTORY];
+    private final double[] segmentRunningSum = new double[HISTORY];
+    private int count = 0;
+    private int speed = 0;
+    private boolean running = false;
+    private long lastReportNanos = 0;
+    private boolean primed = false;
+
+    // Model and its covariance
+    private double gain = PRIOR_RPM_PER_PERCENT;
+    private double offset = 0;
+    private double p00 = PRIOR_GAIN_VARIANCE;
+    private double p01 = 0;
+    private double p11 = PRIOR_OFFSET_VARIANCE;
+
+    private double loadRpm = Double.NaN;
+    private double referenceRpm = Double.NaN;
+    private long updates = 0;
+    private long gated = 0;
+
+    /**
+     * A speed command was sent to motor 1.
+     */
+    public void onSpeedCommand(int speed, long nowNanos) {
+        this.speed = Math.max(0, speed);
+        startSegment(nowNanos);
+    }
+
+    /**
+     * Motor 1's direction was sent; stopped is true for 'S', which holds it whatever the speed.
+     */
+    public void onDirection(boolean stopped, long nowNanos) {
+        running = !stopped;
+        startSegment(nowNanos);
+    }
+
+    /**
+     * An RPM report of the given interval arrived at nowNanos. Updates the model and the
+     * load, and returns true if the load has risen by LOAD_RISE_THRESHOLD_RPM since the last
+     * reference, which is then moved up so the same rise is reported only once.
+     */
+    public boolean onRpm(int rpm, long nowNanos, int intervalMs) {
+        // The firmware counts over its own interval: a report lost on the way does not
+        // make the next one cover two
+        long window = Math.min(nowNanos - lastReportNanos, intervalMs * 1_000_000L);
+        lastReportNanos = nowNanos;
+        if (!primed || count == 0 || window <= 0 || window > MAX_REPORT_INTERVAL_NANOS) {
+            // The first report covers time before we knew the commands, a late one is suspect
+            primed = count > 0;
+            return false;
+        }
+        long from = Math.max(nowNanos - window, segmentNanos[Math.max(0, count - HISTORY) % HISTORY]);
+        double seconds = (nowNanos - from) / 1e9;
+        if (seconds <= 0) {
+            return false;
+        }
+        double s = (integral(segmentSum, segmentLagged, segmentInput, nowNanos)
+                - integral(segmentSum, segmentLagged, segmentInput, from)) / seconds;
+        double r = (integral(segmentRunningSum, segmentLaggedRunning, segmentRunningInput, nowNanos)
+                - integral(segmentRunningSum, segmentLaggedRunning, segmentRunningInput, from)) / seconds;
+        if (r == 0 && rpm == 0) {
+            // Stopped all along: nothing to learn, no load to see
+            loadRpm = 0;
+            referenceRpm = Double.NaN;
+            return false;
+        }
+
+        double error = rpm - (gain * s + offset * r);
+        // Variance of that error: the model's uncertainty along (s, r) plus the report's own,
+        // whose quantum is one pulse over the interval (3 RPM at one report a second)
+        double ps0 = p00 * s + p01 * r;
+        double ps1 = p01 * s + p11 * r;
+        double modelVariance = s * ps0 + r * ps1;
+        double quantum = 3.0 / seconds;
+        double noiseVariance = NOISE_RPM * NOISE_RPM + quantum * quantum / 12;
+        double bound = GATE_SIGMAS * Math.sqrt(modelVariance + noiseVariance);
+        // A report right after a load went away covers some of it without showing as much
+        boolean unloaded = Double.isNaN(loadRpm) || Math.abs(loadRpm) <= bound;
+        if (Math.abs(error) <= bound && unloaded) {
+            learn(error, ps0, ps1, modelVariance, noiseVariance);
+        } else {
+            gated++;
+        }
+
+        double raw = gain * s + offset * r - rpm;
+        if (Double.isNaN(loadRpm)) {
+            loadRpm = raw;
+        } else {
+            loadRpm += (raw - loadRpm) * (1 - Math.exp(-seconds / LOAD_FILTER_S));
+        }
+        if (Double.isNaN(referenceRpm) || loadRpm < referenceRpm) {
+            referenceRpm = loadRpm;
+            return false;
+        }
+        if (loadRpm - referenceRpm >= LOAD_RISE_THRESHOLD_RPM) {
+            referenceRpm = loadRpm;
+            return true;
+        }
+        return false;
+    }
+
+    // One RLS step on (s, r), in covariance form so the report noise weighs each step
+    private void learn(double error, double ps0, double ps1, double modelVariance,
+                       double noiseVariance) {
+        double denominator = modelVariance + noiseVariance;
+        double k0 = ps0 / denominator;
+        double k1 = ps1 / denominator;
+        gain = Math.max(0.1, gain + k0 * error);
+        offset += k1 * error;
+        p00 -= k0 * ps0;
+        p01 -= k0 * ps1;
+        p11 -= k1 * ps1;
+        if (p00 + p11 < MAX_COVARIANCE_TRACE * FORGETTING) {
+            p00 /= FORGETTING;
+            p01 /= FORGETTING;
+            p11 /= FORGETTING;
+        }
+        updates++;
+    }
+
+    // The input changed at nowNanos: a new segment, starting where the current one got to
+    private void startSegment(long nowNanos) {
+        double input = running ? speed : 0;
+        double runningInput = running && speed > 0 ? 1 : 0;
+        double lagged = 0;
+        double laggedRunning = 0;
+        double sum = 0;
+        double runningSum = 0;
+        if (count > 0) {
+            int last = (count - 1) % HISTORY;
+            double h = Math.max(0, nowNanos - segmentNanos[last]) / 1e9;
+            double decay = Math.exp(-h / TIME_CONSTANT_S);
+            double settled = TIME_CONSTANT_S * (1 - decay);
+            sum = segmentSum[last] + segmentInput[last] * h
+                    + (segmentLagged[last] - segmentInput[last]) * settled;
+            runningSum = segmentRunningSum[last] + segmentRunningInput[last] * h
+                    + (segmentLaggedRunning[last] - segmentRunningInput[last]) * settled;
+            lagged = segmentInput[last] + (segmentLagged[last] - segmentInput[last]) * decay;
+            laggedRunning = segmentRunningInput[last]
+                    + (segmentLaggedRunning[last] - segmentRunningInput[last]) * decay;
+            if (h == 0) {
+                count--;   // replaces a segment of no length
+            }
+        }
+        int slot = count % HISTORY;
+        segmentNanos[slot] = nowNanos;
+        segmentInput[slot] = input;
+        segmentRunningInput[slot] = runningInput;
+        segmentLagged[slot] = lagged;
+        segmentLaggedRunning[slot] = laggedRunning;
+        segmentSum[slot] = sum;
+        segmentRunningSum[slot] = runningSum;
+        count++;
+    }
+
+    // Integral of a lagged input from the first segment kept up to t, exact for first order
+    private double integral(double[] sums, double[] lagged, double[] inputs, long t) {
+        int oldest = Math.max(0, count - HISTORY);
+        int i = count - 1;
+        while (i > oldest && segmentNanos[i % HISTORY] > t) {
+            i--;
+        }
+        int slot = i % HISTORY;
+        double h = Math.max(0, t - segmentNanos[slot]) / 1e9;
+        return sums[slot] + inputs[slot] * h
+                + (lagged[slot] - inputs[slot]) * TIME_CONSTANT_S * (1 - Math.exp(-h / TIME_CONSTANT_S));
+    }
+
+    /**
+     * For a new connection: the motor is stopped and the next report is not paired. The
+     * model is kept, since the rig usually is the same.
+     */
+    public void reset() {
+        count = 0;
+        speed = 0;
+        primed = false;
+        loadRpm = Double.NaN;
+        referenceRpm = Double.NaN;
+    }
+
+    public boolean isValid() {
+        return !Double.isNaN(loadRpm);
+    }
+
+    /**
+     * RPM the load takes away at the speed sent; NaN before the first paired report.
+     */
+    public double getLoadRpm() {
+        return loadRpm;
+    }
+
+    /**
+     * Speed to add to the one the user chose to get its unloaded RPM back, 0 if none.
+     */
+    public int getBoost() {
+        if (!isValid() || loadRpm <= 0) {
+            return 0;
+        }
+        return Math.min(100, (int) Math.round(loadRpm / gain));
+    }
+
+    /**
+     * Identified RPM per percent of speed.
+     */
+    public double getGain() {
+        return gain;
+    }
+
+    /**
+     * Identified RPM offset while running, e.g. negative for friction.
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Reports taken as load rather than learned from.
+     */
+    public long getGated() {
+        return gated;
+    }
+}
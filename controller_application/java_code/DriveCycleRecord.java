@@ -0,0 +1,151 @@
+package com.example.motorcontroller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Timing and RPM response of one drive-cycle run. Arrays are sized up front so recording
+ * during the run does not allocate.
+ *
+ * For every step we keep three times, all relative to the run start:
+ *   planned    - offset from the profile
+ *   dispatched - when the runner thread released it
+ *   applied    - when the writer thread started writing its command to the link; SPEED
+ *                steps skip the ramp, so this is when the new speed left for the motor
+ */
+public class DriveCycleRecord {
+
+    static final int MAX_RPM_SAMPLES = 36000;   // an hour at 10 Hz
+
+    private final DriveProfile profile;
+    private final long startNanos;
+    private final long[] dispatchedNanos;
+    private final long[] appliedNanos;
+
+    private final long[] sampleNanos = new long[MAX_RPM_SAMPLES];
+    private final int[] sampleRpm = new int[MAX_RPM_SAMPLES];
+    private final int[] sampleSpeed = new int[MAX_RPM_SAMPLES];
+    private int sampleCount = 0;
+    private boolean aborted = false;
+
+    DriveCycleRecord(DriveProfile profile, long startNanos) {
+        this.profile = profile;
+        this.startNanos = startNanos;
+        int steps = profile.getSteps().size();
+        dispatchedNanos = new long[steps];
+        appliedNanos = new long[steps];
+        Arrays.fill(dispatchedNanos, -1);
+        Arrays.fill(appliedNanos, -1);
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    // Runner thread; published to the control thread by the queue hand-off
+    void markDispatched(int step, long nanos) {
+        dispatchedNanos[step] = nanos;
+    }
+
+    // Control thread, with the writer thread's time
+    void markApplied(int step, long nanos) {
+        appliedNanos[step] = nanos;
+    }
+
+    // Control thread
+    void addRpmSample(long nanos, int rpm, int speed) {
+        if (sampleCount < MAX_RPM_SAMPLES) {
+            sampleNanos[sampleCount] = nanos;
+            sampleRpm[sampleCount] = rpm;
+            sampleSpeed[sampleCount] = speed;
+            sampleCount++;
+        }
+    }
+
+    void markAborted() {
+        aborted = true;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    public DriveProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Largest |applied - planned| over all steps that ran, in microseconds.
+     */
+    public long getMaxApplyErrorMicros() {
+        long max = 0;
+        for (int i = 0; i < appliedNanos.length; i++) {
+            if (appliedNanos[i] >= 0) {
+                max = Math.max(max, Math.abs(errorNanos(appliedNanos[i], i)) / 1000);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Mean |applied - planned| over all steps that ran, in microseconds.
+     */
+    public double getMeanApplyErrorMicros() {
+        long total = 0;
+        int count = 0;
+        for (int i = 0; i < appliedNanos.length; i++) {
+            if (appliedNanos[i] >= 0) {
+                total += Math.abs(errorNanos(appliedNanos[i], i));
+                count++;
+            }
+        }
+        return count == 0 ? 0 : total / 1000.0 / count;
+    }
+
+    private long errorNanos(long actualNanos, int step) {
+        long plannedNanos = startNanos + profile.getSteps().get(step).offsetMs * 1_000_000L;
+        return actualNanos - plannedNanos;
+    }
+
+    /**
+     * Write the run as CSV: a summary, one row per step, then the RPM trace.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        out.write("# profile," + profile.getName() + "\n");
+        out.write("# aborted," + aborted + "\n");
+        out.write(String.format("# mean_apply_error_us,%.1f\n", getMeanApplyErrorMicros()));
+        out.write("# max_apply_error_us," + getMaxApplyErrorMicros() + "\n");
+        out.write("# applied,when the step's command was written to the link\n");
+        out.write("step,planned_ms,dispatch_error_us,apply_error_us,command\n");
+        for (int i = 0; i < appliedNanos.length; i++) {
+            DriveProfile.Step step = profile.getSteps().get(i);
+            out.write(i + "," + step.offsetMs + ","
+                    + (dispatchedNanos[i] < 0 ? "" : errorNanos(dispatchedNanos[i], i) / 1000) + ","
+                    + (appliedNanos[i] < 0 ? "" : errorNanos(appliedNanos[i], i) / 1000) + ","
+                    + step.command.trim() + "\n");
+        }
+        out.write("t_ms,rpm,speed\n");
+        for (int i = 0; i < sampleCount; i++) {
+            out.write((sampleNanos[i] - startNanos) / 1_000_000L + ","
+                    + sampleRpm[i] + "," + sampleSpeed[i] + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the RPM trace in the compact {@link TelemetryWriter} format, times relative to the
+     * run start. Closes out.
+     */
+    public void writeTelemetry(OutputStream out) throws IOException {
+        int[] sample = new int[2];
+        try (TelemetryWriter writer = new TelemetryWriter(out, "rpm", "speed")) {
+            for (int i = 0; i < sampleCount; i++) {
+                sample[0] = sampleRpm[i];
+                sample[1] = sampleSpeed[i];
+                writer.append((sampleNanos[i] - startNanos) / 1_000_000L, sample);
+            }
+        }
+    }
+}
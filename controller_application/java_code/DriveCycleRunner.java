@@ -0,0 +1,87 @@
+package com.example.motorcontroller;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Releases the steps of a {@link DriveProfile} on time. Runs on its own thread and hands each
+ * step to the control thread through an SPSC queue, so the command goes out on the normal
+ * command path. Waiting uses {@link HybridScheduler} against absolute deadlines computed from
+ * the run start, so errors never accumulate across steps.
+ *
+ * After the last step the runner keeps the run open for TAIL_MS so the RPM response to it is
+ * recorded, then sets {@link #isFinished()}.
+ */
+public class DriveCycleRunner {
+
+    static final long START_LEAD_MS = 200;   // time for the thread to start before step 0
+    static final long TAIL_MS = 3000;
+
+    private final DriveProfile profile;
+    private final DriveCycleRecord record;
+    private final SpscQueue<DriveProfile.Step> toControl;
+    private final Thread controlThread;
+    private final Thread thread;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
+    private final HybridScheduler.Cancellation cancellation = () -> cancelled;
+
+    DriveCycleRunner(DriveProfile profile, SpscQueue<DriveProfile.Step> toControl,
+                     Thread controlThread) {
+        this.profile = profile;
+        this.toControl = toControl;
+        this.controlThread = controlThread;
+        this.record = new DriveCycleRecord(profile,
+                System.nanoTime() + START_LEAD_MS * 1_000_000L);
+        this.thread = new Thread(this::run, "drive-cycle");
+        thread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop releasing steps. The runner still ends through {@link #isFinished()}.
+     */
+    void cancel() {
+        cancelled = true;
+        LockSupport.unpark(thread);
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    DriveCycleRecord getRecord() {
+        return record;
+    }
+
+    private void run() {
+        long start = record.getStartNanos();
+        for (DriveProfile.Step step : profile.getSteps()) {
+            if (cancelled) {
+                break;
+            }
+            long released = HybridScheduler.waitUntil(start + step.offsetMs * 1_000_000L,
+                    cancellation);
+            if (released < 0) {
+                break;
+            }
+            record.markDispatched(step.index, released);
+            while (!toControl.offer(step)) {
+                // The control thread is stalled; keep the step rather than silently skip it
+                LockSupport.unpark(controlThread);
+                LockSupport.parkNanos(100_000L);
+            }
+            LockSupport.unpark(controlThread);
+        }
+        // Keep recording the response to the last step
+        long end = start + (profile.getDurationMs() + TAIL_MS) * 1_000_000L;
+        while (!cancelled && end - System.nanoTime() > 0) {
+            LockSupport.parkNanos(this, end - System.nanoTime());
+        }
+        finished = true;
+        LockSupport.unpark(controlThread);
+    }
+}
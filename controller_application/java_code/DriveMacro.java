@@ -0,0 +1,77 @@
+package com.example.motorcontroller;
+
+import java.util.Locale;
+
+/**
+ * Both motors' directions for a manoeuvre, motor 1 being the left wheel and motor 2 the
+ * right. Sent as one compound frame
+ *
+ *   DRIVE<dir1><dir2><speed>      e.g. DRIVEFR50
+ *
+ * which the firmware applies to both motors at once, instead of a DIR1 and a DIR2 write that
+ * reach the board one Bluetooth packet apart and start the wheels that far apart. The speed
+ * is shared, as with SPEED: the firmware drives both motors at one duty and compensation
+ * keeps a single setpoint. The firmware echoes a compound frame with the usual three lines
+ * (motor 1, motor 2, speed), so {@link DeviceMirror} tracks it like the separate commands.
+ */
+public enum DriveMacro {
+    STRAIGHT('F', 'F'),
+    REVERSE('R', 'R'),
+    SPIN_LEFT('R', 'F'),
+    SPIN_RIGHT('F', 'R'),
+    PIVOT_LEFT('S', 'F'),    // turn about the stopped left wheel
+    PIVOT_RIGHT('F', 'S'),
+    STOP('S', 'S');
+
+    private final char motor1;
+    private final char motor2;
+    private final String motor1Command;
+    private final String motor2Command;
+
+    DriveMacro(char motor1, char motor2) {
+        this.motor1 = motor1;
+        this.motor2 = motor2;
+        this.motor1Command = "DIR1" + motor1 + "\n";
+        this.motor2Command = "DIR2" + motor2 + "\n";
+    }
+
+    /**
+     * Look a macro up by name, ignoring case, e.g. "spin_left"; null if there is none.
+     */
+    public static DriveMacro parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public char getMotor1() {
+        return motor1;
+    }
+
+    public char getMotor2() {
+        return motor2;
+    }
+
+    /**
+     * The compound frame for this macro at the given speed.
+     */
+    public String frame(int speed) {
+        return "DRIVE" + motor1 + motor2 + Math.max(0, Math.min(100, speed)) + "\n";
+    }
+
+    /**
+     * The same manoeuvre as two separate commands, for firmware without DRIVE.
+     */
+    public String motor1Command() {
+        return motor1Command;
+    }
+
+    public String motor2Command() {
+        return motor2Command;
+    }
+}
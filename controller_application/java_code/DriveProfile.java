@@ -0,0 +1,122 @@
+package com.example.motorcontroller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A scripted drive cycle: timed SPEED and DIR commands. The file format is one step per line,
+ *
+ *   # comment
+ *   0     DIR1F
+ *   0     DIR2F
+ *   500   SPEED40
+ *   5000  SPEED70
+ *   12000 SPEED0
+ *
+ * where the first column is the offset in milliseconds from the start of the run. Offsets
+ * must not decrease. Steps with equal offsets are sent in file order.
+ */
+public class DriveProfile {
+
+    /**
+     * One timed command. Also used as the message handed to the control thread, so a run
+     * does not allocate once it has started.
+     */
+    public static final class Step {
+        final int index;
+        final long offsetMs;
+        final String command;   // with trailing newline, as sent to the controller
+        final int speed;        // SPEED value, or -1 for other commands
+
+        Step(int index, long offsetMs, String command, int speed) {
+            this.index = index;
+            this.offsetMs = offsetMs;
+            this.command = command;
+            this.speed = speed;
+        }
+
+        public long getOffsetMs() {
+            return offsetMs;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+    }
+
+    private final String name;
+    private final List<Step> steps;
+
+    private DriveProfile(String name, List<Step> steps) {
+        this.name = name;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    public static DriveProfile parse(String name, Reader source) throws IOException {
+        BufferedReader reader = new BufferedReader(source);
+        List<Step> steps = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        long lastOffset = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                line = line.substring(0, hash);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length != 2) {
+                throw new IOException(name + ":" + lineNumber + ": expected '<offset_ms> <command>'");
+            }
+            long offset;
+            try {
+                offset = Long.parseLong(parts[0]);
+            } catch (NumberFormatException e) {
+                throw new IOException(name + ":" + lineNumber + ": bad offset '" + parts[0] + "'");
+            }
+            if (offset < lastOffset) {
+                throw new IOException(name + ":" + lineNumber + ": offsets must not decrease");
+            }
+            lastOffset = offset;
+            String command = parts[1].toUpperCase();
+            int speed = -1;
+            if (command.startsWith("SPEED")) {
+                try {
+                    speed = Integer.parseInt(command.substring(5));
+                } catch (NumberFormatException e) {
+                    speed = -1;
+                }
+                if (speed < 0 || speed > 100) {
+                    throw new IOException(name + ":" + lineNumber + ": speed must be 0-100");
+                }
+            } else if (!command.matches("DIR[12][FRS]")) {
+                throw new IOException(name + ":" + lineNumber + ": unknown command '" + parts[1] + "'");
+            }
+            steps.add(new Step(steps.size(), offset, command + "\n", speed));
+        }
+        if (steps.isEmpty()) {
+            throw new IOException(name + ": profile has no steps");
+        }
+        return new DriveProfile(name, steps);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public long getDurationMs() {
+        return steps.get(steps.size() - 1).offsetMs;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.motorcontroller;
+
+/**
+ * The 2nd and 3rd revisions: no compensation, only a verdict on whether the measured RPM is
+ * within a band around the RPM expected for the current speed (speed * expectedMaxRpm / 100).
+ * The 2nd revision's band is a percentage of the expected RPM, the 3rd's a fixed number of RPM.
+ */
+public class ExpectedBandMonitor implements CompensationStrategy {
+
+    public static final String NAME_REV2 = "rev2";
+    public static final String NAME_REV3 = "rev3";
+
+    private final String name;
+    private final SpeedSink sink;
+    private final int expectedMaxRpm;
+    private final double tolerancePercent;   // used if toleranceRpm < 0
+    private final int toleranceRpm;
+
+    private int currentSpeed = 0;
+    private String consistencyStatus = "Unknown";
+    private String status = "N/A";
+
+    ExpectedBandMonitor(String name, SpeedSink sink, int expectedMaxRpm,
+                        double tolerancePercent, int toleranceRpm) {
+        this.name = name;
+        this.sink = sink;
+        this.expectedMaxRpm = expectedMaxRpm;
+        this.tolerancePercent = tolerancePercent;
+        this.toleranceRpm = toleranceRpm;
+    }
+
+    /**
+     * EXPECTED_MAX_RPM 350, within TOLERANCE_PERCENT 10% of the expected RPM.
+     */
+    public static ExpectedBandMonitor rev2(SpeedSink sink) {
+        return new ExpectedBandMonitor(NAME_REV2, sink, 350, 0.1, -1);
+    }
+
+    /**
+     * EXPECTED_MAX_RPM 400, within ±20 RPM of the expected RPM.
+     */
+    public static ExpectedBandMonitor rev3(SpeedSink sink) {
+        return new ExpectedBandMonitor(NAME_REV3, sink, 400, 0, 20);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public int getExpectedRpm() {
+        return (currentSpeed * expectedMaxRpm) / 100;
+    }
+
+    @Override
+    public void onManualSpeedChange(int speed, long nowMs) {
+        currentSpeed = speed;
+        sink.sendSpeed(speed);
+    }
+
+    @Override
+    public void onRpmReading(int measuredRpm, long nowMs) {
+        int expectedRpm = getExpectedRpm();
+        consistencyStatus = "Optimal RPM: " + expectedRpm;
+        if (currentSpeed == 0) {
+            status = (measuredRpm == 0) ? "Idle" : "Not Optimal";
+            return;
+        }
+        double lowerBound;
+        double upperBound;
+        if (toleranceRpm >= 0) {
+            lowerBound = expectedRpm - toleranceRpm;
+            upperBound = expectedRpm + toleranceRpm;
+        } else {
+            lowerBound = expectedRpm * (1 - tolerancePercent);
+            upperBound = expectedRpm * (1 + tolerancePercent);
+        }
+        status = (measuredRpm >= lowerBound && measuredRpm <= upperBound) ? "Optimal" : "Not Optimal";
+    }
+
+    @Override
+    public void revertToOriginalSpeed() {
+        // Never changes the speed on its own
+    }
+
+    @Override
+    public void reset() {
+        currentSpeed = 0;
+        consistencyStatus = "Unknown";
+        status = "N/A";
+    }
+
+    @Override
+    public int getCurrentSpeed() {
+        return currentSpeed;
+    }
+
+    @Override
+    public boolean isCompensating() {
+        return false;
+    }
+
+    @Override
+    public String getConsistencyStatus() {
+        return consistencyStatus;
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.motorcontroller;
+
+/**
+ * Spots a load step in the high-resolution RPM stream. rev5 compares two readings a second
+ * apart; at 100 samples per second the same comparison would only ever see a few RPM of
+ * change, so here each sample is compared with a slow baseline instead:
+ *
+ *   baseline += (rpm - baseline) * dt / BASELINE_TAU
+ *
+ * A sample the drop threshold or more below the baseline fires once; it fires again only
+ * after RPM has come back within the consistency tolerance. The baseline is frozen while
+ * RPM is more than the tolerance below it, so a held load does not become the new normal,
+ * but RPM above it is followed. After a setpoint change the motor is still accelerating
+ * towards the new speed for a while, so for SETTLE_MICROS the baseline just follows RPM.
+ *
+ * Thresholds come from the same {@link GainSchedule} as the strategies. Used only on the
+ * control thread; O(1) per sample.
+ */
+public class FastDropDetector {
+
+    static final double BASELINE_TAU_SECONDS = 1.0;
+    static final long SETTLE_MICROS = 1_500_000L;   // like MANUAL_SPEED_CHANGE_WINDOW
+
+    private double baseline = Double.NaN;
+    private long lastMicros = 0;
+    private long settleUntilMicros = 0;
+    private int lastSpeed = -1;
+    private boolean armed = true;
+    private long drops = 0;
+
+    /**
+     * Add one sample.
+     *
+     * @param micros sample time, unwrapped
+     * @param speed  setpoint the motor is being driven at
+     * @return true if a load step was detected
+     */
+    public boolean onSample(long micros, double rpm, int speed, GainSchedule.Gains gains) {
+        if (speed != lastSpeed || Double.isNaN(baseline)) {
+            lastSpeed = speed;
+            settleUntilMicros = micros + SETTLE_MICROS;
+            armed = true;
+        }
+        double dt = Double.isNaN(baseline) ? 0 : (micros - lastMicros) / 1e6;
+        lastMicros = micros;
+        if (micros - settleUntilMicros < 0) {
+            baseline = rpm;
+            return false;
+        }
+        double below = baseline - rpm;
+        if (below <= gains.consistencyTolerance) {
+            armed = true;
+            baseline += (rpm - baseline) * Math.min(1.0, dt / BASELINE_TAU_SECONDS);
+            return false;
+        }
+        if (armed && below >= gains.dropThreshold) {
+            armed = false;
+            drops++;
+            return true;
+        }
+        return false;
+    }
+
+    public void reset() {
+        baseline = Double.NaN;
+        lastSpeed = -1;
+        armed = true;
+        drops = 0;
+    }
+
+    /**
+     * RPM the stream is compared with; NaN before the first sample.
+     */
+    public double getBaseline() {
+        return baseline;
+    }
+
+    public long getDrops() {
+        return drops;
+    }
+}
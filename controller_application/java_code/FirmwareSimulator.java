@@ -0,0 +1,501 @@
+package com.example.motorcontroller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Stand-in for new_motorcontroller_pwm_plotter.ino on a TCP port, with a {@link MotorPlant}
+ * in place of the motor. It answers the same commands with the same lines, reports RPM once a
+ * second or at the interval set with "RATE<ms>", and like the real board keeps its state
+ * across connections. One client at a time,
+ * as with Bluetooth SPP:
+ *
+ *   java com.example.motorcontroller.FirmwareSimulator [--port 7777] [--load rpm] [--drop p]
+ *       [--packet-us n] [--link-bps n] [--no-current] [--clock-ppm n] [--micros-start n]
+ *
+ * "SIMLOAD<rpm>" sets motor 1's external load from the client side and "SIMLOAD2<rpm>" motor
+ * 2's, e.g. taking motor 2's away to make its wheel slip; the real firmware answers both with
+ * "Unknown command". --load applies to both. Motor 2 has a plant and a sensor of its own,
+ * reported as "M2RPM<n>" after each "RPM<n>" once "TRACTION1" asked for it, and
+ * "TRIM<trim1> <trim2>" trims each motor's speed as in the firmware. --drop loses each
+ * command line with probability p, like a noisy radio link, to exercise the app's recovery.
+ * "PULSES1" streams pulse periods every PULSE_BATCH_MS like the firmware, with pulses placed
+ * where the plant's shaft passes a slot.
+ * "STREAM<n>" streams samples in frames of n, as described in {@link FrameDecoder}.
+ * "DRIVE<dir1><dir2><speed>" sets both motors at once and "SKEW" reports the time between
+ * the motors' last changes, as in the firmware. --no-current leaves out the CURRENT lines,
+ * like motor_control_final.ino. "SYNC<seq>" is answered with the simulated micros() as in
+ * the firmware, for {@link ClockSync}; --clock-ppm makes that clock run fast (or slow, if
+ * negative) like a real crystal, and --micros-start sets where it starts, e.g. just before
+ * its 32-bit wrap.
+ *
+ * --packet-us and --link-bps make each write cost what it would on a slow radio link: a fixed
+ * time per packet plus the bytes at that bit rate. Once more than LINK_BUFFER_NANOS of
+ * sending is queued, writes block as SerialBT's do when its buffer is full, and like loop()
+ * on the real board the simulator then skips the samples it has no time for. Commands from
+ * the app pay the same per-packet cost on the way in, each line being one write by the app.
+ */
+public class FirmwareSimulator {
+
+    static final int DEFAULT_PORT = 7777;
+    static final long STEP_MS = 5;
+    static final long REPORT_INTERVAL_MS = 1000;   // until RATE changes it
+    static final long PULSE_BATCH_MS = 20;
+    static final long DEBOUNCE_MICROS = 5000;
+    static final int PULSE_RING_SIZE = 64;
+    static final long STREAM_SAMPLE_MS = 5;
+    static final long LINK_BUFFER_NANOS = 20_000_000L;
+
+    private final MotorPlant plant = new MotorPlant();
+    private final MotorPlant plant2 = new MotorPlant();
+    private final Random random = new Random();
+    private double dropProbability = 0;
+    private boolean currentLines = true;
+    private long packetNanos = 0;
+    private double nanosPerByte = 0;
+    private double clockPpm = 0;
+    private long microsStart = 0;
+    private volatile long startNanos = 0;   // the simulated board's power-on
+    private long linkFreeNanos = 0;
+    private long inboundFreeNanos = 0;   // reader thread only
+    private final Object lock = new Object();
+    // Guarded by lock
+    private int speed = 0;
+    private char motor1Direction = 'S';   // setup() stops both motors
+    private char motor2Direction = 'S';
+    private long motor1ChangedNanos = 0;
+    private long motor2ChangedNanos = 0;
+    private OutputStream client;
+    private boolean pulseMode = false;
+    private final long[] pulsePeriods = new long[PULSE_RING_SIZE];
+    private int pulseCount = 0;
+    private int streamBatch = 0;
+    private long reportIntervalMs = REPORT_INTERVAL_MS;
+    private int motor1Trim = 0;
+    private int motor2Trim = 0;
+    private boolean motor2Report = false;
+    private final byte[] frame = new byte[FrameDecoder.HEADER_BYTES
+            + FrameDecoder.SAMPLE_BYTES * FrameDecoder.MAX_SAMPLES + 1];
+    private int frameSamples = 0;
+    private long frameLastMicros = 0;
+
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        double load = 0;
+        double drop = 0;
+        long packetMicros = 0;
+        long linkBps = 0;
+        boolean currentLines = true;
+        double clockPpm = 0;
+        long microsStart = 0;
+        for (int i = 0; i < args.length; i++) {
+            if ("--port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("--load".equals(args[i]) && i + 1 < args.length) {
+                load = Double.parseDouble(args[++i]);
+            } else if ("--drop".equals(args[i]) && i + 1 < args.length) {
+                drop = Double.parseDouble(args[++i]);
+            } else if ("--packet-us".equals(args[i]) && i + 1 < args.length) {
+                packetMicros = Long.parseLong(args[++i]);
+            } else if ("--link-bps".equals(args[i]) && i + 1 < args.length) {
+                linkBps = Long.parseLong(args[++i]);
+            } else if ("--no-current".equals(args[i])) {
+                currentLines = false;
+            } else if ("--clock-ppm".equals(args[i]) && i + 1 < args.length) {
+                clockPpm = Double.parseDouble(args[++i]);
+            } else if ("--micros-start".equals(args[i]) && i + 1 < args.length) {
+                microsStart = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: FirmwareSimulator [--port 7777] [--load rpm] [--drop p] "
+                        + "[--packet-us n] [--link-bps n] [--no-current] [--clock-ppm n] "
+                        + "[--micros-start n]");
+                System.exit(2);
+            }
+        }
+        FirmwareSimulator simulator = new FirmwareSimulator();
+        simulator.plant.setLoadRpm(load);
+        simulator.plant2.setLoadRpm(load);
+        simulator.dropProbability = drop;
+        simulator.currentLines = currentLines;
+        simulator.clockPpm = clockPpm;
+        simulator.microsStart = microsStart;
+        simulator.packetNanos = packetMicros * 1000;
+        simulator.nanosPerByte = linkBps > 0 ? 8e9 / linkBps : 0;
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.err.println("Simulated MotorController listening on port " + server.getLocalPort());
+            simulator.serve(server);
+        }
+    }
+
+    /**
+     * Run the motor and serve clients one after another until the server socket closes.
+     */
+    public void serve(ServerSocket server) throws IOException {
+        startNanos = System.nanoTime();
+        Thread motor = new Thread(this::runMotor, "sim-motor");
+        motor.setDaemon(true);
+        motor.start();
+        try {
+            while (running) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                handleClient(socket);
+            }
+        } finally {
+            running = false;
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private void handleClient(Socket socket) {
+        try (Socket s = socket) {
+            synchronized (lock) {
+                client = s.getOutputStream();
+            }
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (dropProbability > 0 && random.nextDouble() < dropProbability) {
+                    continue;
+                }
+                awaitInbound(line.length() + 1);
+                handleCommand(line.trim());
+            }
+        } catch (IOException e) {
+            // Client went away; wait for the next one
+        } finally {
+            synchronized (lock) {
+                client = null;
+            }
+        }
+    }
+
+    // Mirrors loop() in the firmware, including its replies
+    private void handleCommand(String command) {
+        synchronized (lock) {
+            if (command.startsWith("SPEED")) {
+                int speedValue = toInt(command.substring(5));
+                if (speedValue >= 0 && speedValue <= 100) {
+                    speed = speedValue;
+                    applyDrive();
+                    motor1ChangedNanos = System.nanoTime();
+                    motor2ChangedNanos = motor1ChangedNanos;
+                    sendCurrent();
+                    send("Speed set to: " + speedValue);
+                } else {
+                    send("Invalid speed value (0-100)");
+                }
+            } else if (command.startsWith("DIR1")) {
+                char direction = command.length() > 4 ? command.charAt(4) : 0;
+                if (direction == 'F' || direction == 'R' || direction == 'S') {
+                    motor1Direction = direction;
+                    applyDrive();
+                    motor1ChangedNanos = System.nanoTime();
+                    send("Motor 1 direction: " + direction);
+                } else {
+                    send("Invalid direction for Motor 1 (F, R, S)");
+                }
+            } else if (command.startsWith("DIR2")) {
+                char direction = command.length() > 4 ? command.charAt(4) : 0;
+                if (direction == 'F' || direction == 'R' || direction == 'S') {
+                    motor2Direction = direction;
+                    applyDrive();
+                    motor2ChangedNanos = System.nanoTime();
+                    send("Motor 2 direction: " + direction);
+                } else {
+                    send("Invalid direction for Motor 2 (F, R, S)");
+                }
+            } else if (command.startsWith("DRIVE")) {
+                char direction1 = command.length() > 7 ? command.charAt(5) : 0;
+                char direction2 = command.length() > 7 ? command.charAt(6) : 0;
+                int speedValue = command.length() > 7 ? toInt(command.substring(7)) : -1;
+                if (isDirection(direction1) && isDirection(direction2)
+                        && speedValue >= 0 && speedValue <= 100) {
+                    motor1Direction = direction1;
+                    motor2Direction = direction2;
+                    speed = speedValue;
+                    applyDrive();
+                    motor1ChangedNanos = System.nanoTime();
+                    motor2ChangedNanos = motor1ChangedNanos;
+                    sendCurrent();
+                    send("Motor 1 direction: " + direction1);
+                    send("Motor 2 direction: " + direction2);
+                    send("Speed set to: " + speedValue);
+                } else {
+                    send("Invalid drive command (DRIVE<F|R|S><F|R|S><0-100>)");
+                }
+            } else if (command.equals("SKEW")) {
+                send("Skew: " + (motor2ChangedNanos - motor1ChangedNanos) / 1000);
+            } else if (command.startsWith("PULSES")) {
+                pulseMode = command.length() > 6 && command.charAt(6) == '1';
+                pulseCount = 0;
+                send("Pulse mode: " + (pulseMode ? 1 : 0));
+            } else if (command.startsWith("TRACTION")) {
+                motor2Report = command.length() > 8 && command.charAt(8) == '1';
+                send("Traction: " + (motor2Report ? 1 : 0));
+            } else if (command.startsWith("STREAM")) {
+                int batch = toInt(command.substring(6));
+                if (batch >= 0 && batch <= FrameDecoder.MAX_SAMPLES) {
+                    frameSamples = 0;
+                    streamBatch = batch;
+                    send("Stream: " + batch);
+                } else {
+                    send("Invalid stream batch (0-32)");
+                }
+            } else if (command.startsWith("RATE")) {
+                int interval = toInt(command.substring(4));
+                if (interval >= ReportRate.MIN_INTERVAL_MS && interval <= ReportRate.MAX_INTERVAL_MS) {
+                    reportIntervalMs = interval;
+                    send("Rate: " + interval);
+                } else {
+                    send("Invalid report rate (100-5000 ms)");
+                }
+            } else if (command.startsWith("SYNC")) {
+                long receivedMicros = deviceMicros((System.nanoTime() - startNanos) / 1000);
+                send("Sync: " + toInt(command.substring(4)) + " " + (receivedMicros & 0xFFFFFFFFL) + " "
+                        + (deviceMicros((System.nanoTime() - startNanos) / 1000) & 0xFFFFFFFFL));
+            } else if (command.equals("PING")) {
+                send("PONG MotorController");
+            } else if (command.startsWith("TRIM")) {
+                int space = command.indexOf(' ');
+                int trim1 = space > 4 ? toInt(command.substring(4, space)) : 0;
+                int trim2 = space > 4 ? toInt(command.substring(space + 1)) : 0;
+                if (space > 4 && Math.abs(trim1) <= TractionControl.MAX_TRIM
+                        && Math.abs(trim2) <= TractionControl.MAX_TRIM) {
+                    motor1Trim = trim1;
+                    motor2Trim = trim2;
+                    applyDrive();
+                    sendCurrent();
+                    send("Trim: " + trim1 + " " + trim2);
+                } else {
+                    send("Invalid trim (TRIM<-30..30> <-30..30>)");
+                }
+            } else if (command.startsWith("SIMLOAD2")) {
+                int load = toInt(command.substring(8));
+                plant2.setLoadRpm(load);
+                send("Load 2 set to: " + load);
+            } else if (command.startsWith("SIMLOAD")) {
+                int load = toInt(command.substring(7));
+                plant.setLoadRpm(load);
+                send("Load set to: " + load);
+            } else {
+                send("Unknown command");
+            }
+        }
+    }
+
+    // The firmware's estimateCurrent() line, which motor_control_final.ino does not send
+    private void sendCurrent() {
+        if (currentLines) {
+            send(String.format(Locale.US, "CURRENT%.2f", plant.getAppliedCurrent()));
+        }
+    }
+
+    private static boolean isDirection(char direction) {
+        return direction == 'F' || direction == 'R' || direction == 'S';
+    }
+
+    // A command line reaches the board one packet after the previous one at the earliest
+    private void awaitInbound(int length) {
+        if (packetNanos == 0 && nanosPerByte == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        inboundFreeNanos = Math.max(inboundFreeNanos, now) + packetNanos + (long) (length * nanosPerByte);
+        long waitNanos = inboundFreeNanos - now;
+        try {
+            Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A stopped motor's sensor sees nothing; trims apply only while the speed is set
+    private void applyDrive() {
+        plant.setCommand(motor1Direction == 'S' || speed == 0 ? 0 : speed + motor1Trim);
+        plant2.setCommand(motor2Direction == 'S' || speed == 0 ? 0 : speed + motor2Trim);
+    }
+
+    private void runMotor() {
+        long start = startNanos;
+        long step = 0;
+        long lastReportMs = 0;
+        long lastBatchMs = 0;
+        long lastSampleMs = 0;
+        double slotPhase = 0;          // slots passed, fractional
+        long lastPulseMicros = 0;
+        while (running) {
+            step++;
+            long dueNanos = start + step * STEP_MS * 1_000_000L;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            long nowMs = step * STEP_MS;
+            synchronized (lock) {
+                double rpmBefore = plant.getRpm();
+                plant.step(STEP_MS / 1000.0);
+                plant2.step(STEP_MS / 1000.0);
+                // Slots passed in this step, at the step's average speed
+                double slotsPerMicro = (rpmBefore + plant.getRpm()) / 2 / 60.0
+                        * MotorPlant.SLOTS_PER_REVOLUTION / 1e6;
+                long stepStartMicros = (nowMs - STEP_MS) * 1000;
+                double phaseAtStart = slotPhase;
+                slotPhase += slotsPerMicro * STEP_MS * 1000;
+                for (double slot = Math.floor(phaseAtStart) + 1; slot <= slotPhase; slot++) {
+                    long pulseMicros = stepStartMicros + (long) ((slot - phaseAtStart) / slotsPerMicro);
+                    if (pulseMicros - lastPulseMicros > DEBOUNCE_MICROS) {
+                        if (pulseCount < PULSE_RING_SIZE) {
+                            pulsePeriods[pulseCount++] = pulseMicros - lastPulseMicros;
+                        }
+                        lastPulseMicros = pulseMicros;
+                    }
+                }
+                // Behind schedule means loop() was stuck in a write: no sample this time
+                if (streamBatch > 0 && nowMs - lastSampleMs >= STREAM_SAMPLE_MS && waitNanos >= 0) {
+                    lastSampleMs = nowMs;
+                    streamSample(deviceMicros(nowMs * 1000));
+                }
+                if (pulseMode && nowMs - lastBatchMs >= PULSE_BATCH_MS) {
+                    lastBatchMs = nowMs;
+                    sendPulseBatch(deviceMicros(nowMs * 1000), deviceMicros(lastPulseMicros));
+                }
+                if (nowMs - lastReportMs >= reportIntervalMs) {
+                    lastReportMs = nowMs;
+                    send("RPM" + plant.takeReportedRpm());
+                    int rpm2 = plant2.takeReportedRpm();
+                    if (motor2Report) {
+                        send("M2RPM" + rpm2);
+                    }
+                }
+            }
+        }
+    }
+
+    // micros() on the simulated board, for simMicros since power-on; the pulse periods are
+    // left at the true time, a few ppm off at most
+    private long deviceMicros(long simMicros) {
+        return microsStart + simMicros + Math.round(simMicros * clockPpm / 1e6);
+    }
+
+    // Same line as sendPulseBatch() in the firmware; micros() is 32 bits there. Caller holds lock
+    private void sendPulseBatch(long nowMicros, long lastPulseMicros) {
+        StringBuilder line = new StringBuilder(16 + 8 * pulseCount);
+        line.append("PP").append(nowMicros & 0xFFFFFFFFL).append(' ').append(lastPulseMicros & 0xFFFFFFFFL);
+        for (int i = 0; i < pulseCount; i++) {
+            line.append(' ').append(pulsePeriods[i]);
+        }
+        pulseCount = 0;
+        send(line.toString());
+    }
+
+    // Same as streamSample() in the firmware. Caller holds lock
+    private void streamSample(long nowMicros) {
+        int rpm = (int) Math.round(plant.getRpm());
+        int currentMa = (int) (plant.getAppliedCurrent() * 1000);
+        if (streamBatch == 1) {
+            send("T" + (nowMicros & 0xFFFFFFFFL) + " " + rpm + " " + currentMa);
+            return;
+        }
+        if (frameSamples > 0 && nowMicros - frameLastMicros > 0xFFFF) {
+            flushFrame();
+        }
+        if (frameSamples == 0) {
+            put(frame, 3, nowMicros, 4);
+            frameLastMicros = nowMicros;
+        }
+        int at = FrameDecoder.HEADER_BYTES + FrameDecoder.SAMPLE_BYTES * frameSamples;
+        put(frame, at, nowMicros - frameLastMicros, 2);
+        put(frame, at + 2, rpm, 2);
+        put(frame, at + 4, currentMa, 2);
+        frameLastMicros = nowMicros;
+        frameSamples++;
+        if (frameSamples >= streamBatch) {
+            flushFrame();
+        }
+    }
+
+    private void flushFrame() {
+        if (frameSamples == 0) {
+            return;
+        }
+        int length = FrameDecoder.HEADER_BYTES + FrameDecoder.SAMPLE_BYTES * frameSamples;
+        frame[0] = (byte) FrameDecoder.SYNC0;
+        frame[1] = (byte) FrameDecoder.SYNC1;
+        frame[2] = (byte) frameSamples;
+        frame[length] = (byte) FrameDecoder.crc8(frame, 2, length - 2);
+        frameSamples = 0;
+        write(frame, length + 1);
+    }
+
+    // Little-endian, as on the ESP32
+    private static void put(byte[] to, int at, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            to[at + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    // Arduino's String.toInt(): leading digits only, 0 if there are none
+    private static int toInt(String text) {
+        String trimmed = text.trim();
+        int end = 0;
+        if (end < trimmed.length() && (trimmed.charAt(end) == '-' || trimmed.charAt(end) == '+')) {
+            end++;
+        }
+        while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end))) {
+            end++;
+        }
+        try {
+            return Integer.parseInt(trimmed.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Caller holds lock
+    private void send(String line) {
+        byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        write(bytes, bytes.length);
+    }
+
+    // One write is one packet on the emulated link. Caller holds lock
+    private void write(byte[] bytes, int length) {
+        if (client == null) {
+            return;
+        }
+        if (packetNanos > 0 || nanosPerByte > 0) {
+            long now = System.nanoTime();
+            linkFreeNanos = Math.max(linkFreeNanos, now) + packetNanos + (long) (length * nanosPerByte);
+            long waitNanos = linkFreeNanos - now - LINK_BUFFER_NANOS;
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        try {
+            client.write(bytes, 0, length);
+        } catch (IOException e) {
+            client = null;
+        }
+    }
+}
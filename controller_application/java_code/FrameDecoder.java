@@ -0,0 +1,294 @@
+package com.example.motorcontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the controller's byte stream into text lines and sample-stream frames (STREAM mode
+ * of new_motorcontroller_pwm_plotter.ino). A frame carries up to MAX_SAMPLES samples in one
+ * write, so the per-packet cost of the Bluetooth link is paid once per frame instead of once
+ * per sample:
+ *
+ *   frame  = 0xA5 0x5A count:u8 firstMicros:u32 sample*count crc:u8
+ *   sample = deltaMicros:u16 rpm:u16 currentMa:u16
+ *
+ * Integers are little-endian, as the ESP32 stores them. deltaMicros is from the previous
+ * sample of the frame (0 for the first); the CRC-8 (polynomial 0x07) covers count through
+ * the last sample. Frames start where a line would, and 0xA5 never starts a text line. With
+ * a batch of 1 the firmware sends each sample as a text line instead,
+ *
+ *   T<micros> <rpm> <current_ma>
+ *
+ * which is decoded here too, so the receiver sees the same samples either way.
+ *
+ * Bytes are read into one buffer and frames are decoded in place, handing each sample to
+ * the receiver as primitives: a frame costs no allocation and no copy. Text lines become
+ * Strings as before. Sample times are unwrapped from the firmware's 32-bit micros(). Used
+ * only on the reader thread; the counters may be read from any thread.
+ */
+public class FrameDecoder {
+
+    static final int SYNC0 = 0xA5;
+    static final int SYNC1 = 0x5A;
+    static final int HEADER_BYTES = 7;
+    static final int SAMPLE_BYTES = 6;
+    static final int MAX_SAMPLES = 32;
+    static final int BUFFER_BYTES = 4096;
+    private static final long WRAP = 1L << 32;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1 ^ 0x07) & 0xFF : crc << 1 & 0xFF;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final LinkIo.Receiver receiver;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int start = 0;          // first byte not yet consumed
+    private int end = 0;            // one past the last byte read
+    private int scanned = 0;        // bytes from start already searched for a newline
+    private boolean lineStart = true;
+    private final long[] textValues = new long[3];
+
+    private boolean timeStarted = false;
+    private long lastRawMicros = 0;
+    private long epochOffset = 0;
+
+    // Written by the reader thread only
+    private volatile long bytes = 0;
+    private volatile long lines = 0;
+    private volatile long samples = 0;
+    private volatile long frames = 0;
+    private volatile long badFrames = 0;
+
+    public FrameDecoder(LinkIo.Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Forget any partial input and the clock, e.g. for a new link. Counters are kept.
+     */
+    public void reset() {
+        start = 0;
+        end = 0;
+        scanned = 0;
+        lineStart = true;
+        timeStarted = false;
+        lastRawMicros = 0;
+        epochOffset = 0;
+    }
+
+    /**
+     * Read what is available (blocking for at least one byte) and hand on every complete
+     * line and frame.
+     *
+     * @return false at the end of the stream
+     */
+    public boolean readFrom(InputStream in) throws IOException {
+        if (start == end) {
+            start = 0;
+            end = 0;
+        } else if (end == buffer.length) {
+            compact();
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            if (end > start) {
+                // Like readLine(), the last line needs no terminator
+                emitLine(start, end);
+                start = end;
+            }
+            return false;
+        }
+        end += read;
+        bytes += read;
+        decode();
+        return true;
+    }
+
+    private void decode() {
+        while (start < end) {
+            if (lineStart && (buffer[start] & 0xFF) == SYNC0) {
+                int result = decodeFrame();
+                if (result > 0) {
+                    start += result;
+                    scanned = 0;
+                    continue;
+                }
+                if (result == 0) {
+                    return;   // frame not complete yet
+                }
+                // Not a frame after all; resynchronise at the next line
+                badFrames++;
+                lineStart = false;
+            }
+            int newline = -1;
+            for (int i = start + scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                scanned = end - start;
+                if (start == 0 && end == buffer.length) {
+                    // Longer than the buffer: hand it on in pieces rather than stall
+                    emitLine(start, end);
+                    start = end;
+                    scanned = 0;
+                }
+                return;
+            }
+            emitLine(start, newline);
+            start = newline + 1;
+            scanned = 0;
+            lineStart = true;
+        }
+    }
+
+    /**
+     * @return the frame's length if one was decoded, 0 if more bytes are needed, -1 if the
+     * bytes at start are not a valid frame
+     */
+    private int decodeFrame() {
+        int available = end - start;
+        if (available < HEADER_BYTES) {
+            return available >= 2 && (buffer[start + 1] & 0xFF) != SYNC1 ? -1 : 0;
+        }
+        int count = buffer[start + 2] & 0xFF;
+        if ((buffer[start + 1] & 0xFF) != SYNC1 || count == 0 || count > MAX_SAMPLES) {
+            return -1;
+        }
+        int length = HEADER_BYTES + count * SAMPLE_BYTES + 1;
+        if (available < length) {
+            return 0;
+        }
+        if (crc8(buffer, start + 2, length - 3) != (buffer[start + length - 1] & 0xFF)) {
+            return -1;
+        }
+        long micros = unwrap(readU32(start + 3));
+        int at = start + HEADER_BYTES;
+        for (int i = 0; i < count; i++, at += SAMPLE_BYTES) {
+            micros += readU16(at);
+            samples++;
+            receiver.onSample(micros, readU16(at + 2), readU16(at + 4));
+        }
+        // The next frame is unwrapped against the last sample, which may be past a wrap
+        lastRawMicros = micros & (WRAP - 1);
+        epochOffset = micros - lastRawMicros;
+        frames++;
+        return length;
+    }
+
+    private void emitLine(int from, int to) {
+        int length = to - from;
+        if (length > 0 && buffer[to - 1] == '\r') {
+            length--;
+        }
+        if (length > 1 && buffer[from] == 'T' && buffer[from + 1] >= '0' && buffer[from + 1] <= '9'
+                && decodeTextSample(from, from + length)) {
+            return;
+        }
+        lines++;
+        receiver.onLine(new String(buffer, from, length, StandardCharsets.US_ASCII));
+    }
+
+    // "T<micros> <rpm> <current_ma>" without building a String
+    private boolean decodeTextSample(int from, int to) {
+        long[] values = textValues;
+        int field = 0;
+        int i = from + 1;
+        while (field < 3) {
+            long value = 0;
+            int digits = 0;
+            while (i < to && buffer[i] >= '0' && buffer[i] <= '9') {
+                value = value * 10 + (buffer[i] - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0) {
+                return false;
+            }
+            values[field++] = value;
+            if (field < 3) {
+                if (i >= to || buffer[i] != ' ') {
+                    return false;
+                }
+                i++;
+            }
+        }
+        if (i != to) {
+            return false;
+        }
+        long micros = unwrap(values[0]);
+        samples++;
+        receiver.onSample(micros, (int) values[1], (int) values[2]);
+        return true;
+    }
+
+    private long unwrap(long raw) {
+        if (timeStarted && raw < lastRawMicros && lastRawMicros - raw > WRAP / 2) {
+            epochOffset += WRAP;
+        }
+        timeStarted = true;
+        lastRawMicros = raw;
+        return raw + epochOffset;
+    }
+
+    private int readU16(int at) {
+        return (buffer[at] & 0xFF) | (buffer[at + 1] & 0xFF) << 8;
+    }
+
+    private long readU32(int at) {
+        return (readU16(at) | (long) readU16(at + 2) << 16) & 0xFFFFFFFFL;
+    }
+
+    private void compact() {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+    }
+
+    static int crc8(byte[] data, int from, int length) {
+        int crc = 0;
+        for (int i = from; i < from + length; i++) {
+            crc = CRC_TABLE[crc ^ (data[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    /**
+     * Bytes read, for link utilization.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Text lines handed on, not counting text samples.
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Frame starts that turned out corrupt or truncated.
+     */
+    public long getBadFrames() {
+        return badFrames;
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.motorcontroller;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compensation thresholds by speed, and optionally by direction. A drop of 50 RPM is most of
+ * the motor's speed at SPEED20 and noise at SPEED90, so the drop threshold, the consistency
+ * tolerance and the boost increment are looked up for the speed the user chose instead of
+ * being constants. The file format is one row per speed band,
+ *
+ *   # speed  drop  tolerance  increment
+ *   20       25    15         6
+ *   50       50    30         10
+ *   90       80    45         12
+ *   R                          # rows after this apply to reverse only
+ *   50       60    30         12
+ *
+ * with values interpolated linearly between rows and held beyond the first and last. Rows
+ * before any "F" or "R" line apply to both directions; a direction without rows of its own
+ * uses those.
+ *
+ * Immutable, so the control loop can swap in a new schedule at any time. Every speed is
+ * interpolated once, up front: a lookup is an array index.
+ */
+public class GainSchedule {
+
+    /**
+     * Thresholds for one speed and direction.
+     */
+    public static final class Gains {
+        final int dropThreshold;
+        final int consistencyTolerance;
+        final int increment;
+
+        Gains(int dropThreshold, int consistencyTolerance, int increment) {
+            this.dropThreshold = dropThreshold;
+            this.consistencyTolerance = consistencyTolerance;
+            this.increment = increment;
+        }
+
+        public int getDropThreshold() {
+            return dropThreshold;
+        }
+
+        public int getConsistencyTolerance() {
+            return consistencyTolerance;
+        }
+
+        public int getIncrement() {
+            return increment;
+        }
+    }
+
+    /**
+     * The 5th revision's constants at every speed.
+     */
+    public static final GainSchedule DEFAULT = new GainSchedule("default",
+            new int[][]{{0, SpeedCompensator.DROP_THRESHOLD, SpeedCompensator.CONSISTENCY_TOLERANCE,
+                    SpeedCompensator.COMPENSATION_INCREMENT}}, null);
+
+    private final String name;
+    private final Gains[] forward = new Gains[101];
+    private final Gains[] reverse = new Gains[101];
+
+    // Rows are {speed, drop, tolerance, increment}, by increasing speed
+    private GainSchedule(String name, int[][] forwardRows, int[][] reverseRows) {
+        this.name = name;
+        fill(forward, forwardRows);
+        fill(reverse, reverseRows != null ? reverseRows : forwardRows);
+    }
+
+    private static void fill(Gains[] table, int[][] rows) {
+        for (int speed = 0; speed <= 100; speed++) {
+            int upper = 0;
+            while (upper < rows.length && rows[upper][0] < speed) {
+                upper++;
+            }
+            int[] row;
+            if (upper == 0 || upper == rows.length) {
+                row = rows[Math.min(upper, rows.length - 1)];
+                table[speed] = new Gains(row[1], row[2], row[3]);
+                continue;
+            }
+            int[] below = rows[upper - 1];
+            int[] above = rows[upper];
+            double t = (speed - below[0]) / (double) (above[0] - below[0]);
+            table[speed] = new Gains(lerp(below[1], above[1], t), lerp(below[2], above[2], t),
+                    lerp(below[3], above[3], t));
+        }
+    }
+
+    private static int lerp(int a, int b, double t) {
+        return (int) Math.round(a + (b - a) * t);
+    }
+
+    /**
+     * Thresholds for this speed; direction 'R' for reverse, anything else for forward.
+     */
+    public Gains get(char direction, int speed) {
+        int index = speed < 0 ? 0 : speed > 100 ? 100 : speed;
+        return direction == 'R' ? reverse[index] : forward[index];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static GainSchedule parse(String name, Reader source) throws IOException {
+        BufferedReader reader = new BufferedReader(source);
+        List<int[]> both = new ArrayList<>();
+        List<int[]> forwardRows = new ArrayList<>();
+        List<int[]> reverseRows = new ArrayList<>();
+        List<int[]> section = both;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                line = line.substring(0, hash);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equalsIgnoreCase("F")) {
+                section = forwardRows;
+                continue;
+            } else if (line.equalsIgnoreCase("R")) {
+                section = reverseRows;
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length != 4) {
+                throw new IOException(name + ":" + lineNumber
+                        + ": expected '<speed> <drop> <tolerance> <increment>'");
+            }
+            int[] row = new int[4];
+            for (int i = 0; i < 4; i++) {
+                try {
+                    row[i] = Integer.parseInt(parts[i]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(name + ":" + lineNumber + ": bad number '" + parts[i] + "'");
+                }
+            }
+            if (row[0] < 0 || row[0] > 100) {
+                throw new IOException(name + ":" + lineNumber + ": speed must be 0-100");
+            }
+            if (row[1] <= 0 || row[2] < 0 || row[3] < 0 || row[3] > 100) {
+                throw new IOException(name + ":" + lineNumber + ": drop must be positive, "
+                        + "tolerance and increment not negative");
+            }
+            if (!section.isEmpty() && row[0] <= section.get(section.size() - 1)[0]) {
+                throw new IOException(name + ":" + lineNumber + ": speeds must increase");
+            }
+            section.add(row);
+        }
+        if (forwardRows.isEmpty()) {
+            forwardRows = both;
+        }
+        if (reverseRows.isEmpty()) {
+            reverseRows = both;
+        }
+        if (forwardRows.isEmpty() || reverseRows.isEmpty()) {
+            throw new IOException(name + ": schedule has no rows for "
+                    + (forwardRows.isEmpty() ? "forward" : "reverse"));
+        }
+        return new GainSchedule(name, forwardRows.toArray(new int[0][]), reverseRows.toArray(new int[0][]));
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.motorcontroller;
+
+import java.util.Arrays;
+
+/**
+ * Detects compensation hunting: the limit cycle where a strategy boosts on a drop, reverts
+ * once RPM looks steady, sees the drop again and boosts again, so the setpoint bounces
+ * between two values and the motor follows. Each wasted cycle costs two SPEED commands and
+ * the energy of re-accelerating.
+ *
+ * The setpoint and the RPM, one sample per SAMPLE_INTERVAL_MS, each go through a sliding DFT
+ * over the last WINDOW samples, updated in O(bins) per sample with no allocation. Hunting is a
+ * setpoint spectrum dominated by one frequency, with enough amplitude in both the setpoint and
+ * the RPM there, and at least two whole cycles of setpoint changes in the window. While
+ * hunting the compensation gain is halved, down to MIN_GAIN; once it has stopped for a whole
+ * window, the gain creeps back.
+ *
+ * The DFT needs evenly spaced samples, and the report rate changes as the app asks for
+ * faster or slower reports (see {@link ReportRate}). So reports are resampled onto a grid of
+ * one sample a second, the rate the windows were sized for: the RPM is the time-weighted mean
+ * of the reports in each interval and the setpoint the one at its end, held across intervals
+ * with no report. At one report a second each report is one sample, as before.
+ *
+ * Manual speed changes are not hunting, so {@link #restart()} clears the windows on each one.
+ * Used only on the control thread.
+ */
+public class HuntingDetector {
+
+    static final int WINDOW = 20;                    // samples; 20 s
+    static final long SAMPLE_INTERVAL_MS = ReadingWindow.NOMINAL_INTERVAL_MS;
+    // A report arriving a little early still ends its interval
+    private static final long SLACK_MS = SAMPLE_INTERVAL_MS / 4;
+    static final int MIN_BIN = 2;                    // two cycles per window at least
+    static final int MAX_BIN = WINDOW / 2;
+    static final double MIN_PEAK_FRACTION = 0.6;     // share of the setpoint's AC energy
+    static final double MIN_SETPOINT_AMPLITUDE = 2.5; // % speed
+    static final double MIN_RPM_AMPLITUDE = 10;
+    static final int MIN_CHANGES = 4;                // setpoint changes in the window: two cycles
+    static final double HOLD_FACTOR = 0.5;           // of the above, to stay hunting
+    static final double MIN_GAIN = 0.25;
+    static final double GAIN_RECOVERY = 1.25;
+    // Keeps the recursive update from accumulating rounding error: r^WINDOW ~ 0.9998
+    private static final double R = 0.99999;
+    private static final double R_N = Math.pow(R, WINDOW);
+
+    private static final int BINS = MAX_BIN + 1;
+    private static final double[] COS = new double[BINS];
+    private static final double[] SIN = new double[BINS];
+
+    static {
+        for (int k = 0; k < BINS; k++) {
+            COS[k] = R * Math.cos(2 * Math.PI * k / WINDOW);
+            SIN[k] = R * Math.sin(2 * Math.PI * k / WINDOW);
+        }
+    }
+
+    // One series and its sliding spectrum
+    private static final class Channel {
+        final double[] samples = new double[WINDOW];
+        final double[] re = new double[BINS];
+        final double[] im = new double[BINS];
+
+        void add(double x, int slot) {
+            double delta = x - R_N * samples[slot];
+            samples[slot] = x;
+            for (int k = MIN_BIN; k < BINS; k++) {
+                double a = re[k] + delta;
+                double b = im[k];
+                re[k] = a * COS[k] - b * SIN[k];
+                im[k] = a * SIN[k] + b * COS[k];
+            }
+        }
+
+        double power(int k) {
+            return re[k] * re[k] + im[k] * im[k];
+        }
+
+        // Amplitude of the sinusoid at bin k
+        double amplitude(int k) {
+            double scale = k == WINDOW / 2 ? 1.0 : 2.0;
+            return scale * Math.sqrt(power(k)) / WINDOW;
+        }
+
+        void clear() {
+            Arrays.fill(samples, 0);
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+        }
+    }
+
+    private final Channel setpoint = new Channel();
+    private final Channel rpm = new Channel();
+    private final long[] times = new long[WINDOW];
+    private final boolean[] changed = new boolean[WINDOW];
+    private int changes = 0;
+    private int lastSpeed = -1;
+    private int next = 0;
+    private int filled = 0;
+
+    // The interval being resampled
+    private boolean sampling = false;
+    private long sampleStartMs = 0;
+    private long lastReportMs = 0;
+    private double rpmTimeSum = 0;
+    private long reportedMs = 0;
+
+    private boolean hunting = false;
+    private double frequencyHz = Double.NaN;
+    private double gain = 1.0;
+    private int samplesSinceGainChange = 0;
+    private int calmSamples = 0;
+    private int episodes = 0;
+
+    /**
+     * Add one RPM report and the setpoint the strategy holds after it.
+     *
+     * @return true if the gain changed
+     */
+    public boolean onSample(int measuredRpm, int speed, long nowMs) {
+        if (sampling && nowMs - sampleStartMs > WINDOW * SAMPLE_INTERVAL_MS) {
+            restart();   // a gap longer than the window, e.g. a stalled link
+        }
+        if (!sampling) {
+            // The first report is a whole sample
+            sampling = true;
+            sampleStartMs = nowMs - SAMPLE_INTERVAL_MS;
+            lastReportMs = sampleStartMs;
+        }
+        rpmTimeSum += (double) measuredRpm * (nowMs - lastReportMs);
+        reportedMs += nowMs - lastReportMs;
+        lastReportMs = nowMs;
+        if (nowMs - sampleStartMs < SAMPLE_INTERVAL_MS - SLACK_MS) {
+            return false;
+        }
+        int rpmSample = reportedMs > 0 ? (int) Math.round(rpmTimeSum / reportedMs) : measuredRpm;
+        rpmTimeSum = 0;
+        reportedMs = 0;
+        boolean gainChanged = false;
+        while (nowMs - sampleStartMs >= SAMPLE_INTERVAL_MS - SLACK_MS) {
+            sampleStartMs += SAMPLE_INTERVAL_MS;
+            gainChanged |= addSample(rpmSample, speed, sampleStartMs);
+        }
+        return gainChanged;
+    }
+
+    // One sample on the grid
+    private boolean addSample(int measuredRpm, int speed, long nowMs) {
+        setpoint.add(speed, next);
+        rpm.add(measuredRpm, next);
+        times[next] = nowMs;
+        // Count setpoint changes in the window; a single boost and revert is not a cycle
+        boolean change = lastSpeed >= 0 && speed != lastSpeed;
+        changes += (change ? 1 : 0) - (changed[next] ? 1 : 0);
+        changed[next] = change;
+        lastSpeed = speed;
+        next = (next + 1) % WINDOW;
+        if (filled < WINDOW) {
+            filled++;
+            if (filled < WINDOW) {
+                return false;
+            }
+        }
+        samplesSinceGainChange++;
+        boolean onset = detect(nowMs);
+
+        if (hunting) {
+            calmSamples = 0;
+            // Halve on onset, and again each half window it keeps hunting
+            if (gain > MIN_GAIN && (onset || samplesSinceGainChange > WINDOW / 2)) {
+                return setGain(Math.max(MIN_GAIN, gain / 2));
+            }
+        } else if (gain < 1.0 && ++calmSamples >= WINDOW) {
+            calmSamples = 0;
+            return setGain(Math.min(1.0, gain * GAIN_RECOVERY));
+        }
+        return false;
+    }
+
+    // Returns true if hunting has just started
+    private boolean detect(long nowMs) {
+        double total = 0;
+        int peak = -1;
+        for (int k = MIN_BIN; k <= MAX_BIN; k++) {
+            total += setpoint.power(k);
+            if (peak < 0 || setpoint.power(k) > setpoint.power(peak)) {
+                peak = k;
+            }
+        }
+        // A cycle that does not fit the window a whole number of times leaks into the
+        // neighbouring bin, so the peak is taken as a pair
+        int neighbour = peak == MIN_BIN ? peak + 1
+                : peak == MAX_BIN ? peak - 1
+                : setpoint.power(peak - 1) > setpoint.power(peak + 1) ? peak - 1 : peak + 1;
+        double peakPower = setpoint.power(peak) + setpoint.power(neighbour);
+        double setpointAmplitude = setpoint.amplitude(peak) + setpoint.amplitude(neighbour);
+        double rpmAmplitude = rpm.amplitude(peak) + rpm.amplitude(neighbour);
+
+        // Once hunting, it takes half the evidence to keep it, so it does not flicker
+        double release = hunting ? HOLD_FACTOR : 1.0;
+        boolean found = total > 0
+                && peakPower >= MIN_PEAK_FRACTION * release * total
+                && setpointAmplitude >= MIN_SETPOINT_AMPLITUDE * release
+                && rpmAmplitude >= MIN_RPM_AMPLITUDE * release
+                && changes >= MIN_CHANGES * release;
+        if (found) {
+            // Time base from the reports themselves, so a changed report rate still reads right
+            long oldest = times[next];
+            double intervalMs = (nowMs - oldest) / (double) (WINDOW - 1);
+            double powerAtPeak = setpoint.power(peak);
+            double powerAtNeighbour = setpoint.power(neighbour);
+            double bin = (peak * powerAtPeak + neighbour * powerAtNeighbour) / peakPower;
+            frequencyHz = intervalMs > 0 ? bin / (WINDOW * intervalMs / 1000.0) : Double.NaN;
+        } else {
+            frequencyHz = Double.NaN;
+        }
+        boolean onset = found && !hunting;
+        if (onset) {
+            episodes++;
+        }
+        hunting = found;
+        return onset;
+    }
+
+    private boolean setGain(double newGain) {
+        samplesSinceGainChange = 0;
+        if (newGain == gain) {
+            return false;
+        }
+        gain = newGain;
+        return true;
+    }
+
+    /**
+     * Forget the windows, e.g. after a manual speed change. The gain is kept.
+     */
+    public void restart() {
+        setpoint.clear();
+        rpm.clear();
+        Arrays.fill(changed, false);
+        changes = 0;
+        lastSpeed = -1;
+        next = 0;
+        filled = 0;
+        hunting = false;
+        frequencyHz = Double.NaN;
+        calmSamples = 0;
+        sampling = false;
+        rpmTimeSum = 0;
+        reportedMs = 0;
+    }
+
+    /**
+     * Forget everything, including the damping, e.g. for a new connection.
+     */
+    public void reset() {
+        restart();
+        gain = 1.0;
+        samplesSinceGainChange = 0;
+        episodes = 0;
+    }
+
+    public boolean isHunting() {
+        return hunting;
+    }
+
+    /**
+     * Frequency of the hunting cycle; NaN while not hunting.
+     */
+    public double getFrequencyHz() {
+        return frequencyHz;
+    }
+
+    /**
+     * Factor for the compensation increment, between MIN_GAIN and 1.
+     */
+    public double getGain() {
+        return gain;
+    }
+
+    /**
+     * Times hunting started since the last reset.
+     */
+    public int getEpisodes() {
+        return episodes;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.motorcontroller;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for an absolute System.nanoTime() deadline with sub-millisecond accuracy: it parks
+ * until SPIN_THRESHOLD_NANOS before the deadline, which costs no CPU but can wake up late,
+ * then busy-waits the rest of the way.
+ */
+public final class HybridScheduler {
+
+    // Parking is usually accurate to well under this on Android and desktop JVMs
+    static final long SPIN_THRESHOLD_NANOS = 2_000_000L;
+
+    /**
+     * Checked whenever a parked wait wakes up early (e.g. after LockSupport.unpark).
+     */
+    public interface Cancellation {
+        boolean isCancelled();
+    }
+
+    private static final Cancellation NEVER = () -> false;
+
+    private HybridScheduler() {
+    }
+
+    /**
+     * @return the System.nanoTime() at which the wait actually ended
+     */
+    public static long waitUntil(long deadlineNanos) {
+        return waitUntil(deadlineNanos, NEVER);
+    }
+
+    /**
+     * @return the System.nanoTime() at which the wait actually ended, or -1 if cancelled
+     */
+    public static long waitUntil(long deadlineNanos, Cancellation cancellation) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > SPIN_THRESHOLD_NANOS) {
+            if (cancellation.isCancelled()) {
+                return -1;
+            }
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+        }
+        long now;
+        do {
+            now = System.nanoTime();
+        } while (now - deadlineNanos < 0);
+        return now;
+    }
+}
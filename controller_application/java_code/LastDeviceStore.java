@@ -0,0 +1,43 @@
+package com.example.motorcontroller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the last controller we connected to, so the next launch can skip the
+ * paired-devices dialog.
+ */
+public class LastDeviceStore {
+
+    private static final String PREFS_NAME = "motor_controller";
+    private static final String KEY_ADDRESS = "last_device_address";
+    private static final String KEY_NAME = "last_device_name";
+
+    private final SharedPreferences prefs;
+
+    public LastDeviceStore(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public void save(String address, String name) {
+        prefs.edit()
+                .putString(KEY_ADDRESS, address)
+                .putString(KEY_NAME, name)
+                .apply();
+    }
+
+    /**
+     * Returns null if we have never connected.
+     */
+    public String getAddress() {
+        return prefs.getString(KEY_ADDRESS, null);
+    }
+
+    public String getName() {
+        return prefs.getString(KEY_NAME, null);
+    }
+
+    public void clear() {
+        prefs.edit().remove(KEY_ADDRESS).remove(KEY_NAME).apply();
+    }
+}
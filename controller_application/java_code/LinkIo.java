@@ -0,0 +1,399 @@
+package com.example.motorcontroller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The two I/O threads of a controller session. The reader thread opens links and reads lines
+ * and sample frames from them (see {@link FrameDecoder}); the writer thread drains outgoing
+ * commands. Both threads are started once and
+ * serve every connection after that, so reconnecting never creates new threads.
+ */
+public class LinkIo {
+
+    /**
+     * An open byte stream to the controller (Bluetooth socket, TCP socket, ...).
+     */
+    public interface Link extends Closeable {
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getName();
+    }
+
+    /**
+     * Opens a link. Called on the reader thread and allowed to block.
+     */
+    public interface Connector {
+        Link open() throws IOException;
+
+        /**
+         * Make an open() running on another thread fail as soon as possible.
+         */
+        default void abort() {
+        }
+    }
+
+    /**
+     * Everything the reader thread sees. All methods are called on the reader thread.
+     */
+    public interface Receiver {
+        void onLinkUp(Link link);
+
+        void onLine(String line);
+
+        /**
+         * One sample of the STREAM telemetry, from a frame or a text sample line.
+         *
+         * @param deviceMicros on the controller's clock, unwrapped
+         */
+        default void onSample(long deviceMicros, int rpm, int currentMa) {
+        }
+
+        void onLinkDown(Link link);
+
+        void onConnectFailed(Exception error);
+    }
+
+    private static final int OUTBOUND_CAPACITY = 256;
+    private static final int URGENT_CAPACITY = 16;
+    // Queued behind pending commands so they are written before the link is closed
+    private static final String CLOSE_MARKER = new String("close");
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+    private final Receiver receiver;
+    private final FrameDecoder decoder;   // reader thread
+    private final Thread readerThread;
+    private final Thread writerThread;
+
+    // Written only by the control thread, read by the writer
+    private final SpscQueue<String> outbound = new SpscQueue<>(OUTBOUND_CAPACITY);
+    // Jumps ahead of outbound; see sendUrgent()
+    private final SpscQueue<String> urgent = new SpscQueue<>(URGENT_CAPACITY);
+    // Commands in outbound numbered up to this are stale and skipped by the writer
+    private volatile long discardThrough = 0;
+    private long queuedCount = 0;   // control thread
+    private long takenCount = 0;    // writer thread
+    // System.nanoTime() just before each outbound command was written, 0 if it was not, by
+    // number; valid up to writtenThrough, the last one the writer is done with
+    private final long[] writeNanos = new long[OUTBOUND_CAPACITY];
+    private volatile long writtenThrough = 0;
+
+    private final AtomicReference<Connector> pendingConnector = new AtomicReference<>();
+    // Connector whose open() is running on the reader thread, so close() can abort it
+    private volatile Connector connecting;
+    private volatile Link currentLink;
+    private volatile OutputStream currentOutput;
+    // Bumped by close() so a connect that was in flight at that moment is abandoned
+    private volatile int closeGeneration = 0;
+    private volatile Link linkToClose;
+    private volatile boolean running = true;
+    // System.nanoTime() of the first command written on the current link, 0 until then
+    private volatile long firstWriteNanos = 0;
+    // System.nanoTime() just before the last ClockSync ping was written, 0 until then
+    private volatile long pingWriteNanos = 0;
+
+    private long droppedCommands = 0;
+    // Written by the writer thread only, for throughput metrics
+    private volatile long commandsWritten = 0;
+
+    public LinkIo(Receiver receiver) {
+        this.receiver = receiver;
+        this.decoder = new FrameDecoder(receiver);
+        readerThread = new Thread(this::readLoop, "link-reader");
+        writerThread = new Thread(this::writeLoop, "link-writer");
+        readerThread.setDaemon(true);
+        writerThread.setDaemon(true);
+        readerThread.start();
+        writerThread.start();
+    }
+
+    /**
+     * Ask the reader thread to open a new link. Any current link must be closed first.
+     */
+    public void connect(Connector connector) {
+        pendingConnector.set(connector);
+        LockSupport.unpark(readerThread);
+    }
+
+    /**
+     * Close the current link once the commands already queued are written, or abandon the
+     * link being opened. The reader thread reports it through {@link Receiver#onLinkDown}.
+     * Must only be called from the control thread.
+     */
+    public void close() {
+        closeGeneration++;
+        pendingConnector.set(null);
+        Connector inFlight = connecting;
+        if (inFlight != null) {
+            inFlight.abort();
+        }
+        Link link = currentLink;
+        if (link == null) {
+            return;   // nothing open; a connect in flight sees the new generation
+        }
+        linkToClose = link;
+        if (outbound.offer(CLOSE_MARKER)) {
+            queuedCount++;
+        } else {
+            closeQuietly(link);
+        }
+        LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Queue a command for the writer thread. Must only be called from the control thread.
+     */
+    public boolean send(String command) {
+        if (!outbound.offer(command)) {
+            droppedCommands++;
+            return false;
+        }
+        queuedCount++;
+        LockSupport.unpark(writerThread);
+        return true;
+    }
+
+    /**
+     * Write these commands before anything still waiting in the normal queue, and drop
+     * whatever is waiting there, so a stop cannot be followed by a stale speed command.
+     * A pending close still happens. Must only be called from the control thread.
+     */
+    public boolean sendUrgent(String... commands) {
+        discardThrough = queuedCount;
+        boolean queued = true;
+        for (String command : commands) {
+            if (!urgent.offer(command)) {
+                droppedCommands++;
+                queued = false;
+            }
+        }
+        LockSupport.unpark(writerThread);
+        return queued;
+    }
+
+    public long getFirstWriteNanos() {
+        return firstWriteNanos;
+    }
+
+    /**
+     * Number of the command last queued with {@link #send}, for {@link #getWriteNanos}.
+     * Must only be called from the control thread.
+     */
+    public long getLastSentNumber() {
+        return queuedCount;
+    }
+
+    /**
+     * When the writer thread started writing outbound command number; -1 while it is still
+     * queued, 0 if it was never written (dropped, superseded, link gone) or is too old to
+     * tell.
+     */
+    public long getWriteNanos(long number) {
+        long through = writtenThrough;
+        if (number > through) {
+            return -1;
+        }
+        long nanos = writeNanos[(int) (number % OUTBOUND_CAPACITY)];
+        // Reread: the slot is only ours if the writer has not lapped it meanwhile
+        return writtenThrough - number < OUTBOUND_CAPACITY ? nanos : 0;
+    }
+
+    /**
+     * When the writer thread last started writing a {@link ClockSync} ping; the t0 of its
+     * exchange, free of the time the ping waited in the queue.
+     */
+    public long getPingWriteNanos() {
+        return pingWriteNanos;
+    }
+
+    public long getDroppedCommands() {
+        return droppedCommands;
+    }
+
+    /**
+     * Bytes received over all links so far. Safe to read from any thread.
+     */
+    public long getBytesRead() {
+        return decoder.getBytes();
+    }
+
+    /**
+     * Lines received over all links so far. Safe to read from any thread.
+     */
+    public long getLinesRead() {
+        return decoder.getLines();
+    }
+
+    /**
+     * Telemetry samples received over all links so far, framed or as text. Safe to read
+     * from any thread.
+     */
+    public long getSamplesRead() {
+        return decoder.getSamples();
+    }
+
+    /**
+     * Sample frames received, and frame starts that were corrupt. Safe to read from any thread.
+     */
+    public long getFramesRead() {
+        return decoder.getFrames();
+    }
+
+    public long getBadFrames() {
+        return decoder.getBadFrames();
+    }
+
+    /**
+     * Commands written over all links so far. Safe to read from any thread.
+     */
+    public long getCommandsWritten() {
+        return commandsWritten;
+    }
+
+    /**
+     * Stop both threads for good.
+     */
+    public void shutdown() {
+        running = false;
+        pendingConnector.set(null);
+        Connector inFlight = connecting;
+        if (inFlight != null) {
+            inFlight.abort();
+        }
+        closeCurrentLink();
+        LockSupport.unpark(readerThread);
+        LockSupport.unpark(writerThread);
+    }
+
+    private void readLoop() {
+        while (running) {
+            Connector connector = pendingConnector.getAndSet(null);
+            if (connector == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            connecting = connector;
+            int generation = closeGeneration;
+            Link link = null;
+            InputStream in;
+            OutputStream out;
+            try {
+                link = connector.open();
+                in = link.getInputStream();
+                out = link.getOutputStream();
+            } catch (IOException | SecurityException e) {
+                connecting = null;
+                if (link != null) {
+                    closeQuietly(link);
+                }
+                if (generation == closeGeneration) {
+                    receiver.onConnectFailed(e);
+                }   // else close() aborted the connect and expects nothing back
+                continue;
+            }
+            connecting = null;
+            currentLink = link;
+            if (generation != closeGeneration) {
+                // close() was called while we were connecting
+                closeQuietly(link);
+                currentLink = null;
+                continue;
+            }
+            // Only now may the writer see the stream, or it could write to an abandoned link
+            firstWriteNanos = 0;
+            currentOutput = out;
+            receiver.onLinkUp(link);
+            LockSupport.unpark(writerThread);
+
+            try {
+                decoder.reset();
+                while (decoder.readFrom(in)) {
+                    // Lines and samples go straight to the receiver
+                }
+            } catch (IOException e) {
+                // Socket closed or link lost; both end the session the same way
+            }
+            closeQuietly(link);
+            currentLink = null;
+            currentOutput = null;
+            receiver.onLinkDown(link);
+        }
+    }
+
+    private void writeLoop() {
+        while (running) {
+            String command = urgent.poll();
+            long number = 0;   // urgent commands are not numbered
+            if (command == null) {
+                command = outbound.poll();
+                if (command == null) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    continue;
+                }
+                number = ++takenCount;
+                if (command == CLOSE_MARKER) {
+                    Link link = linkToClose;
+                    if (link != null) {
+                        closeQuietly(link);
+                    }
+                    doneWith(number, 0);
+                    continue;
+                }
+                if (number <= discardThrough) {
+                    doneWith(number, 0);
+                    continue;   // superseded by an urgent command
+                }
+            }
+            OutputStream out = currentOutput;
+            if (out == null) {
+                doneWith(number, 0);
+                continue;   // link went away; the command is meaningless now
+            }
+            long startNanos = System.nanoTime();
+            try {
+                out.write(command.getBytes());
+                commandsWritten++;
+                if (command.startsWith(ClockSync.PING)) {
+                    pingWriteNanos = startNanos;
+                }
+                if (firstWriteNanos == 0) {
+                    firstWriteNanos = System.nanoTime();
+                }
+            } catch (IOException e) {
+                // Closing makes the reader thread see the loss and report it once
+                closeCurrentLink();
+                startNanos = 0;
+            }
+            doneWith(number, startNanos);
+        }
+    }
+
+    // Writer thread: outbound command number is written at writeNanos, or 0 if it was not
+    private void doneWith(long number, long writeNanos) {
+        if (number != 0) {
+            this.writeNanos[(int) (number % OUTBOUND_CAPACITY)] = writeNanos;
+            writtenThrough = number;
+        }
+    }
+
+    private void closeCurrentLink() {
+        Link link = currentLink;
+        if (link != null) {
+            closeQuietly(link);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
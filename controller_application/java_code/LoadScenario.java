@@ -0,0 +1,91 @@
+package com.example.motorcontroller;
+
+/**
+ * One load-test case: a base speed, a disturbance shape and the limits the compensation has
+ * to meet for the run to pass. Every limit applies to each load increase on its own.
+ */
+public class LoadScenario {
+
+    /**
+     * Shape of the injected load.
+     */
+    public enum Shape {
+        STEP,       // load jumps to magnitude at onset and stays
+        RAMP,       // load rises linearly from 0 to magnitude over rampMs
+        PERIODIC    // load is magnitude for the first half of every period, 0 otherwise
+    }
+
+    final String name;
+    final int baseSpeed;
+    final Shape shape;
+    final double magnitudeRpm;
+    final long onsetMs;
+    final long rampMs;       // RAMP: rise time; PERIODIC: period
+    final long durationMs;
+    final long maxRecoveryMs;
+    final double maxUndershootRpm;
+    final int maxRelapses;
+    final int maxCommands;        // SPEED commands from one onset to the next
+    final double rpmPerPercent;   // motor the scenario runs on, see MotorPlant
+
+    public LoadScenario(String name, int baseSpeed, Shape shape, double magnitudeRpm,
+                        long onsetMs, long rampMs, long durationMs,
+                        long maxRecoveryMs, double maxUndershootRpm, int maxRelapses,
+                        int maxCommands) {
+        this(name, baseSpeed, shape, magnitudeRpm, onsetMs, rampMs, durationMs,
+                maxRecoveryMs, maxUndershootRpm, maxRelapses, maxCommands,
+                MotorPlant.RPM_PER_PERCENT);
+    }
+
+    public LoadScenario(String name, int baseSpeed, Shape shape, double magnitudeRpm,
+                        long onsetMs, long rampMs, long durationMs,
+                        long maxRecoveryMs, double maxUndershootRpm, int maxRelapses,
+                        int maxCommands, double rpmPerPercent) {
+        this.name = name;
+        this.baseSpeed = baseSpeed;
+        this.shape = shape;
+        this.magnitudeRpm = magnitudeRpm;
+        this.onsetMs = onsetMs;
+        this.rampMs = rampMs;
+        this.durationMs = durationMs;
+        this.maxRecoveryMs = maxRecoveryMs;
+        this.maxUndershootRpm = maxUndershootRpm;
+        this.maxRelapses = maxRelapses;
+        this.maxCommands = maxCommands;
+        this.rpmPerPercent = rpmPerPercent;
+    }
+
+    /**
+     * Load in RPM at time tMs after the start.
+     */
+    double loadAt(long tMs) {
+        if (tMs < onsetMs) {
+            return 0;
+        }
+        long since = tMs - onsetMs;
+        switch (shape) {
+            case STEP:
+                return magnitudeRpm;
+            case RAMP:
+                return magnitudeRpm * Math.min(1.0, since / (double) rampMs);
+            case PERIODIC:
+                return (since % rampMs) < rampMs / 2 ? magnitudeRpm : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * True at the start of each load increase, where a recovery measurement begins.
+     */
+    boolean isEventOnset(long tMs) {
+        if (tMs == onsetMs) {
+            return true;
+        }
+        return shape == Shape.PERIODIC && tMs > onsetMs && (tMs - onsetMs) % rampMs == 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,304 @@
+package com.example.motorcontroller;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Closed-loop load test for the compensation logic. Each {@link LoadScenario} runs the real
+ * SpeedCompensator, SetpointRamp and load estimates against a {@link MotorPlant} in
+ * simulated time, injects the scenario's load, and measures for every load increase:
+ *
+ *   recovery   - time from onset until RPM is first back within RECOVERY_BAND_RPM of the
+ *                pre-disturbance RPM (0 if it never left the band)
+ *   relapses   - how often RPM left the band again after recovering, e.g. because
+ *                compensation reverted while the load was still there
+ *   undershoot - deepest RPM below the pre-disturbance RPM
+ *   commands   - SPEED commands sent until the next onset
+ *
+ * and for the whole scenario how often the {@link HuntingDetector} found compensation
+ * hunting, and the lowest gain it damped the compensation to.
+ *
+ * Scenarios are independent and run in parallel, one per core. Run from the command line,
+ * it prints a regression report and exits with status 1 if any scenario misses its limits:
+ *
+ *   java com.example.motorcontroller.LoadTestHarness [report.txt]
+ */
+public class LoadTestHarness {
+
+    static final long SIM_STEP_MS = 10;
+    static final long REPORT_INTERVAL_MS = 1000;   // firmware RPM cadence
+    static final double RECOVERY_BAND_RPM = 30;
+    static final long NO_RECOVERY_LIMIT = Long.MAX_VALUE;
+
+    /**
+     * Measurements for one load increase.
+     */
+    public static final class EventResult {
+        final long onsetMs;
+        final double baselineRpm;
+        double minRpm;
+        long recoveryMs = -1;    // -1 until it comes back
+        int relapses = 0;
+        int commands = 0;
+        boolean dipped = false;
+        boolean outOfBand = false;
+
+        EventResult(long onsetMs, double baselineRpm) {
+            this.onsetMs = onsetMs;
+            this.baselineRpm = baselineRpm;
+            this.minRpm = baselineRpm;
+        }
+
+        double undershoot() {
+            return Math.max(0, baselineRpm - minRpm);
+        }
+
+        /**
+         * Time to recover, 0 if RPM never left the band, -1 if it never came back.
+         */
+        long recovery() {
+            return dipped ? recoveryMs : 0;
+        }
+    }
+
+    /**
+     * All events of one scenario, plus whether they met its limits.
+     */
+    public static final class ScenarioResult {
+        final LoadScenario scenario;
+        final List<EventResult> events = new ArrayList<>();
+        int totalCommands = 0;
+        int huntingEpisodes = 0;
+        double minGain = 1.0;
+
+        ScenarioResult(LoadScenario scenario) {
+            this.scenario = scenario;
+        }
+
+        long worstRecoveryMs() {
+            long worst = 0;
+            for (EventResult event : events) {
+                if (event.recovery() < 0) {
+                    return -1;
+                }
+                worst = Math.max(worst, event.recovery());
+            }
+            return worst;
+        }
+
+        int worstRelapses() {
+            int worst = 0;
+            for (EventResult event : events) {
+                worst = Math.max(worst, event.relapses);
+            }
+            return worst;
+        }
+
+        int worstCommands() {
+            int worst = 0;
+            for (EventResult event : events) {
+                worst = Math.max(worst, event.commands);
+            }
+            return worst;
+        }
+
+        double worstUndershoot() {
+            double worst = 0;
+            for (EventResult event : events) {
+                worst = Math.max(worst, event.undershoot());
+            }
+            return worst;
+        }
+
+        public boolean passed() {
+            long recovery = worstRecoveryMs();
+            boolean recoveryOk = scenario.maxRecoveryMs == NO_RECOVERY_LIMIT
+                    || (recovery >= 0 && recovery <= scenario.maxRecoveryMs);
+            return recoveryOk && worstUndershoot() <= scenario.maxUndershootRpm
+                    && worstRelapses() <= scenario.maxRelapses
+                    && worstCommands() <= scenario.maxCommands;
+        }
+    }
+
+    /**
+     * Scenarios gated on by default. Every limit (recovery, undershoot, relapses, commands,
+     * per load increase) sits just above what the 5th-revision logic achieves today, so a
+     * regression fails the run and an improvement does not. With one report a second a step
+     * is mostly felt in full before the first boost, so the step undershoots are close to
+     * the load; the ramps show what reacting early is worth. Heavy
+     * sustained loads used not to be recovered at all (the fixed boost was too small, and
+     * reverted after three consistent readings while the load was still there); with the
+     * boost sized to the {@link DisturbanceObserver}'s estimate they are, and are gated.
+     */
+    static List<LoadScenario> defaultScenarios() {
+        return Arrays.asList(
+                new LoadScenario("step-light", 50, LoadScenario.Shape.STEP, 40,
+                        5000, 0, 20000, 1600, 41, 0, 12),
+                new LoadScenario("step-heavy", 50, LoadScenario.Shape.STEP, 100,
+                        5000, 0, 20000, 2600, 100, 0, 28),
+                new LoadScenario("step-high-speed", 85, LoadScenario.Shape.STEP, 80,
+                        5000, 0, 20000, 2400, 81, 0, 18),
+                new LoadScenario("ramp-slow", 50, LoadScenario.Shape.RAMP, 100,
+                        5000, 6000, 25000, 4000, 50, 1, 28),
+                new LoadScenario("ramp-fast", 50, LoadScenario.Shape.RAMP, 100,
+                        5000, 1000, 20000, 3000, 90, 0, 28),
+                new LoadScenario("periodic", 50, LoadScenario.Shape.PERIODIC, 80,
+                        5000, 8000, 45000, 2500, 81, 0, 44),
+                // 2.5x the bench motor's RPM per %: undoing a fixed boost alone drops RPM by
+                // more than DROP_THRESHOLD, so undamped rev5 hunted for as long as it ran; the
+                // observer has to identify the motor's gain to size the boost right
+                new LoadScenario("step-fast-motor", 50, LoadScenario.Shape.STEP, 100,
+                        5000, 0, 90000, 2500, 100, 0, 12, 10.0));
+    }
+
+    /**
+     * Run one scenario in simulated time. Deterministic, and safe to call from any thread.
+     */
+    public static ScenarioResult run(LoadScenario scenario) {
+        ScenarioResult result = new ScenarioResult(scenario);
+        MotorPlant plant = new MotorPlant(scenario.rpmPerPercent);
+        SetpointRamp ramp = new SetpointRamp();
+        SpeedCompensator compensator = new SpeedCompensator(ramp::setTarget);
+        TorqueEstimator torque = new TorqueEstimator();
+        DisturbanceObserver observer = new DisturbanceObserver();
+        HuntingDetector hunting = new HuntingDetector();
+
+        observer.onSpeedCommand(0, 0);
+        observer.onDirection(false, 0);
+        compensator.onManualSpeedChange(scenario.baseSpeed, 0);
+        EventResult current = null;
+        long lastTickMs = 0;
+
+        for (long t = SIM_STEP_MS; t <= scenario.durationMs; t += SIM_STEP_MS) {
+            if (scenario.isEventOnset(t)) {
+                current = new EventResult(t, plant.getRpm());
+                result.events.add(current);
+            }
+            plant.setLoadRpm(scenario.loadAt(t));
+            plant.step(SIM_STEP_MS / 1000.0);
+
+            if (t - lastTickMs >= ControlLoop.CONTROL_PERIOD_NANOS / 1_000_000L) {
+                int speed = ramp.step((t - lastTickMs) / 1000.0);
+                lastTickMs = t;
+                if (speed >= 0) {
+                    plant.setCommand(speed);
+                    observer.onSpeedCommand(speed, t * 1_000_000L);
+                    // The firmware answers every SPEED command with its CURRENT estimate
+                    torque.onCurrent(plant.getAppliedCurrent(), t * 1_000_000L);
+                    result.totalCommands++;
+                    if (current != null) {
+                        current.commands++;
+                    }
+                }
+            }
+            if (t % REPORT_INTERVAL_MS == 0) {
+                // Same order as ControlLoop.handleRpmReading
+                int rpm = plant.takeReportedRpm();
+                int speedBefore = compensator.getCurrentSpeed();
+                observer.onRpm(rpm, t * 1_000_000L, (int) REPORT_INTERVAL_MS);
+                compensator.setLoadBoost(observer.getBoost());
+                compensator.onRpmReading(rpm, t);
+                if (torque.onRpm(rpm, t * 1_000_000L) && compensator.getCurrentSpeed() == speedBefore) {
+                    compensator.onLoadRise(t);
+                }
+                if (hunting.onSample(rpm, compensator.getCurrentSpeed(), t)) {
+                    compensator.setGain(hunting.getGain());
+                    result.minGain = Math.min(result.minGain, hunting.getGain());
+                }
+            }
+            if (current != null) {
+                track(current, plant.getRpm(), t);
+            }
+        }
+        result.huntingEpisodes = hunting.getEpisodes();
+        return result;
+    }
+
+    private static void track(EventResult event, double rpm, long tMs) {
+        event.minRpm = Math.min(event.minRpm, rpm);
+        boolean inBand = rpm >= event.baselineRpm - RECOVERY_BAND_RPM;
+        if (!inBand) {
+            if (!event.outOfBand && event.recoveryMs >= 0) {
+                event.relapses++;
+            }
+            event.outOfBand = true;
+            event.dipped = true;
+        } else if (event.outOfBand) {
+            if (event.recoveryMs < 0) {
+                event.recoveryMs = tMs - event.onsetMs;
+            }
+            event.outOfBand = false;
+        }
+    }
+
+    /**
+     * Run all scenarios in parallel, one worker per core.
+     */
+    public static List<ScenarioResult> runAll(List<LoadScenario> scenarios) throws Exception {
+        int threads = Math.max(1, Math.min(scenarios.size(),
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<ScenarioResult>> futures = new ArrayList<>();
+            for (LoadScenario scenario : scenarios) {
+                futures.add(pool.submit(() -> run(scenario)));
+            }
+            List<ScenarioResult> results = new ArrayList<>();
+            for (Future<ScenarioResult> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void writeReport(List<ScenarioResult> results, Writer out) {
+        PrintWriter writer = new PrintWriter(out);
+        // Worst event of each scenario, what the limits apply to; commands also in total
+        writer.printf("%-18s %6s %13s %9s %16s %9s %9s %8s %5s  %s%n",
+                "scenario", "events", "recovery_ms", "relapses", "undershoot_rpm", "commands",
+                "total_cmds", "hunting", "gain", "result");
+        for (ScenarioResult result : results) {
+            long recovery = result.worstRecoveryMs();
+            writer.printf("%-18s %6d %13s %9d %16.1f %9d %9d %8d %5.2f  %s%n",
+                    result.scenario.name,
+                    result.events.size(),
+                    recovery < 0 ? "never" : String.valueOf(recovery),
+                    result.worstRelapses(),
+                    result.worstUndershoot(),
+                    result.worstCommands(),
+                    result.totalCommands,
+                    result.huntingEpisodes,
+                    result.minGain,
+                    result.passed() ? "PASS" : "FAIL");
+        }
+        writer.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<ScenarioResult> results = runAll(defaultScenarios());
+        PrintWriter console = new PrintWriter(System.out);
+        writeReport(results, console);
+        if (args.length > 0) {
+            try (Writer file = new FileWriter(args[0])) {
+                writeReport(results, file);
+            } catch (IOException e) {
+                System.err.println("Could not write " + args[0] + ": " + e.getMessage());
+            }
+        }
+        for (ScenarioResult result : results) {
+            if (!result.passed()) {
+                System.exit(1);
+            }
+        }
+    }
+}
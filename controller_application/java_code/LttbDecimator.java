@@ -0,0 +1,120 @@
+package com.example.motorcontroller;
+
+/**
+ * Largest-Triangle-Three-Buckets decimation onto pixel columns. The time axis is cut into
+ * one bucket per column and each non-empty bucket keeps the one point that spans the largest
+ * triangle with the point kept before it and the average of the next bucket, so a short
+ * drop survives where plain averaging or every-nth-point would flatten or miss it. The first
+ * and last points are always kept. Buckets are by time rather than by point count, so the
+ * output never has more than one point per column however fast or unevenly samples come.
+ *
+ * One pass to sort points into buckets and one to pick, with every array allocated up front
+ * for the widest chart: nothing is allocated per call. Not thread-safe; the chart keeps one
+ * per trace.
+ */
+public class LttbDecimator {
+
+    private final int maxColumns;
+    // Per non-empty bucket: first point, one past the last, and the average point
+    private final int[] bucketStart;
+    private final int[] bucketEnd;
+    private final float[] averageX;
+    private final float[] averageY;
+    private final float[] outX;
+    private final float[] outY;
+    private int outCount = 0;
+
+    public LttbDecimator(int maxColumns) {
+        this.maxColumns = maxColumns;
+        bucketStart = new int[maxColumns];
+        bucketEnd = new int[maxColumns];
+        averageX = new float[maxColumns];
+        averageY = new float[maxColumns];
+        outX = new float[maxColumns];
+        outY = new float[maxColumns];
+    }
+
+    /**
+     * Decimate points already in pixel space, x ascending, onto columns 0..columns-1. Points
+     * outside that range are clamped into the edge columns, and a point behind its
+     * predecessor joins the predecessor's column.
+     *
+     * @return the number of points kept, read back with {@link #getX} and {@link #getY}
+     */
+    public int decimate(float[] x, float[] y, int count, int columns) {
+        columns = Math.min(columns, maxColumns);
+        int buckets = 0;
+        int lastColumn = 0;
+        for (int i = 0; i < count; i++) {
+            int column = Math.max(lastColumn, Math.min(columns - 1, (int) x[i]));
+            if (column != lastColumn || buckets == 0) {
+                if (buckets > 0) {
+                    bucketEnd[buckets - 1] = i;
+                }
+                bucketStart[buckets++] = i;
+                lastColumn = column;
+            }
+        }
+        if (buckets > 0) {
+            bucketEnd[buckets - 1] = count;
+        }
+        outCount = 0;
+        if (buckets == 0) {
+            return 0;
+        }
+        if (buckets <= 2 || count == buckets) {
+            // Nothing to choose between: keep the first point of each bucket, and the last
+            for (int b = 0; b < buckets; b++) {
+                int at = b == buckets - 1 ? bucketEnd[b] - 1 : bucketStart[b];
+                keep(x[at], y[at]);
+            }
+            return outCount;
+        }
+        for (int b = 0; b < buckets; b++) {
+            float sumX = 0;
+            float sumY = 0;
+            for (int i = bucketStart[b]; i < bucketEnd[b]; i++) {
+                sumX += x[i];
+                sumY += y[i];
+            }
+            int n = bucketEnd[b] - bucketStart[b];
+            averageX[b] = sumX / n;
+            averageY[b] = sumY / n;
+        }
+
+        keep(x[0], y[0]);
+        for (int b = 1; b < buckets - 1; b++) {
+            float ax = outX[outCount - 1];
+            float ay = outY[outCount - 1];
+            float cx = averageX[b + 1];
+            float cy = averageY[b + 1];
+            int best = bucketStart[b];
+            float bestArea = -1;
+            for (int i = bucketStart[b]; i < bucketEnd[b]; i++) {
+                // Twice the triangle's area; only the comparison matters
+                float area = Math.abs((ax - cx) * (y[i] - ay) - (ax - x[i]) * (cy - ay));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            keep(x[best], y[best]);
+        }
+        keep(x[count - 1], y[count - 1]);
+        return outCount;
+    }
+
+    private void keep(float px, float py) {
+        outX[outCount] = px;
+        outY[outCount] = py;
+        outCount++;
+    }
+
+    public float getX(int i) {
+        return outX[i];
+    }
+
+    public float getY(int i) {
+        return outY[i];
+    }
+}
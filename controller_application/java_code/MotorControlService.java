@@ -0,0 +1,641 @@
+package com.example.motorcontroller;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Owns the Bluetooth session. The link, reader and writer threads and speed compensation
+ * all live in {@link ControlLoop}; this service keeps them alive in the foreground while
+ * connected, so rotating the screen or leaving the app does not drop the link. MainActivity
+ * binds to it and only renders {@link ControllerState}.
+ *
+ * All public methods must be called on the main thread.
+ *
+ * Needs to be declared in AndroidManifest.xml with
+ * android:foregroundServiceType="connectedDevice" and the FOREGROUND_SERVICE permissions,
+ * and the INTERNET permission for the telemetry server.
+ *
+ * Bench runs can start a drive cycle from adb while connected:
+ *   adb shell am startservice -n com.example.motorcontroller/.MotorControlService \
+ *       -a com.example.motorcontroller.RUN_DRIVE_CYCLE --es profile /sdcard/Download/cycle.txt
+ * The record is written as CSV to the app's external files dir, under drive_cycles/.
+ */
+public class MotorControlService extends Service implements ControlLoop.Events {
+
+    private static final String TAG = "MotorControlService";
+    private static final String NOTIFICATION_CHANNEL_ID = "motor_controller";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int BACKGROUND_THREADS = 2;
+
+    public static final String ACTION_RUN_DRIVE_CYCLE = "com.example.motorcontroller.RUN_DRIVE_CYCLE";
+    public static final String EXTRA_PROFILE = "profile";
+    // e.g. adb shell am startservice -a ...SET_STRATEGY --es strategy rev4 --es shadow rev2,rev5
+    public static final String ACTION_SET_STRATEGY = "com.example.motorcontroller.SET_STRATEGY";
+    public static final String EXTRA_STRATEGY = "strategy";
+    public static final String EXTRA_SHADOW = "shadow";
+    // e.g. adb shell am startservice -a ...SET_GAIN_SCHEDULE --es schedule /sdcard/Download/gains.txt
+    public static final String ACTION_SET_GAIN_SCHEDULE = "com.example.motorcontroller.SET_GAIN_SCHEDULE";
+    public static final String EXTRA_SCHEDULE = "schedule";
+    // e.g. adb shell am startservice -a ...SET_RPM_RATE --ei hz 100   (0 = reports only)
+    public static final String ACTION_SET_RPM_RATE = "com.example.motorcontroller.SET_RPM_RATE";
+    public static final String EXTRA_HZ = "hz";
+    // e.g. adb shell am startservice -a ...SET_REPORT_RATE --ei interval_ms 200   (0 = adaptive)
+    public static final String ACTION_SET_REPORT_RATE = "com.example.motorcontroller.SET_REPORT_RATE";
+    public static final String EXTRA_INTERVAL_MS = "interval_ms";
+    // e.g. adb shell am startservice -a ...SET_TELEMETRY_SERVER --ei port 8765   (0 = stop)
+    public static final String ACTION_SET_TELEMETRY_SERVER = "com.example.motorcontroller.SET_TELEMETRY_SERVER";
+    public static final String EXTRA_PORT = "port";
+    // e.g. adb shell am startservice -a ...DRIVE --es macro spin_left --ez compound false
+    public static final String ACTION_DRIVE = "com.example.motorcontroller.DRIVE";
+    public static final String EXTRA_MACRO = "macro";
+    public static final String EXTRA_COMPOUND = "compound";
+
+    /**
+     * Binder handed to MainActivity.
+     */
+    public class LocalBinder extends Binder {
+        MotorControlService getService() {
+            return MotorControlService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Discovery and report saving; bounded so a burst of anomalies can't pile up threads
+    private final ExecutorService background = Executors.newFixedThreadPool(BACKGROUND_THREADS,
+            task -> new Thread(task, "service-background"));
+
+    // Compensation and the state shown by the UI live here, not in the Activity
+    private ControllerState state;
+    private ControlLoop controlLoop;
+
+    // Fast reconnect to the last controller
+    private BluetoothAdapter bluetoothAdapter;
+    private LastDeviceStore lastDeviceStore;
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private BluetoothConnector pendingConnector;   // connector of the attempt in flight
+    private boolean reconnecting = false;
+    private final Runnable reconnectTask = this::attemptReconnect;
+
+    // At most one discovery run at a time
+    private boolean discoveryRunning = false;
+
+    // Live telemetry for dashboards on the LAN; null while off
+    private TelemetryServer telemetryServer;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        state = new ControllerState(mainHandler::post);
+        controlLoop = new ControlLoop(state, this);
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        lastDeviceStore = new LastDeviceStore(this);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_RUN_DRIVE_CYCLE.equals(intent.getAction())) {
+            runDriveCycle(intent.getStringExtra(EXTRA_PROFILE));
+        } else if (intent != null && ACTION_SET_STRATEGY.equals(intent.getAction())) {
+            String strategy = intent.getStringExtra(EXTRA_STRATEGY);
+            if (strategy != null) {
+                setCompensationStrategy(strategy);
+            }
+            String shadow = intent.getStringExtra(EXTRA_SHADOW);
+            if (shadow != null) {
+                setShadowStrategies(shadow.isEmpty()
+                        ? Collections.<String>emptyList() : Arrays.asList(shadow.split(",")));
+            }
+        } else if (intent != null && ACTION_SET_GAIN_SCHEDULE.equals(intent.getAction())) {
+            setGainSchedule(intent.getStringExtra(EXTRA_SCHEDULE));
+        } else if (intent != null && ACTION_SET_RPM_RATE.equals(intent.getAction())) {
+            setHighResolutionRpm(intent.getIntExtra(EXTRA_HZ, 0));
+        } else if (intent != null && ACTION_SET_REPORT_RATE.equals(intent.getAction())) {
+            setReportInterval(intent.getIntExtra(EXTRA_INTERVAL_MS, 0));
+        } else if (intent != null && ACTION_SET_TELEMETRY_SERVER.equals(intent.getAction())) {
+            setTelemetryServerPort(intent.getIntExtra(EXTRA_PORT, 0));
+        } else if (intent != null && ACTION_DRIVE.equals(intent.getAction())) {
+            drive(intent.getStringExtra(EXTRA_MACRO), intent.getBooleanExtra(EXTRA_COMPOUND, true));
+        }
+        // A dropped Bluetooth link cannot be restored by the system, so don't ask for a restart
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        setTelemetryServerPort(0);
+        controlLoop.shutdown();
+        background.shutdown();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    public ControllerState getState() {
+        return state;
+    }
+
+    /**
+     * Recent readings for the live chart.
+     */
+    public ChartBuffer getChart() {
+        return controlLoop.getChart();
+    }
+
+    /**
+     * Connect to the chosen device and go to the foreground for the life of the connection.
+     */
+    public void connectToDevice(BluetoothDevice device) {
+        if (!hasBluetoothPermission()) {
+            showToast("Bluetooth permission not granted");
+            return;
+        }
+        stopReconnecting();
+        connect(new BluetoothConnector(bluetoothAdapter, device));
+    }
+
+    /**
+     * Connect to the controller we used last, without asking the user.
+     *
+     * @return false if there is no remembered controller or it is no longer paired
+     */
+    public boolean connectToLastDevice() {
+        BluetoothConnector connector = lastDeviceConnector();
+        if (connector == null || !hasBluetoothPermission()) {
+            return false;
+        }
+        stopReconnecting();
+        connector.prewarm();
+        connect(connector);
+        return true;
+    }
+
+    /**
+     * Disconnect from the current device and leave the foreground.
+     */
+    public void disconnectDevice() {
+        stopReconnecting();
+        boolean wasConnected = state.getSnapshot().isConnected();
+        controlLoop.disconnect();
+        if (!wasConnected) {
+            // No link to report its loss, so nothing else will stop us
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    /**
+     * Speed chosen by the user on the SeekBar.
+     */
+    public void setSpeedFromUser(int speed) {
+        controlLoop.setSpeedFromUser(speed);
+    }
+
+    /**
+     * Set both motors for a manoeuvre by name (straight, reverse, spin_left, spin_right,
+     * pivot_left, pivot_right, stop): as one compound frame, or as two separate commands to
+     * compare the skew.
+     */
+    public void drive(String macroName, boolean compound) {
+        DriveMacro macro = DriveMacro.parse(macroName);
+        if (macro == null) {
+            showToast("Unknown manoeuvre: " + macroName);
+        } else if (state.getSnapshot().isConnected()) {
+            controlLoop.drive(macro, compound);
+        } else {
+            showToast("Not connected to any device");
+        }
+    }
+
+    /**
+     * Send a command string over Bluetooth if connected.
+     */
+    public void sendCommand(String command) {
+        if (state.getSnapshot().isConnected()) {
+            controlLoop.sendCommand(command);
+        } else {
+            showToast("Not connected to any device");
+        }
+    }
+
+    /**
+     * Probe all bonded devices that may offer SPP and report the ranked results on the main
+     * thread. Only runs while disconnected, since probing opens RFCOMM links.
+     *
+     * @return false if discovery could not start
+     */
+    public boolean discoverControllers(Consumer<List<ControllerDiscovery.Result>> callback) {
+        ControllerState.Snapshot snapshot = state.getSnapshot();
+        if (discoveryRunning || snapshot.isConnected() || snapshot.isConnecting()
+                || bluetoothAdapter == null || !hasBluetoothPermission()) {
+            return false;
+        }
+        List<ControllerDiscovery.Candidate> candidates = new ArrayList<>();
+        Set<BluetoothDevice> bonded = bluetoothAdapter.getBondedDevices();
+        for (BluetoothDevice device : bonded) {
+            if (mayOfferSerialPort(device)) {
+                candidates.add(new ControllerDiscovery.Candidate(device.getName(),
+                        new BluetoothConnector(bluetoothAdapter, device)));
+            }
+        }
+        discoveryRunning = true;
+        if (!runInBackground(() -> {
+            List<ControllerDiscovery.Result> results = ControllerDiscovery.probeAll(candidates);
+            mainHandler.post(() -> {
+                discoveryRunning = false;
+                callback.accept(results);
+            });
+        })) {
+            discoveryRunning = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the device's cached SDP records include SPP. Devices we have no records for
+     * yet are probed anyway.
+     */
+    private static boolean mayOfferSerialPort(BluetoothDevice device) {
+        ParcelUuid[] uuids = device.getUuids();
+        if (uuids == null) {
+            return true;
+        }
+        for (ParcelUuid uuid : uuids) {
+            if (BluetoothConnector.BT_MODULE_UUID.equals(uuid.getUuid())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Connect using a connector found by {@link #discoverControllers}.
+     */
+    public void connectToDiscovered(ControllerDiscovery.Result result) {
+        stopReconnecting();
+        connect((BluetoothConnector) result.getCandidate().getConnector());
+    }
+
+    /**
+     * Select the compensation strategy, one of {@link CompensationHost#STRATEGIES}.
+     */
+    public void setCompensationStrategy(String name) {
+        if (!CompensationHost.STRATEGIES.contains(name)) {
+            showToast("Unknown strategy " + name + ", expected one of " + CompensationHost.STRATEGIES);
+            return;
+        }
+        controlLoop.setCompensationStrategy(name);
+    }
+
+    /**
+     * Run these strategies in shadow mode next to the selected one; empty to stop.
+     */
+    public void setShadowStrategies(List<String> names) {
+        controlLoop.setShadowStrategies(new ArrayList<>(names));
+    }
+
+    /**
+     * Load a gain schedule file and switch to it without stopping the motor; null goes back
+     * to the default thresholds.
+     */
+    public void setGainSchedule(String schedulePath) {
+        if (schedulePath == null) {
+            controlLoop.setGainSchedule(GainSchedule.DEFAULT);
+            showToast("Default gain schedule");
+            return;
+        }
+        try (Reader reader = new FileReader(schedulePath)) {
+            GainSchedule schedule = GainSchedule.parse(new File(schedulePath).getName(), reader);
+            controlLoop.setGainSchedule(schedule);
+            showToast("Gain schedule " + schedule.getName());
+        } catch (IOException e) {
+            showToast("Bad gain schedule: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuild RPM from pulse periods at this many samples per second, or 0 for the
+     * once-a-second reports only.
+     */
+    public void setHighResolutionRpm(int outputHz) {
+        if (outputHz != 0 && (outputHz < PulseRpmReconstructor.MIN_OUTPUT_HZ
+                || outputHz > PulseRpmReconstructor.MAX_OUTPUT_HZ)) {
+            showToast("RPM rate must be 0 or " + PulseRpmReconstructor.MIN_OUTPUT_HZ + "-"
+                    + PulseRpmReconstructor.MAX_OUTPUT_HZ + " Hz");
+            return;
+        }
+        controlLoop.setHighResolutionRpm(outputHz);
+    }
+
+    /**
+     * Have the controller report RPM every intervalMs, or 0 to let the app choose: fast
+     * while compensating or ramping, slow while stopped.
+     */
+    public void setReportInterval(int intervalMs) {
+        if (intervalMs != 0 && (intervalMs < ReportRate.MIN_INTERVAL_MS
+                || intervalMs > ReportRate.MAX_INTERVAL_MS)) {
+            showToast("Report interval must be 0 or " + ReportRate.MIN_INTERVAL_MS + "-"
+                    + ReportRate.MAX_INTERVAL_MS + " ms");
+            return;
+        }
+        controlLoop.setReportInterval(intervalMs);
+    }
+
+    /**
+     * Serve live telemetry to dashboards on this port, or stop serving with 0.
+     */
+    public void setTelemetryServerPort(int port) {
+        if (telemetryServer != null) {
+            controlLoop.setSampleTap(null);
+            state.removeListener(telemetryServer);
+            telemetryServer.stop();
+            telemetryServer = null;
+        }
+        if (port <= 0) {
+            return;
+        }
+        TelemetryServer server = new TelemetryServer(port);
+        try {
+            server.start();
+        } catch (IOException e) {
+            showToast("Telemetry server: " + e.getMessage());
+            return;
+        }
+        telemetryServer = server;
+        state.addListener(server);
+        controlLoop.setSampleTap(server);
+        showToast("Telemetry on port " + server.getPort());
+    }
+
+    /**
+     * Load a profile file and execute it against the current connection.
+     */
+    public void runDriveCycle(String profilePath) {
+        if (profilePath == null || !state.getSnapshot().isConnected()) {
+            showToast("Drive cycle needs a profile and a connected controller");
+            return;
+        }
+        DriveProfile profile;
+        try (Reader reader = new FileReader(profilePath)) {
+            profile = DriveProfile.parse(new File(profilePath).getName(), reader);
+        } catch (IOException e) {
+            showToast("Bad drive profile: " + e.getMessage());
+            return;
+        }
+        showToast("Running drive cycle " + profile.getName());
+        controlLoop.runDriveCycle(profile, record -> runInBackground(() -> saveDriveCycle(record)));
+    }
+
+    /**
+     * Runs slow work off the main and control threads. Returns false once the service is
+     * being destroyed and the task was dropped.
+     */
+    private boolean runInBackground(Runnable task) {
+        try {
+            background.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Service shutting down, dropped background task");
+            return false;
+        }
+    }
+
+    private void saveDriveCycle(DriveCycleRecord record) {
+        File dir = new File(getExternalFilesDir(null), "drive_cycles");
+        String baseName = record.getProfile().getName() + "-" + System.currentTimeMillis();
+        File file = new File(dir, baseName + ".csv");
+        String message;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            message = "Could not create " + dir;
+        } else {
+            try (Writer writer = new FileWriter(file)) {
+                record.writeCsv(writer);
+                // Compact copy of the trace for sharing; see TelemetryWriter
+                record.writeTelemetry(new FileOutputStream(new File(dir, baseName + ".mtl")));
+                message = (record.isAborted() ? "Drive cycle aborted" : "Drive cycle done")
+                        + ", max timing error " + record.getMaxApplyErrorMicros() + " us";
+            } catch (IOException e) {
+                message = "Could not save drive cycle: " + e.getMessage();
+            }
+        }
+        Log.i(TAG, message + " -> " + file);
+        String toast = message;
+        mainHandler.post(() -> showToast(toast));
+    }
+
+    private void connect(BluetoothConnector connector) {
+        // Keep the service alive once the Activity unbinds
+        startService(new Intent(this, MotorControlService.class));
+        pendingConnector = connector;
+        controlLoop.connect(connector);
+    }
+
+    private BluetoothConnector lastDeviceConnector() {
+        String address = lastDeviceStore.getAddress();
+        if (bluetoothAdapter == null || address == null
+                || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        return new BluetoothConnector(bluetoothAdapter, bluetoothAdapter.getRemoteDevice(address));
+    }
+
+    /**
+     * Start retrying the last controller after the link was lost.
+     */
+    private void startReconnecting() {
+        reconnecting = true;
+        reconnectPolicy.reset();
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        long delayMs = reconnectPolicy.nextDelayMs();
+        if (delayMs < 0) {
+            showToast("Could not reconnect to " + lastDeviceStore.getName());
+            stopReconnecting();
+            stopForeground(true);
+            stopSelf();
+            return;
+        }
+        updateNotification("Reconnecting to " + lastDeviceStore.getName()
+                + " (attempt " + reconnectPolicy.getAttempt() + ")");
+        // Create the socket while we wait, so the attempt itself only has to connect
+        BluetoothConnector connector = lastDeviceConnector();
+        if (connector == null) {
+            stopReconnecting();
+            stopSelf();
+            return;
+        }
+        connector.prewarm();
+        pendingConnector = connector;
+        mainHandler.postDelayed(reconnectTask, delayMs);
+    }
+
+    private void attemptReconnect() {
+        if (reconnecting && pendingConnector != null) {
+            controlLoop.connect(pendingConnector);
+        }
+    }
+
+    private void stopReconnecting() {
+        reconnecting = false;
+        mainHandler.removeCallbacks(reconnectTask);
+    }
+
+    private boolean hasBluetoothPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT)
+                    == PackageManager.PERMISSION_GRANTED;
+        }
+        return true;
+    }
+
+    // ---- ControlLoop.Events, called on the control thread ----
+
+    @Override
+    public void onConnected(String deviceName) {
+        mainHandler.post(() -> {
+            stopReconnecting();
+            reconnectPolicy.reset();
+            if (pendingConnector != null) {
+                lastDeviceStore.save(pendingConnector.getDevice().getAddress(), deviceName);
+            }
+            goForeground(deviceName);
+            showToast("Connected to " + deviceName);
+        });
+    }
+
+    @Override
+    public void onConnectFailed(String message) {
+        mainHandler.post(() -> {
+            if (reconnecting) {
+                scheduleReconnect();
+                return;
+            }
+            showToast("Connection failed: " + message);
+            if (!state.getSnapshot().isConnected()) {
+                stopSelf();
+            }
+        });
+    }
+
+    @Override
+    public void onDisconnected(boolean requested) {
+        mainHandler.post(() -> {
+            if (!requested && lastDeviceStore.getAddress() != null) {
+                // Link lost: stay in the foreground and try to get it back
+                showToast("Connection lost, reconnecting");
+                startReconnecting();
+                return;
+            }
+            showToast("Disconnected");
+            stopForeground(true);
+            stopSelf();
+        });
+    }
+
+    @Override
+    public void onFirstCommandSent(long timeToFirstCommandMs) {
+        Log.i(TAG, "Time to first command: " + timeToFirstCommandMs + " ms");
+    }
+
+    @Override
+    public void onAnomaly(AnomalyDetector.Event event) {
+        Log.w(TAG, "Motor stopped: " + event.getKind() + ", " + event.getDetail());
+        runInBackground(() -> saveAnomaly(event));
+        mainHandler.post(() -> showToast("Motor stopped: " + event.getKind() + " ("
+                + event.getDetail() + ")"));
+    }
+
+    private void saveAnomaly(AnomalyDetector.Event event) {
+        File dir = new File(getExternalFilesDir(null), "anomalies");
+        File file = new File(dir, event.getKind() + "-" + System.currentTimeMillis() + ".csv");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Could not create " + dir);
+            return;
+        }
+        try (Writer writer = new FileWriter(file)) {
+            event.writeCsv(writer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void updateNotification(String text) {
+        NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, buildNotification(text));
+    }
+
+    private void goForeground(String deviceName) {
+        Notification notification = buildNotification("Connected to " + deviceName);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification,
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+    }
+
+    private Notification buildNotification(String text) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            manager.createNotificationChannel(new NotificationChannel(
+                    NOTIFICATION_CHANNEL_ID, "Motor controller", NotificationManager.IMPORTANCE_LOW));
+        }
+        PendingIntent openApp = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setContentTitle("Motor Controller")
+                .setContentText(text)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentIntent(openApp)
+                .setOngoing(true)
+                .build();
+    }
+
+    private void showToast(String message) {
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.motorcontroller;
+
+/**
+ * Simulated motor, driver and RPM sensor, close enough to the rigs to exercise the
+ * compensation logic without hardware.
+ *
+ * The motor is first order: it settles toward rpmPerPercent * speed (RPM_PER_PERCENT unless
+ * given) minus the RPM the external load takes away, with time constant TIME_CONSTANT_S. The sensor mirrors the
+ * firmware: 20 slots per revolution, pulses counted over the report interval and reported
+ * as pulses * 3 for a 1 s interval. Current follows estimateCurrent() in
+ * new_motorcontroller_pwm_plotter.ino, minus the back-EMF the firmware ignores.
+ */
+public class MotorPlant {
+
+    static final double RPM_PER_PERCENT = 4.0;      // ~400 RPM at SPEED100, as on the bench
+    static final double TIME_CONSTANT_S = 0.25;
+    static final int SLOTS_PER_REVOLUTION = 20;
+    static final double SUPPLY_VOLTAGE = 12.0;
+    static final double MOTOR_RESISTANCE = 1.2;
+    // Sets the back-EMF constant: an unloaded motor at full speed draws this much
+    static final double NO_LOAD_FULL_SPEED_CURRENT = 0.5;
+
+    private final double rpmPerPercent;
+    private final double backEmfVPerRpm;
+
+    private int command = 0;
+    private double loadRpm = 0;
+    private double rpm = 0;
+    private double pulseAccumulator = 0;
+    private double sinceReportS = 0;
+
+    public MotorPlant() {
+        this(RPM_PER_PERCENT);
+    }
+
+    /**
+     * A motor that runs at rpmPerPercent * 100 RPM at SPEED100, e.g. a different gearbox.
+     */
+    public MotorPlant(double rpmPerPercent) {
+        this.rpmPerPercent = rpmPerPercent;
+        this.backEmfVPerRpm = (SUPPLY_VOLTAGE - NO_LOAD_FULL_SPEED_CURRENT * MOTOR_RESISTANCE)
+                / (rpmPerPercent * 100);
+    }
+
+    public void setCommand(int speed) {
+        command = Math.max(0, Math.min(100, speed));
+    }
+
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * External load, expressed as the steady-state RPM it takes away.
+     */
+    public void setLoadRpm(double loadRpm) {
+        this.loadRpm = Math.max(0, loadRpm);
+    }
+
+    public double getLoadRpm() {
+        return loadRpm;
+    }
+
+    /**
+     * Advance the motor by dtSeconds.
+     */
+    public void step(double dtSeconds) {
+        double target = Math.max(0, rpmPerPercent * command - loadRpm);
+        rpm += (target - rpm) * (1 - Math.exp(-dtSeconds / TIME_CONSTANT_S));
+        pulseAccumulator += rpm / 60.0 * SLOTS_PER_REVOLUTION * dtSeconds;
+        sinceReportS += dtSeconds;
+    }
+
+    /**
+     * The firmware's RPM report for the pulses counted since the last call, like its
+     * once-per-interval "RPM<n>" line. Rounds the same way: whole pulses only.
+     */
+    public int takeReportedRpm() {
+        long pulses = (long) pulseAccumulator;
+        pulseAccumulator -= pulses;
+        double interval = sinceReportS;
+        sinceReportS = 0;
+        if (interval <= 0) {
+            return 0;
+        }
+        return (int) Math.round(pulses * 60.0 / SLOTS_PER_REVOLUTION / interval);
+    }
+
+    public double getRpm() {
+        return rpm;
+    }
+
+    /**
+     * What the firmware reports as CURRENT: applied voltage over resistance, no back-EMF.
+     */
+    public double getAppliedCurrent() {
+        return SUPPLY_VOLTAGE * command / 100.0 / MOTOR_RESISTANCE;
+    }
+
+    /**
+     * Winding current in amps: (V_applied - back-EMF) / R.
+     */
+    public double getCurrent() {
+        double applied = SUPPLY_VOLTAGE * command / 100.0;
+        return Math.max(0, (applied - backEmfVPerRpm * rpm) / MOTOR_RESISTANCE);
+    }
+}
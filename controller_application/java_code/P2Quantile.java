@@ -0,0 +1,134 @@
+package com.example.motorcontroller;
+
+import java.util.Arrays;
+
+/**
+ * Streaming estimate of one quantile with the P² algorithm (Jain and Chlamtac, 1985). Keeps
+ * five markers whatever the number of samples: the minimum, the maximum, the estimate and
+ * one marker halfway to each side. Each sample moves the markers with a parabolic fit to
+ * their neighbours, so the estimate follows the distribution without storing it.
+ *
+ * O(1) memory and no allocation after construction. Not thread-safe.
+ */
+public class P2Quantile {
+
+    private final double p;
+    private final double[] heights = new double[5];
+    private final int[] positions = new int[5];
+    private final double[] desired = new double[5];
+    private final double[] increments;
+    private long count = 0;
+
+    /**
+     * @param p the quantile to track, between 0 and 1 exclusive
+     */
+    public P2Quantile(double p) {
+        if (!(p > 0 && p < 1)) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + p);
+        }
+        this.p = p;
+        this.increments = new double[]{0, p / 2, p, (1 + p) / 2, 1};
+        reset();
+    }
+
+    public double getQuantile() {
+        return p;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+        for (int i = 0; i < 5; i++) {
+            positions[i] = i + 1;
+        }
+        desired[0] = 1;
+        desired[1] = 1 + 2 * p;
+        desired[2] = 1 + 4 * p;
+        desired[3] = 3 + 2 * p;
+        desired[4] = 5;
+    }
+
+    public void add(double x) {
+        if (count < 5) {
+            heights[(int) count] = x;
+            count++;
+            if (count == 5) {
+                Arrays.sort(heights);
+            }
+            return;
+        }
+        count++;
+
+        // Cell the sample falls in; the extremes stretch to take it
+        int k;
+        if (x < heights[0]) {
+            heights[0] = x;
+            k = 0;
+        } else if (x < heights[1]) {
+            k = 0;
+        } else if (x < heights[2]) {
+            k = 1;
+        } else if (x < heights[3]) {
+            k = 2;
+        } else if (x <= heights[4]) {
+            k = 3;
+        } else {
+            heights[4] = x;
+            k = 3;
+        }
+        for (int i = k + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+
+        // Move the middle markers one step toward where they should be
+        for (int i = 1; i <= 3; i++) {
+            double offset = desired[i] - positions[i];
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int d = offset > 0 ? 1 : -1;
+                double height = parabolic(i, d);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] = linear(i, d);
+                }
+                positions[i] += d;
+            }
+        }
+    }
+
+    /**
+     * The current estimate; NaN before the first sample. Exact up to five samples.
+     */
+    public double getEstimate() {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count <= 5) {
+            // Nearest rank over the few samples held, the markers' spacing not yet p's; sorting a copy is fine at this size
+            double[] sorted = Arrays.copyOf(heights, (int) count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p * count) - 1;
+            return sorted[Math.max(0, rank)];
+        }
+        return heights[2];
+    }
+
+    private double parabolic(int i, int d) {
+        double below = positions[i] - positions[i - 1];
+        double above = positions[i + 1] - positions[i];
+        return heights[i] + d / (double) (positions[i + 1] - positions[i - 1])
+                * ((below + d) * (heights[i + 1] - heights[i]) / above
+                + (above - d) * (heights[i] - heights[i - 1]) / below);
+    }
+
+    private double linear(int i, int d) {
+        return heights[i] + d * (heights[i + d] - heights[i]) / (positions[i + d] - positions[i]);
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.motorcontroller;
+
+/**
+ * Rebuilds a continuous RPM signal from the controller's pulse-period batches (PULSES1 mode
+ * of new_motorcontroller_pwm_plotter.ino):
+ *
+ *   PP<batch_micros> <last_pulse_micros> <period_us> <period_us> ...
+ *
+ * Each period is the time between two sensor pulses, 1/20 of a revolution, so one period is
+ * already an RPM measurement; averaging the last AVERAGE_PULSES of them evens out unequal
+ * slot spacing. Samples come out on a fixed grid of the device clock, outputHz per second,
+ * each the average of the pulses before it. Between pulses the value is capped by the RPM a
+ * pulse arriving right now would mean, so a stalled motor reads as slowing down at once
+ * instead of holding its last speed until the next pulse that never comes.
+ *
+ * Work per batch is one step per pulse plus one per output sample, with no allocation:
+ * parsing walks the line in place and the history is a fixed ring. Device times are 32-bit
+ * microseconds and may wrap. Used only on the control thread.
+ */
+public class PulseRpmReconstructor {
+
+    /**
+     * Receives the reconstructed signal.
+     */
+    public interface Sink {
+        /**
+         * @param deviceMicros sample time on the controller's clock, unwrapped: it keeps
+         *                     counting where the firmware's 32-bit micros() wraps
+         */
+        void onRpmSample(long deviceMicros, double rpm);
+    }
+
+    static final int SLOTS_PER_REVOLUTION = 20;
+    static final int AVERAGE_PULSES = 5;        // a quarter turn
+    static final int MIN_OUTPUT_HZ = 50;
+    static final int MAX_OUTPUT_HZ = 200;
+    static final int DEFAULT_OUTPUT_HZ = 100;
+    static final int MAX_PULSES_PER_BATCH = 64;  // the firmware's ring
+    private static final long WRAP = 1L << 32;
+    private static final double RPM_MICROS = 60e6 / SLOTS_PER_REVOLUTION;
+
+    private final Sink sink;
+    private final long outputPeriodMicros;
+
+    // Periods of this batch, parsed in place, and when each pulse arrived (unwrapped)
+    private final long[] batchPeriods = new long[MAX_PULSES_PER_BATCH];
+    private final long[] batchTimes = new long[MAX_PULSES_PER_BATCH];
+    private final int[] cursor = new int[1];
+    // Last AVERAGE_PULSES periods and their sum
+    private final long[] recent = new long[AVERAGE_PULSES];
+    private int recentNext = 0;
+    private int recentCount = 0;
+    private long recentSum = 0;
+
+    private boolean started = false;
+    private long epochOffset = 0;      // added to device micros to unwrap them
+    private long lastDeviceMicros = 0; // last raw batch time, to spot wrap-around
+    private long lastPulseMicros = 0;  // unwrapped
+    private long nextSampleMicros = 0; // unwrapped
+    private long batches = 0;
+    private long malformed = 0;
+
+    public PulseRpmReconstructor(Sink sink) {
+        this(sink, DEFAULT_OUTPUT_HZ);
+    }
+
+    public PulseRpmReconstructor(Sink sink, int outputHz) {
+        if (outputHz < MIN_OUTPUT_HZ || outputHz > MAX_OUTPUT_HZ) {
+            throw new IllegalArgumentException("Output rate must be " + MIN_OUTPUT_HZ + "-"
+                    + MAX_OUTPUT_HZ + " Hz: " + outputHz);
+        }
+        this.sink = sink;
+        this.outputPeriodMicros = 1_000_000L / outputHz;
+    }
+
+    public static boolean isBatch(String line) {
+        return line.startsWith("PP");
+    }
+
+    /**
+     * Take one "PP..." line and emit the samples up to its batch time.
+     *
+     * @return false if the line was malformed and ignored
+     */
+    public boolean onBatch(String line) {
+        // Header: batch time and last pulse time, then the periods
+        int[] cursor = this.cursor;
+        cursor[0] = 2;
+        long batchRaw = nextNumber(line, cursor);
+        long lastPulseRaw = nextNumber(line, cursor);
+        if (batchRaw < 0 || lastPulseRaw < 0) {
+            malformed++;
+            return false;
+        }
+        int count = 0;
+        long period;
+        while ((period = nextNumber(line, cursor)) >= 0) {
+            if (count == MAX_PULSES_PER_BATCH) {
+                malformed++;
+                return false;
+            }
+            batchPeriods[count++] = period;
+        }
+        if (cursor[0] < line.length()) {
+            malformed++;
+            return false;
+        }
+
+        long batchMicros = unwrap(batchRaw);
+        // The last pulse happened at most one wrap before the batch time
+        long lastPulse = batchMicros - ((batchRaw - lastPulseRaw) & (WRAP - 1));
+        if (!started) {
+            started = true;
+            nextSampleMicros = batchMicros;
+            lastPulseMicros = count > 0 ? lastPulse : batchMicros;
+        }
+        // Pulse times, walking back from the last one
+        long at = lastPulse;
+        for (int i = count - 1; i >= 0; i--) {
+            batchTimes[i] = at;
+            at -= batchPeriods[i];
+        }
+
+        int pulse = 0;
+        while (nextSampleMicros <= batchMicros) {
+            while (pulse < count && batchTimes[pulse] <= nextSampleMicros) {
+                addPeriod(batchPeriods[pulse]);
+                lastPulseMicros = batchTimes[pulse];
+                pulse++;
+            }
+            sink.onRpmSample(nextSampleMicros, rpmAt(nextSampleMicros));
+            nextSampleMicros += outputPeriodMicros;
+        }
+        // Pulses after the last grid point count toward the next batch's first samples
+        for (; pulse < count; pulse++) {
+            addPeriod(batchPeriods[pulse]);
+            lastPulseMicros = batchTimes[pulse];
+        }
+        batches++;
+        return true;
+    }
+
+    private double rpmAt(long micros) {
+        if (recentCount == 0) {
+            return 0;
+        }
+        double averagePeriod = recentSum / (double) recentCount;
+        // No pulse for longer than the period: the motor is at most this fast now
+        long sinceLast = micros - lastPulseMicros;
+        double period = Math.max(averagePeriod, sinceLast);
+        return RPM_MICROS / period;
+    }
+
+    private void addPeriod(long period) {
+        if (recentCount == AVERAGE_PULSES) {
+            recentSum -= recent[recentNext];
+        } else {
+            recentCount++;
+        }
+        recent[recentNext] = period;
+        recentSum += period;
+        recentNext = (recentNext + 1) % AVERAGE_PULSES;
+    }
+
+    private long unwrap(long raw) {
+        if (started && raw < lastDeviceMicros && lastDeviceMicros - raw > WRAP / 2) {
+            epochOffset += WRAP;
+        }
+        lastDeviceMicros = raw;
+        return raw + epochOffset;
+    }
+
+    // Next unsigned decimal after spaces, or -1 at the end of the line
+    private static long nextNumber(String line, int[] cursor) {
+        int i = cursor[0];
+        int length = line.length();
+        while (i < length && line.charAt(i) == ' ') {
+            i++;
+        }
+        long value = 0;
+        int start = i;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            i++;
+        }
+        cursor[0] = i;
+        return i == start ? -1 : value;
+    }
+
+    /**
+     * Forget the history, e.g. when the mode is switched on again or the link changes.
+     */
+    public void reset() {
+        started = false;
+        epochOffset = 0;
+        lastDeviceMicros = 0;
+        recentNext = 0;
+        recentCount = 0;
+        recentSum = 0;
+        batches = 0;
+        malformed = 0;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getMalformed() {
+        return malformed;
+    }
+
+    public int getOutputHz() {
+        return (int) (1_000_000L / outputPeriodMicros);
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.motorcontroller;
+
+/**
+ * Recent RPM readings by arrival time, for the strategies whose thresholds were tuned on the
+ * firmware's one report a second. A drop threshold of 50 RPM between two readings means 50
+ * RPM in a second; at the fast report rate (see {@link ReportRate}) a load step is spread
+ * over several readings and none of them would drop that far. So readings are compared with
+ * the one a nominal interval back rather than with the previous one, and consistency is
+ * counted in nominal intervals of time rather than in readings. At one report a second both
+ * come out exactly as before.
+ *
+ * A fixed ring with no allocation. Used only on the control thread.
+ */
+class ReadingWindow {
+
+    static final long NOMINAL_INTERVAL_MS = 1000;
+    // A report arriving this much early still counts as a nominal interval back
+    private static final long SLACK_MS = NOMINAL_INTERVAL_MS / 4;
+    // Readings back to a nominal interval at the fastest rate, with room to spare
+    private static final int CAPACITY = 32;
+
+    private final long[] times = new long[CAPACITY];
+    private final int[] rpms = new int[CAPACITY];
+    private int count = 0;
+    private long consistentMs = 0;
+
+    /**
+     * The reading to compare one arriving at nowMs with: the newest at least a nominal
+     * interval older, or the oldest kept if none is. Null if there is none yet.
+     */
+    Integer reference(long nowMs) {
+        if (count == 0) {
+            return null;
+        }
+        int oldest = Math.max(0, count - CAPACITY);
+        int found = oldest;
+        for (int i = count - 1; i >= oldest; i--) {
+            if (nowMs - times[i % CAPACITY] >= NOMINAL_INTERVAL_MS - SLACK_MS) {
+                found = i;
+                break;
+            }
+        }
+        return rpms[found % CAPACITY];
+    }
+
+    /**
+     * Keep a reading, and whether it was consistent with its reference.
+     */
+    void add(int rpm, long nowMs, boolean consistent) {
+        if (!consistent) {
+            consistentMs = 0;
+        } else if (count > 0) {
+            // The time this reading covers since the previous one
+            consistentMs += nowMs - times[(count - 1) % CAPACITY];
+        }
+        int slot = count % CAPACITY;
+        times[slot] = nowMs;
+        rpms[slot] = rpm;
+        count++;
+    }
+
+    /**
+     * True once readings have been consistent for this many nominal intervals, i.e. what
+     * used to be this many consistent readings in a row.
+     */
+    boolean consistentFor(int intervals) {
+        return consistentMs >= intervals * NOMINAL_INTERVAL_MS - SLACK_MS;
+    }
+
+    /**
+     * Forget the consistency count, keeping the readings.
+     */
+    void clearConsistency() {
+        consistentMs = 0;
+    }
+
+    /**
+     * Keep only the newest reading, e.g. after a boost, so later readings are compared with
+     * the one that prompted it rather than with those before it.
+     */
+    void rebase() {
+        if (count > 1) {
+            int newest = (count - 1) % CAPACITY;
+            times[0] = times[newest];
+            rpms[0] = rpms[newest];
+            count = 1;
+        }
+        consistentMs = 0;
+    }
+
+    /**
+     * Forget everything, for a new connection.
+     */
+    void clear() {
+        count = 0;
+        consistentMs = 0;
+    }
+}
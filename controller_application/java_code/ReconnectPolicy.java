@@ -0,0 +1,49 @@
+package com.example.motorcontroller;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter for reconnecting to the last controller. Attempt n
+ * waits a random time in [0, min(MAX_DELAY_MS, BASE_DELAY_MS * 2^n)], so a rig that
+ * comes back quickly is picked up quickly, while a dead one is not hammered.
+ */
+public class ReconnectPolicy {
+
+    static final long BASE_DELAY_MS = 250;
+    static final long MAX_DELAY_MS = 15000;
+    static final int MAX_ATTEMPTS = 10;   // give up after this many failures in a row
+
+    private final Random random;
+    private int attempt = 0;
+
+    public ReconnectPolicy() {
+        this(new Random());
+    }
+
+    ReconnectPolicy(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Delay before the next attempt, or -1 when it is time to give up.
+     */
+    public long nextDelayMs() {
+        if (attempt >= MAX_ATTEMPTS) {
+            return -1;
+        }
+        long ceiling = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 20));
+        attempt++;
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    /**
+     * Call after a successful connection.
+     */
+    public void reset() {
+        attempt = 0;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.motorcontroller;
+
+/**
+ * Which RPM report interval to ask the controller for. The firmware reports once a second
+ * unless told otherwise with
+ *
+ *   RATE<ms>        e.g. RATE200, 100-5000, echoed as "Rate: <ms>"
+ *
+ * and once a second is both too slow to follow compensation and more than a stopped motor
+ * needs. So the app asks for FAST_INTERVAL_MS while compensating or ramping, and for
+ * HOLD_MS after, so the recovery and a following drop are seen in detail; SLOW_INTERVAL_MS
+ * while stopped; NORMAL_INTERVAL_MS otherwise. A RATE command goes out only when the
+ * interval changes, and again on every connection since the controller keeps its rate across
+ * them. A fixed interval can be set instead, for measurements.
+ *
+ * Whatever the interval, the firmware scales each report to RPM by the time it covers, and
+ * the calculations over several reports work in time rather than report counts (see
+ * {@link ReadingWindow}, {@link HuntingDetector}, {@link TorqueEstimator} and
+ * {@link AnomalyDetector}). Used only on the control thread.
+ */
+public class ReportRate {
+
+    // The firmware's bounds
+    static final int MIN_INTERVAL_MS = 100;
+    static final int MAX_INTERVAL_MS = 5000;
+    public static final int FAST_INTERVAL_MS = 200;
+    public static final int NORMAL_INTERVAL_MS = 1000;   // the firmware's default
+    public static final int SLOW_INTERVAL_MS = 2000;
+    static final long HOLD_MS = 3000;
+
+    private int fixedIntervalMs = 0;
+    private int requestedMs = 0;
+    private int confirmedMs = NORMAL_INTERVAL_MS;
+    private boolean wasBusy = false;
+    private long lastBusyMs = 0;
+    private long changes = 0;
+
+    /**
+     * "RATE<ms>\n" for the given interval.
+     */
+    public static String command(int intervalMs) {
+        return "RATE" + intervalMs + "\n";
+    }
+
+    /**
+     * Always ask for this interval, or 0 to choose by what the motor is doing.
+     */
+    public void setFixedInterval(int intervalMs) {
+        fixedIntervalMs = intervalMs <= 0 ? 0
+                : Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, intervalMs));
+    }
+
+    public int getFixedInterval() {
+        return fixedIntervalMs;
+    }
+
+    /**
+     * Called regularly. busy is true while compensating or ramping, stopped while the speed
+     * is 0 and not ramping.
+     *
+     * @return the interval to send a RATE command for, or 0 if the one asked for stands
+     */
+    public int update(boolean busy, boolean stopped, long nowMs) {
+        if (busy) {
+            wasBusy = true;
+            lastBusyMs = nowMs;
+        }
+        int wanted;
+        if (fixedIntervalMs > 0) {
+            wanted = fixedIntervalMs;
+        } else if (busy || (wasBusy && nowMs - lastBusyMs < HOLD_MS)) {
+            wanted = FAST_INTERVAL_MS;
+        } else if (stopped) {
+            wanted = SLOW_INTERVAL_MS;
+        } else {
+            wanted = NORMAL_INTERVAL_MS;
+        }
+        if (wanted == requestedMs) {
+            return 0;
+        }
+        requestedMs = wanted;
+        changes++;
+        return wanted;
+    }
+
+    /**
+     * The controller confirmed an interval with "Rate: <ms>".
+     */
+    public void onEcho(int intervalMs) {
+        confirmedMs = intervalMs;
+    }
+
+    /**
+     * A new connection: the controller's rate is unknown, so the next update sends one.
+     */
+    public void reset() {
+        requestedMs = 0;
+        confirmedMs = NORMAL_INTERVAL_MS;
+        wasBusy = false;
+    }
+
+    /**
+     * The interval last asked for, 0 if none yet on this connection.
+     */
+    public int getRequested() {
+        return requestedMs;
+    }
+
+    /**
+     * The interval the controller last confirmed; its default until then.
+     */
+    public int getConfirmed() {
+        return confirmedMs;
+    }
+
+    /**
+     * RATE commands sent since the app started.
+     */
+    public long getChanges() {
+        return changes;
+    }
+}
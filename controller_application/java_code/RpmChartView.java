@@ -0,0 +1,346 @@
+package com.example.motorcontroller;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Scrolling chart of the last WINDOW_MICROS of RPM, setpoint and motor current, with the
+ * stretches where compensation was active shaded and each start marked by a line, so the
+ * drops that trigger it can be seen rather than guessed from the RPM number. Drawn on its
+ * own thread into a SurfaceView (a hardware canvas where the platform has one), so a busy
+ * UI thread does not stall it and it does not stall the UI thread.
+ *
+ * Each frame copies the visible part of the {@link ChartBuffer} and cuts every trace down
+ * to at most one point per pixel column with {@link LttbDecimator}, so drawing costs the
+ * same at 1 or 200 samples a second. The arrays, paints and text buffer are made when the
+ * buffer or the surface size changes; a frame allocates nothing.
+ *
+ * Axes: RPM from 0 to a rounded-up maximum of the window, setpoint 0-100 and current from 0
+ * to its own rounded-up maximum, all over the full height.
+ */
+public class RpmChartView extends SurfaceView implements SurfaceHolder.Callback {
+
+    static final long WINDOW_MICROS = 10_000_000L;
+    static final long FRAME_INTERVAL_MS = 33;        // about 30 frames a second
+    // Readings further apart than this are not joined, e.g. across a disconnection
+    static final long GAP_MICROS = 2_500_000L;
+    private static final float RPM_STEP = 50;
+    private static final float CURRENT_STEP_MA = 500;
+
+    private static final int RPM_COLOR = Color.rgb(0x4F, 0xC3, 0xF7);
+    private static final int SETPOINT_COLOR = Color.rgb(0xFF, 0xB7, 0x4D);
+    private static final int CURRENT_COLOR = Color.rgb(0x81, 0xC7, 0x84);
+    private static final int COMPENSATING_COLOR = Color.argb(0x40, 0xE5, 0x73, 0x73);
+    private static final int MARKER_COLOR = Color.rgb(0xE5, 0x73, 0x73);
+
+    private final Paint rpmPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint setpointPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint currentPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint shadePaint = new Paint();
+    private final Paint markerPaint = new Paint();
+    private final Paint gridPaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final char[] text = new char[64];
+    private final float density;
+
+    private volatile ChartBuffer buffer;
+    private Thread renderThread;
+    private volatile boolean rendering = false;
+
+    // Render thread only
+    private ChartBuffer copiedFrom = null;
+    private long[] times = new long[0];
+    private float[] rpm = new float[0];
+    private float[] setpoint = new float[0];
+    private float[] currentMa = new float[0];
+    private byte[] flags = new byte[0];
+    private float[] traceX = new float[0];
+    private float[] traceY = new float[0];
+    private float[] lines = new float[0];
+    private LttbDecimator decimator = null;
+    private long lastWritten = -1;
+    private long lastEntryMicros = Long.MIN_VALUE;
+
+    public RpmChartView(Context context) {
+        this(context, null);
+    }
+
+    public RpmChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        density = context.getResources().getDisplayMetrics().density;
+        rpmPaint.setColor(RPM_COLOR);
+        rpmPaint.setStrokeWidth(2 * density);
+        setpointPaint.setColor(SETPOINT_COLOR);
+        setpointPaint.setStrokeWidth(1.5f * density);
+        currentPaint.setColor(CURRENT_COLOR);
+        currentPaint.setStrokeWidth(1.5f * density);
+        shadePaint.setColor(COMPENSATING_COLOR);
+        markerPaint.setColor(MARKER_COLOR);
+        markerPaint.setStrokeWidth(density);
+        gridPaint.setColor(Color.DKGRAY);
+        gridPaint.setStrokeWidth(1);
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(12 * density);
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Chart this history, or nothing with null. May be called from any thread.
+     */
+    public void setBuffer(ChartBuffer chartBuffer) {
+        buffer = chartBuffer;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        rendering = true;
+        renderThread = new Thread(() -> render(holder), "rpm-chart");
+        renderThread.start();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        lastWritten = -1;   // redraw at the new size
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        // The surface must not be drawn on once this returns
+        rendering = false;
+        Thread thread = renderThread;
+        renderThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // ---- Render thread ----
+
+    private void render(SurfaceHolder holder) {
+        while (rendering) {
+            long frameStart = System.nanoTime();
+            ChartBuffer source = buffer;
+            long nowMicros = frameStart / 1000;
+            // Redraw on new data, and keep scrolling until the last reading leaves the window
+            boolean changed = source == null ? lastWritten != -2
+                    : source.getWritten() != lastWritten || nowMicros - lastEntryMicros < WINDOW_MICROS;
+            if (changed) {
+                Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                        ? holder.lockHardwareCanvas() : holder.lockCanvas();
+                if (canvas != null) {
+                    try {
+                        drawFrame(canvas, source, nowMicros);
+                    } finally {
+                        holder.unlockCanvasAndPost(canvas);
+                    }
+                }
+            }
+            long sleepMs = FRAME_INTERVAL_MS - (System.nanoTime() - frameStart) / 1_000_000L;
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drawFrame(Canvas canvas, ChartBuffer source, long nowMicros) {
+        canvas.drawColor(Color.BLACK);
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        if (source == null) {
+            lastWritten = -2;
+            return;
+        }
+        ensureCapacity(source, width);
+        lastWritten = source.getWritten();
+        long fromMicros = nowMicros - WINDOW_MICROS;
+        int count = source.copySince(fromMicros, times, rpm, setpoint, currentMa, flags);
+        if (count > 0) {
+            lastEntryMicros = times[count - 1];
+        }
+
+        float top = textPaint.getTextSize() * 1.6f;
+        float bottom = height - 1;
+        float plotHeight = bottom - top;
+        float xScale = width / (float) WINDOW_MICROS;
+
+        float maxRpm = 0;
+        float maxCurrent = 0;
+        for (int i = 0; i < count; i++) {
+            maxRpm = Math.max(maxRpm, rpm[i]);
+            if (currentMa[i] > maxCurrent) {
+                maxCurrent = currentMa[i];
+            }
+        }
+        maxRpm = roundUp(maxRpm * 1.1f, RPM_STEP);
+        maxCurrent = roundUp(maxCurrent * 1.1f, CURRENT_STEP_MA);
+
+        // Grid at every RPM_STEP (thinned to at most eight lines)
+        float gridStep = RPM_STEP;
+        while (maxRpm / gridStep > 8) {
+            gridStep *= 2;
+        }
+        for (float value = gridStep; value < maxRpm; value += gridStep) {
+            float y = bottom - value / maxRpm * plotHeight;
+            canvas.drawLine(0, y, width, y, gridPaint);
+        }
+
+        // Compensation: shade each stretch and mark where it started
+        int runStart = -1;
+        for (int i = 0; i <= count; i++) {
+            boolean on = i < count && (flags[i] & ChartBuffer.FLAG_COMPENSATING) != 0;
+            if (on && runStart < 0) {
+                runStart = i;
+            } else if (!on && runStart >= 0) {
+                float left = (times[runStart] - fromMicros) * xScale;
+                float right = (times[i - 1] - fromMicros) * xScale;
+                canvas.drawRect(left, top, Math.max(right, left + 1), bottom, shadePaint);
+                if (runStart > 0) {   // began inside the window
+                    canvas.drawLine(left, top, left, bottom, markerPaint);
+                }
+                runStart = -1;
+            }
+        }
+
+        drawTrace(canvas, setpoint, count, fromMicros, xScale, width, bottom, plotHeight / 100f,
+                true, setpointPaint);
+        drawTrace(canvas, currentMa, count, fromMicros, xScale, width, bottom,
+                plotHeight / maxCurrent, false, currentPaint);
+        drawTrace(canvas, rpm, count, fromMicros, xScale, width, bottom, plotHeight / maxRpm,
+                false, rpmPaint);
+        drawLegend(canvas, count);
+    }
+
+    /**
+     * Decimate one trace to the pixel columns and draw it. NaN values (no reading) are left
+     * out; points further apart than GAP_MICROS are not joined.
+     *
+     * @param stepped hold each value until the next, for the setpoint
+     */
+    private void drawTrace(Canvas canvas, float[] values, int count, long fromMicros, float xScale,
+                           int width, float bottom, float yScale, boolean stepped, Paint paint) {
+        int points = 0;
+        for (int i = 0; i < count; i++) {
+            if (!Float.isNaN(values[i])) {
+                traceX[points] = (times[i] - fromMicros) * xScale;
+                traceY[points] = bottom - values[i] * yScale;
+                points++;
+            }
+        }
+        int kept = decimator.decimate(traceX, traceY, points, width);
+        float gap = GAP_MICROS * xScale;
+        int floats = 0;
+        for (int i = 1; i < kept; i++) {
+            float x0 = decimator.getX(i - 1);
+            float y0 = decimator.getY(i - 1);
+            float x1 = decimator.getX(i);
+            float y1 = decimator.getY(i);
+            if (x1 - x0 > gap) {
+                continue;
+            }
+            if (stepped) {
+                floats = addLine(floats, x0, y0, x1, y0);
+                floats = addLine(floats, x1, y0, x1, y1);
+            } else {
+                floats = addLine(floats, x0, y0, x1, y1);
+            }
+        }
+        if (floats > 0) {
+            canvas.drawLines(lines, 0, floats, paint);
+        }
+    }
+
+    private int addLine(int at, float x0, float y0, float x1, float y1) {
+        lines[at] = x0;
+        lines[at + 1] = y0;
+        lines[at + 2] = x1;
+        lines[at + 3] = y1;
+        return at + 4;
+    }
+
+    // "RPM 200  SET 50  1234 mA  MAX 300" from the newest reading, without building Strings
+    private void drawLegend(Canvas canvas, int count) {
+        if (count == 0) {
+            return;
+        }
+        int last = count - 1;
+        float x = 0;
+        float y = textPaint.getTextSize() * 1.2f;
+        x = drawLabel(canvas, "RPM ", Math.round(rpm[last]), "", x, y, RPM_COLOR);
+        x = drawLabel(canvas, "  SET ", Math.round(setpoint[last]), "", x, y, SETPOINT_COLOR);
+        if (!Float.isNaN(currentMa[last])) {
+            drawLabel(canvas, "  ", Math.round(currentMa[last]), " mA", x, y, CURRENT_COLOR);
+        }
+    }
+
+    private float drawLabel(Canvas canvas, String prefix, int value, String suffix, float x, float y,
+                            int color) {
+        int length = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            text[length++] = prefix.charAt(i);
+        }
+        length = appendInt(length, value);
+        for (int i = 0; i < suffix.length(); i++) {
+            text[length++] = suffix.charAt(i);
+        }
+        textPaint.setColor(color);
+        canvas.drawText(text, 0, length, x, y, textPaint);
+        return x + textPaint.measureText(text, 0, length);
+    }
+
+    private int appendInt(int at, int value) {
+        if (value < 0) {
+            text[at++] = '-';
+            value = -value;
+        }
+        int start = at;
+        do {
+            text[at++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = at - 1; i < j; i++, j--) {
+            char swap = text[i];
+            text[i] = text[j];
+            text[j] = swap;
+        }
+        return at;
+    }
+
+    // Only when the buffer or the surface changes, never per frame
+    private void ensureCapacity(ChartBuffer source, int width) {
+        if (source != copiedFrom) {
+            copiedFrom = source;
+            int capacity = source.capacity();
+            times = new long[capacity];
+            rpm = new float[capacity];
+            setpoint = new float[capacity];
+            currentMa = new float[capacity];
+            flags = new byte[capacity];
+            traceX = new float[capacity];
+            traceY = new float[capacity];
+        }
+        if (decimator == null || lines.length < width * 8) {
+            decimator = new LttbDecimator(width);
+            // Two segments per kept point for a stepped trace
+            lines = new float[width * 8];
+        }
+    }
+
+    private static float roundUp(float value, float step) {
+        return Math.max(step, (float) Math.ceil(value / step) * step);
+    }
+}
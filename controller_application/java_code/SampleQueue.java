@@ -0,0 +1,80 @@
+package com.example.motorcontroller;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SpscQueue} for telemetry samples, kept as parallel primitive arrays so that passing
+ * hundreds of samples a second from the reader thread to the control thread allocates
+ * nothing. Each sample keeps the System.nanoTime() it was read at, as the control thread may
+ * get to it later. Exactly one producer thread and one consumer thread.
+ */
+public final class SampleQueue {
+
+    /**
+     * Receives drained samples on the consumer thread.
+     */
+    public interface Consumer {
+        void accept(long deviceMicros, int rpm, int currentMa, long arrivalNanos);
+    }
+
+    private final long[] micros;
+    private final int[] rpm;
+    private final int[] currentMa;
+    private final long[] arrivalNanos;
+    private final int mask;
+
+    // Next slot to read, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private long producerHeadCache = 0;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public SampleQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        micros = new long[size];
+        rpm = new int[size];
+        currentMa = new int[size];
+        arrivalNanos = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side. Returns false instead of blocking when the queue is full.
+     */
+    public boolean offer(long deviceMicros, int sampleRpm, int sampleCurrentMa, long sampleArrivalNanos) {
+        long t = tail.get();
+        if (t - producerHeadCache >= micros.length) {
+            producerHeadCache = head.get();
+            if (t - producerHeadCache >= micros.length) {
+                return false;
+            }
+        }
+        int index = (int) t & mask;
+        micros[index] = deviceMicros;
+        rpm[index] = sampleRpm;
+        currentMa[index] = sampleCurrentMa;
+        arrivalNanos[index] = sampleArrivalNanos;
+        // Release store: the sample is visible before the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side: hand every queued sample to the consumer, oldest first.
+     *
+     * @return the number of samples drained
+     */
+    public int drain(Consumer consumer) {
+        long h = head.get();
+        long t = tail.get();
+        for (long i = h; i < t; i++) {
+            int index = (int) i & mask;
+            consumer.accept(micros[index], rpm[index], currentMa[index], arrivalNanos[index]);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+}
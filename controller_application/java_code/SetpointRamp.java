@@ -0,0 +1,134 @@
+package com.example.motorcontroller;
+
+/**
+ * Jerk-limited (S-curve) speed ramp. Instead of jumping the motor from one SPEED value to
+ * another, the control loop steps this generator at a fixed rate and sends the integer
+ * speed it produces whenever that value changes.
+ *
+ * Each tick the ramp aims for the fastest speed rate that can still stop at the target
+ * under the acceleration limit, then moves its acceleration toward that, limited by jerk.
+ * Nothing is allocated per tick; SPEED command strings come from a precomputed table.
+ */
+public class SetpointRamp {
+
+    /**
+     * Limits in speed-percent units. Immutable, so it can be swapped at runtime.
+     */
+    public static final class Limits {
+        final double maxRate;    // %/s
+        final double maxAccel;   // %/s^2
+        final double maxJerk;    // %/s^3
+
+        public Limits(double maxRate, double maxAccel, double maxJerk) {
+            if (maxRate <= 0 || maxAccel <= 0 || maxJerk <= 0) {
+                throw new IllegalArgumentException("Ramp limits must be positive");
+            }
+            this.maxRate = maxRate;
+            this.maxAccel = maxAccel;
+            this.maxJerk = maxJerk;
+        }
+    }
+
+    // 0 -> 100 in a little under 3 s, with gentle corners
+    public static final Limits DEFAULT_LIMITS = new Limits(40, 120, 1200);
+
+    private static final String[] SPEED_COMMANDS = new String[101];
+
+    static {
+        for (int i = 0; i <= 100; i++) {
+            SPEED_COMMANDS[i] = "SPEED" + i + "\n";
+        }
+    }
+
+    private Limits limits = DEFAULT_LIMITS;
+
+    private double position = 0;       // current speed, %
+    private double rate = 0;           // %/s
+    private double accel = 0;          // %/s^2
+    private int target = 0;
+    private int lastEmitted = 0;
+
+    /**
+     * Precomputed "SPEED<n>\n" command, so the send path does not build strings.
+     */
+    public static String speedCommand(int speed) {
+        return SPEED_COMMANDS[Math.max(0, Math.min(100, speed))];
+    }
+
+    public void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    public void setTarget(int target) {
+        this.target = Math.max(0, Math.min(100, target));
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    /**
+     * Jump straight to a speed, e.g. the SPEED0 sent on connect or an emergency stop.
+     */
+    public void reset(int speed) {
+        target = Math.max(0, Math.min(100, speed));
+        position = target;
+        rate = 0;
+        accel = 0;
+        lastEmitted = target;
+    }
+
+    /**
+     * True while the ramp still has somewhere to go.
+     */
+    public boolean isActive() {
+        return position != target || rate != 0 || accel != 0;
+    }
+
+    /**
+     * Advance by dtSeconds.
+     *
+     * @return the new integer speed if it differs from the last one returned, otherwise -1
+     */
+    public int step(double dtSeconds) {
+        if (!isActive() || dtSeconds <= 0) {
+            return -1;
+        }
+        double error = target - position;
+        double distance = Math.abs(error);
+
+        // Fastest rate that can still stop at the target with maxAccel
+        double desiredRate = Math.signum(error)
+                * Math.min(limits.maxRate, Math.sqrt(2 * limits.maxAccel * distance));
+        double desiredAccel = clamp((desiredRate - rate) / dtSeconds, limits.maxAccel);
+        double jerkStep = limits.maxJerk * dtSeconds;
+        accel += clamp(desiredAccel - accel, jerkStep);
+        rate = clamp(rate + accel * dtSeconds, limits.maxRate);
+        double next = position + rate * dtSeconds;
+
+        // Arrive cleanly instead of oscillating around the target
+        boolean crossed = (target - next) * error <= 0;
+        if (crossed || (distance < 0.05 && Math.abs(rate) < 0.5)) {
+            position = target;
+            rate = 0;
+            accel = 0;
+        } else {
+            position = next;
+        }
+
+        int rounded = (int) Math.round(position);
+        if (rounded != lastEmitted) {
+            lastEmitted = rounded;
+            return rounded;
+        }
+        return -1;
+    }
+
+    public int getCurrentSpeed() {
+        return lastEmitted;
+    }
+
+    private static double clamp(double value, double limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.motorcontroller;
+
+/**
+ * Torque compensation logic from the 5th revision, moved out of MainActivity so that it
+ * keeps running inside MotorControlService while the Activity is recreated.
+ */
+public class SpeedCompensator implements CompensationStrategy {
+
+    public static final String NAME = "rev5";
+
+    // Thresholds of the default GainSchedule
+    static final int DROP_THRESHOLD = 50;      // "sudden drop" threshold for compensation
+    static final int CONSISTENCY_TOLERANCE = 30;      // ±30 is considered consistent
+    static final int COMPENSATION_INCREMENT = 10;       // increase speed by this during compensation
+    static final int CONSISTENT_READINGS_TARGET = 3;   // revert after this many seconds' worth of consistent readings
+    static final long MANUAL_SPEED_CHANGE_WINDOW = 1500; // ms to ignore compensation attempts
+
+    private final SpeedSink sink;
+    private GainSchedule schedule = GainSchedule.DEFAULT;
+    private char direction = 'F';
+    private double gain = 1.0;
+    private int loadBoost = 0;           // from the load estimate, 0 if none
+
+    // Handling speed changes
+    private int currentSpeed = 0;
+    private int originalSpeed = 0;     // speed before first compensation
+    private boolean isCompensating = false;
+    private boolean followingEstimate = false;   // the boost is sized to the load estimate
+
+    // Track RPM, compared a second apart whatever the report rate
+    private final ReadingWindow readings = new ReadingWindow();
+
+    // For ignoring quick manual speed changes
+    private boolean isManualSpeedChange = false;
+    private long lastManualChangeTimestamp = 0;
+
+    // Last labels shown to the user
+    private String consistencyStatus = "Unknown";
+    private String status = "N/A";
+
+    public SpeedCompensator(SpeedSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * The user moved the speed slider. Any compensation in progress is dropped, since the
+     * new speed replaces the one it was protecting.
+     */
+    @Override
+    public void onManualSpeedChange(int speed, long nowMs) {
+        if (isCompensating) {
+            isCompensating = false;
+            followingEstimate = false;
+            readings.clearConsistency();
+        }
+        currentSpeed = speed;
+        isManualSpeedChange = true;
+        lastManualChangeTimestamp = nowMs;
+        sink.sendSpeed(speed);
+    }
+
+    /**
+     * Decide how to handle new RPM readings, including compensation for sudden drops.
+     */
+    @Override
+    public void onRpmReading(int measuredRpm, long nowMs) {
+        Integer lastRpm = readings.reference(nowMs);
+        boolean consistent = false;
+        boolean dropped = false;
+        // If the user just changed speed, ignore compensation briefly
+        if (isManualSpeedChange && (nowMs - lastManualChangeTimestamp < MANUAL_SPEED_CHANGE_WINDOW)) {
+            // Reset consistency counters in this window, but do not compensate
+            consistencyStatus = "Ignoring (Recent Manual Change)";
+            readings.add(measuredRpm, nowMs, false);
+        } else {
+            // Past the quick-change window
+            isManualSpeedChange = false; // no longer ignoring
+
+            if (lastRpm == null) {
+                consistencyStatus = "No Previous Reading";
+            } else {
+                GainSchedule.Gains gains = gains();
+                int diff = Math.abs(measuredRpm - lastRpm);
+                if (diff <= gains.consistencyTolerance) {
+                    consistencyStatus = "Consistent (±" + gains.consistencyTolerance + ")";
+                    consistent = true;
+                } else {
+                    consistencyStatus = "Not Consistent (±" + gains.consistencyTolerance + ")";
+
+                    // A sudden drop, to compensate once this reading is kept
+                    dropped = (measuredRpm < lastRpm) && (lastRpm - measuredRpm >= gains.dropThreshold);
+                }
+            }
+            readings.add(measuredRpm, nowMs, consistent);
+            if (dropped) {
+                applySpeedCompensation();
+            }
+
+            if (isCompensating && (loadBoost > 0 || followingEstimate)) {
+                followLoadEstimate();
+            } else if (isCompensating && readings.consistentFor(CONSISTENT_READINGS_TARGET)) {
+                // In compensation mode with enough consecutive consistent readings
+                revertToOriginalSpeed();
+            }
+        }
+
+        status = (currentSpeed == 0)
+                ? (measuredRpm == 0 ? "Idle" : "Running")
+                : "Running";
+    }
+
+    /**
+     * The torque estimate shows the load rising. Compensate now rather than wait for a drop
+     * of the drop threshold between two RPM readings, which a gradual load may never produce.
+     */
+    @Override
+    public void onLoadRise(long nowMs) {
+        if (isManualSpeedChange && (nowMs - lastManualChangeTimestamp < MANUAL_SPEED_CHANGE_WINDOW)) {
+            return;
+        }
+        readings.clearConsistency();
+        applySpeedCompensation();
+    }
+
+    @Override
+    public void setGain(double gain) {
+        this.gain = gain;
+    }
+
+    @Override
+    public void setLoadBoost(int boost) {
+        loadBoost = boost;
+    }
+
+    @Override
+    public void setGainSchedule(GainSchedule schedule, char direction) {
+        this.schedule = schedule;
+        this.direction = direction;
+    }
+
+    // Thresholds for the speed the user chose, not the boosted one
+    private GainSchedule.Gains gains() {
+        return schedule.get(direction, isCompensating ? originalSpeed : currentSpeed);
+    }
+
+    /**
+     * Increase speed by the increment, or further if already compensating. With a load
+     * estimate the speed goes to the original speed plus the boost it calls for instead, and
+     * a further drop still raises it by at least 1. Readings before the latest are dropped, so
+     * the same drop is not compensated again by every fast report within the next second.
+     */
+    private void applySpeedCompensation() {
+        readings.rebase();
+        if (!isCompensating) {
+            // First time we compensate: remember the speed
+            originalSpeed = currentSpeed;
+            isCompensating = true;
+        }
+        int newSpeed;
+        if (loadBoost > 0) {
+            followingEstimate = true;
+            newSpeed = Math.min(Math.max(originalSpeed + loadBoost, currentSpeed + 1), 100);
+        } else {
+            int increment = Math.max(1, (int) Math.round(gains().increment * gain));
+            newSpeed = Math.min(currentSpeed + increment, 100);
+        }
+        currentSpeed = newSpeed;
+        sink.sendSpeed(newSpeed);
+    }
+
+    /**
+     * While compensating with a load estimate, the boost follows the estimate rather than
+     * reverting after consistent readings: up as it grows over the first reports of a step,
+     * back to the original speed once the load is gone. The estimate accounts for the speed
+     * sent, so the boost does not feed back into it and needs no damping by the gain; changes
+     * of 1 are ignored so its noise does not become speed commands.
+     */
+    private void followLoadEstimate() {
+        if (loadBoost <= 0) {
+            revertToOriginalSpeed();
+            return;
+        }
+        followingEstimate = true;
+        int sizedSpeed = Math.min(originalSpeed + loadBoost, 100);
+        if (Math.abs(sizedSpeed - currentSpeed) > 1) {
+            readings.clearConsistency();
+            currentSpeed = sizedSpeed;
+            sink.sendSpeed(sizedSpeed);
+        }
+    }
+
+    /**
+     * Restore speed to original and reset compensation flags.
+     */
+    @Override
+    public void revertToOriginalSpeed() {
+        if (isCompensating) {
+            isCompensating = false;
+            followingEstimate = false;
+            readings.clearConsistency();
+            currentSpeed = originalSpeed;
+            sink.sendSpeed(originalSpeed);
+        }
+    }
+
+    /**
+     * Forget everything learned from the previous connection. The speed is set to 0, matching
+     * the SPEED0 sent on connect.
+     */
+    @Override
+    public void reset() {
+        currentSpeed = 0;
+        originalSpeed = 0;
+        isCompensating = false;
+        followingEstimate = false;
+        readings.clear();
+        isManualSpeedChange = false;
+        gain = 1.0;
+        loadBoost = 0;
+        consistencyStatus = "Unknown";
+        status = "N/A";
+    }
+
+    @Override
+    public int getCurrentSpeed() {
+        return currentSpeed;
+    }
+
+    @Override
+    public boolean isCompensating() {
+        return isCompensating;
+    }
+
+    @Override
+    public String getConsistencyStatus() {
+        return consistencyStatus;
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.motorcontroller;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * Used to pass messages between the reader, writer and control threads.
+ */
+public final class SpscQueue<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+
+    // Next slot to read, only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write, only advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // Thread-local copies of the other side's index, refreshed only when the queue looks full/empty
+    private long producerHeadCache = 0;
+    private long consumerTailCache = 0;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    public SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side. Returns false instead of blocking when the queue is full.
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+        if (t - producerHeadCache >= buffer.length) {
+            producerHeadCache = head.get();
+            if (t - producerHeadCache >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = element;
+        // Release store: the element is visible before the new tail
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Returns null when the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h >= consumerTailCache) {
+            consumerTailCache = tail.get();
+            if (h >= consumerTailCache) {
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
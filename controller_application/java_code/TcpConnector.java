@@ -0,0 +1,88 @@
+package com.example.motorcontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Opens a TCP link to a controller: a serial-to-TCP bridge in front of the ESP32's UART, or
+ * {@link FirmwareSimulator}. The byte stream is the same line protocol as over Bluetooth.
+ */
+public class TcpConnector implements LinkIo.Connector {
+
+    static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+    // Socket being connected by open(), so abort() can close it
+    private volatile Socket connectingSocket;
+
+    public TcpConnector(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public LinkIo.Link open() throws IOException {
+        Socket socket = new Socket();
+        connectingSocket = socket;
+        try {
+            // Commands are a few bytes each; don't let Nagle hold them back
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } finally {
+            connectingSocket = null;
+        }
+        return new TcpLink(socket, host + ":" + port);
+    }
+
+    @Override
+    public void abort() {
+        Socket socket = connectingSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A connected TCP socket.
+     */
+    static class TcpLink implements LinkIo.Link {
+        private final Socket socket;
+        private final String name;
+
+        TcpLink(Socket socket, String name) {
+            this.socket = socket;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.example.motorcontroller;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the {@link TelemetryWriter} format with gzip'd CSV on size and on encode and
+ * decode throughput. Sessions come from the RPM traces of saved drive-cycle CSVs given on the
+ * command line; without arguments two sessions are synthesized with {@link MotorPlant}, one at
+ * the firmware's 1 Hz report rate and one at 50 Hz:
+ *
+ *   java com.example.motorcontroller.TelemetryBenchmark [drive_cycle.csv ...]
+ *
+ * Each measurement is the best of ITERATIONS runs after a warm-up, in memory, so disk speed
+ * does not enter into it.
+ */
+public class TelemetryBenchmark {
+
+    static final int WARMUP = 3;
+    static final int ITERATIONS = 7;
+
+    /**
+     * A recorded or synthesized session, column per channel.
+     */
+    static final class Session {
+        final String name;
+        final String[] channels;
+        final long[] times;
+        final int[][] values;
+
+        Session(String name, String[] channels, long[] times, int[][] values) {
+            this.name = name;
+            this.channels = channels;
+            this.times = times;
+            this.values = values;
+        }
+
+        int size() {
+            return times.length;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Session> sessions = new ArrayList<>();
+        for (String path : args) {
+            try (Reader reader = new FileReader(path)) {
+                sessions.add(loadCsv(path, reader));
+            } catch (IOException e) {
+                System.err.println("Skipping " + path + ": " + e.getMessage());
+            }
+        }
+        if (sessions.isEmpty()) {
+            sessions.add(synthesize("field-1hz-4h", 1000, 4 * 3600));
+            sessions.add(synthesize("pulse-50hz-30min", 20, 30 * 60));
+        }
+
+        System.out.printf("%-18s %8s %10s %10s %10s %7s %7s %9s %9s %9s %9s%n",
+                "session", "samples", "csv_B", "csv.gz_B", "mtl_B", "gz_x", "mtl_x",
+                "gz_enc", "mtl_enc", "gz_dec", "mtl_dec");
+        for (Session session : sessions) {
+            report(session);
+        }
+        System.out.println("x = compression ratio vs plain CSV; enc/dec in million samples/s");
+    }
+
+    private static void report(Session session) throws IOException {
+        byte[] csv = encodeCsv(session, false);
+        byte[] gzip = encodeCsv(session, true);
+        byte[] mtl = encodeMtl(session);
+        verify(session, decodeCsv(gzip), "csv.gz");
+        verify(session, decodeMtl(mtl), "mtl");
+
+        long gzipEncode = best(() -> encodeCsv(session, true));
+        long mtlEncode = best(() -> encodeMtl(session));
+        long gzipDecode = best(() -> decodeCsv(gzip));
+        long mtlDecode = best(() -> decodeMtl(mtl));
+
+        System.out.printf("%-18s %8d %10d %10d %10d %7.1f %7.1f %9.1f %9.1f %9.1f %9.1f%n",
+                session.name, session.size(), csv.length, gzip.length, mtl.length,
+                csv.length / (double) gzip.length, csv.length / (double) mtl.length,
+                rate(session, gzipEncode), rate(session, mtlEncode),
+                rate(session, gzipDecode), rate(session, mtlDecode));
+    }
+
+    private interface Task {
+        Object run() throws IOException;
+    }
+
+    private static long best(Task task) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static double rate(Session session, long nanos) {
+        return session.size() / (nanos / 1e9) / 1e6;
+    }
+
+    static byte[] encodeCsv(Session session, boolean gzip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(gzip ? new GZIPOutputStream(bytes, 64 * 1024) : bytes,
+                StandardCharsets.US_ASCII)) {
+            StringBuilder line = new StringBuilder(64);
+            line.append("t_ms");
+            for (String channel : session.channels) {
+                line.append(',').append(channel);
+            }
+            out.write(line.append('\n').toString());
+            for (int i = 0; i < session.size(); i++) {
+                line.setLength(0);
+                line.append(session.times[i]);
+                for (int[] channel : session.values) {
+                    line.append(',').append(channel[i]);
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static Session decodeCsv(byte[] gzip) throws IOException {
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(gzip), 64 * 1024), StandardCharsets.US_ASCII)) {
+            return loadCsv("decoded", reader);
+        }
+    }
+
+    static byte[] encodeMtl(Session session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int[] sample = new int[session.channels.length];
+        try (TelemetryWriter writer = new TelemetryWriter(bytes, session.channels)) {
+            for (int i = 0; i < session.size(); i++) {
+                for (int c = 0; c < sample.length; c++) {
+                    sample[c] = session.values[c][i];
+                }
+                writer.append(session.times[i], sample);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static Session decodeMtl(byte[] mtl) throws IOException {
+        TelemetryReader reader = new TelemetryReader(ByteBuffer.wrap(mtl));
+        int n = (int) reader.getSampleCount();
+        int channels = reader.getChannelCount();
+        long[] times = new long[n];
+        int[][] values = new int[channels][n];
+        long[] blockTimes = new long[TelemetryWriter.BLOCK_SAMPLES];
+        int[][] blockValues = new int[channels][TelemetryWriter.BLOCK_SAMPLES];
+        int at = 0;
+        for (int b = 0; b < reader.getBlockCount(); b++) {
+            int count = reader.decodeBlock(b, blockTimes, blockValues);
+            System.arraycopy(blockTimes, 0, times, at, count);
+            for (int c = 0; c < channels; c++) {
+                System.arraycopy(blockValues[c], 0, values[c], at, count);
+            }
+            at += count;
+        }
+        return new Session("decoded", reader.getChannelNames(), times, values);
+    }
+
+    private static void verify(Session expected, Session actual, String format) throws IOException {
+        if (actual.size() != expected.size()) {
+            throw new IOException(format + ": " + actual.size() + " samples, expected " + expected.size());
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            boolean same = actual.times[i] == expected.times[i];
+            for (int c = 0; c < expected.channels.length; c++) {
+                same &= actual.values[c][i] == expected.values[c][i];
+            }
+            if (!same) {
+                throw new IOException(format + ": sample " + i + " differs");
+            }
+        }
+    }
+
+    /**
+     * Read a CSV with a header line starting with "t_ms" followed by integer rows, such as
+     * the RPM trace at the end of a drive-cycle CSV. Lines before the header are skipped.
+     */
+    static Session loadCsv(String name, Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in, 64 * 1024);
+        String[] channels = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("t_ms,")) {
+                String[] header = line.split(",");
+                channels = new String[header.length - 1];
+                System.arraycopy(header, 1, channels, 0, channels.length);
+                break;
+            }
+        }
+        if (channels == null) {
+            throw new IOException("no t_ms column");
+        }
+        long[] times = new long[1024];
+        int[][] values = new int[channels.length][1024];
+        int n = 0;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (n == times.length) {
+                times = Arrays.copyOf(times, n * 2);
+                for (int c = 0; c < channels.length; c++) {
+                    values[c] = Arrays.copyOf(values[c], n * 2);
+                }
+            }
+            int field = 0;
+            int start = 0;
+            try {
+                for (int i = 0; i <= line.length(); i++) {
+                    if (i == line.length() || line.charAt(i) == ',') {
+                        if (field == 0) {
+                            times[n] = Long.parseLong(line.substring(start, i));
+                        } else if (field <= channels.length) {
+                            values[field - 1][n] = Integer.parseInt(line.substring(start, i));
+                        }
+                        field++;
+                        start = i + 1;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException(name + ": bad row " + (n + 1) + ": " + line);
+            }
+            n++;
+        }
+        long[] trimmedTimes = Arrays.copyOf(times, n);
+        int[][] trimmedValues = new int[channels.length][];
+        for (int c = 0; c < channels.length; c++) {
+            trimmedValues[c] = Arrays.copyOf(values[c], n);
+        }
+        return new Session(name, channels, trimmedTimes, trimmedValues);
+    }
+
+    /**
+     * A session like a day in the field: the speed changes every 10 to 60 s, the load comes
+     * and goes, reports arrive with a few ms of Bluetooth jitter.
+     */
+    static Session synthesize(String name, int intervalMs, int seconds) {
+        Random random = new Random(42);
+        int n = seconds * 1000 / intervalMs;
+        long[] times = new long[n];
+        int[][] values = new int[3][n];
+        MotorPlant plant = new MotorPlant();
+        long nextSpeedChangeMs = 0;
+        long nextLoadChangeMs = 0;
+        long t = 0;
+        for (int i = 0; i < n; i++) {
+            long reportAt = (long) (i + 1) * intervalMs;
+            for (; t < reportAt; t += 10) {
+                if (t >= nextSpeedChangeMs) {
+                    plant.setCommand(20 + random.nextInt(81));
+                    nextSpeedChangeMs = t + 10_000 + random.nextInt(50_000);
+                }
+                if (t >= nextLoadChangeMs) {
+                    plant.setLoadRpm(random.nextInt(4) == 0 ? random.nextInt(120) : 0);
+                    nextLoadChangeMs = t + 2_000 + random.nextInt(20_000);
+                }
+                plant.step(0.01);
+            }
+            times[i] = reportAt + random.nextInt(8);
+            values[0][i] = plant.takeReportedRpm();
+            values[1][i] = plant.getCommand();
+            values[2][i] = (int) Math.round(plant.getCurrent() * 1000);
+        }
+        return new Session(name, new String[]{"rpm", "speed", "current_ma"}, times, values);
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.motorcontroller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads files written by {@link TelemetryWriter}. Works on a ByteBuffer, typically a mapped
+ * file, so nothing is copied up front: opening reads the header and the block index, and
+ * each block is decoded on demand into arrays the caller owns and can reuse.
+ *
+ * Decoding is a tight loop over a byte array with no allocation, so it runs at close to the
+ * speed of reading the bytes. Not thread-safe; use one reader per thread.
+ */
+public class TelemetryReader {
+
+    private final ByteBuffer buffer;
+    private final String[] channelNames;
+    private final long[] blockOffsets;
+    private final long[] blockFirstTimes;
+    private final int[] blockSamples;
+    private final long sampleCount;
+    // Payload copy for buffers without an accessible array (e.g. mapped files)
+    private byte[] scratch = new byte[0];
+
+    public TelemetryReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        int limit = buffer.limit();
+        if (limit < TelemetryWriter.MAGIC.length + 2 + TelemetryWriter.TRAILER_BYTES
+                || !hasMagic(0, TelemetryWriter.MAGIC)) {
+            throw new IOException("Not a telemetry file");
+        }
+        if (!hasMagic(limit - TelemetryWriter.INDEX_MAGIC.length, TelemetryWriter.INDEX_MAGIC)) {
+            throw new IOException("Telemetry file is truncated (no index)");
+        }
+        int version = buffer.get(TelemetryWriter.MAGIC.length) & 0xFF;
+        if (version != TelemetryWriter.VERSION) {
+            throw new IOException("Unsupported telemetry version " + version);
+        }
+
+        int channels = buffer.get(TelemetryWriter.MAGIC.length + 1) & 0xFF;
+        channelNames = new String[channels];
+        int position = TelemetryWriter.MAGIC.length + 2;
+        for (int c = 0; c < channels; c++) {
+            int length = buffer.get(position) & 0xFF;
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = buffer.get(position + 1 + i);
+            }
+            channelNames[c] = new String(name, StandardCharsets.UTF_8);
+            position += 1 + length;
+        }
+
+        int trailer = limit - TelemetryWriter.TRAILER_BYTES;
+        long indexOffset = buffer.getLong(trailer);
+        int blocks = buffer.getInt(trailer + 8);
+        if (blocks < 0 || indexOffset < position || indexOffset + blocks * 16L != trailer) {
+            throw new IOException("Corrupt telemetry index");
+        }
+        blockOffsets = new long[blocks];
+        blockFirstTimes = new long[blocks];
+        blockSamples = new int[blocks];
+        long total = 0;
+        for (int b = 0; b < blocks; b++) {
+            int entry = (int) indexOffset + b * 16;
+            blockOffsets[b] = buffer.getLong(entry);
+            blockFirstTimes[b] = buffer.getLong(entry + 8);
+            blockSamples[b] = buffer.getInt((int) blockOffsets[b]);
+            total += blockSamples[b];
+        }
+        sampleCount = total;
+    }
+
+    public String[] getChannelNames() {
+        return channelNames.clone();
+    }
+
+    public int getChannelCount() {
+        return channelNames.length;
+    }
+
+    public int getBlockCount() {
+        return blockOffsets.length;
+    }
+
+    public int getBlockSamples(int block) {
+        return blockSamples[block];
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Index of the block that holds timeMs, i.e. the last block starting at or before it;
+     * 0 if timeMs is before the first sample.
+     */
+    public int findBlock(long timeMs) {
+        int found = Arrays.binarySearch(blockFirstTimes, timeMs);
+        if (found >= 0) {
+            // Several blocks can start at the same time if the clock stood still
+            while (found > 0 && blockFirstTimes[found - 1] == timeMs) {
+                found--;
+            }
+            return found;
+        }
+        return Math.max(0, -found - 2);
+    }
+
+    /**
+     * Decode one block. times needs room for getBlockSamples(block) entries and values one
+     * such array per channel.
+     *
+     * @return the number of samples decoded
+     */
+    public int decodeBlock(int block, long[] times, int[][] values) throws IOException {
+        int headerAt = (int) blockOffsets[block];
+        int samples = buffer.getInt(headerAt);
+        int payloadBytes = buffer.getInt(headerAt + 4);
+        long time = buffer.getLong(headerAt + 8);
+        int payloadAt = headerAt + TelemetryWriter.BLOCK_HEADER_BYTES;
+        if (payloadAt + payloadBytes > buffer.limit()) {
+            throw new IOException("Block " + block + " runs past the end of the file");
+        }
+
+        byte[] bytes;
+        int p;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            p = buffer.arrayOffset() + payloadAt;
+        } else {
+            if (scratch.length < payloadBytes) {
+                scratch = new byte[payloadBytes];
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(payloadAt);
+            view.get(scratch, 0, payloadBytes);
+            bytes = scratch;
+            p = 0;
+        }
+        int end = p + payloadBytes;
+
+        int decodedTo;
+        try {
+            decodedTo = decode(bytes, p, samples, time, times, values);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            decodedTo = -1;
+        }
+        if (decodedTo != end) {
+            throw new IOException("Block " + block + " is corrupt");
+        }
+        return samples;
+    }
+
+    // Returns the position after the last byte read
+    private int decode(byte[] bytes, int p, int samples, long time, long[] times, int[][] values) {
+        int channels = channelNames.length;
+        long timeDelta = 0;
+        for (int s = 0; s < samples; s++) {
+            // Inlined zig-zag varint decode; this loop is the reader's hot path
+            long raw = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[p++];
+                raw |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            timeDelta += (raw >>> 1) ^ -(raw & 1);
+            time += timeDelta;
+            times[s] = time;
+            for (int c = 0; c < channels; c++) {
+                raw = 0;
+                shift = 0;
+                do {
+                    b = bytes[p++];
+                    raw |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                int previous = s == 0 ? 0 : values[c][s - 1];
+                values[c][s] = (int) (previous + ((raw >>> 1) ^ -(raw & 1)));
+            }
+        }
+        return p;
+    }
+
+    private boolean hasMagic(int at, byte[] magic) {
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(at + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,562 @@
+package com.example.motorcontroller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Broadcasts the live telemetry to dashboards on the local network: a non-blocking server on
+ * one thread, for plain TCP clients (one JSON object per line, e.g. `nc phone 8765`) and
+ * WebSocket clients (one JSON object per text message) on the same port. A client that
+ * sends an HTTP upgrade request within HANDSHAKE_WAIT_MS gets WebSocket; any other client
+ * starts receiving lines after that. Clients only listen: nothing they send reaches the motor.
+ *
+ *   {"type":"state","connected":true,"rpm":200,"speed":50,"compensating":false,...}
+ *   {"type":"samples","skipped":0,"data":[[device_us,rpm,current_ma],...]}
+ *
+ * Nothing a client does can slow the producers down. The state is conflated: each client is
+ * sent the newest snapshot when it has room, never a backlog of old ones. Samples go into
+ * one ring of SAMPLE_RING entries that every client reads with its own cursor; a client that
+ * falls most of a ring behind skips ahead, keeping the newest, and is told how many it missed.
+ * Per client the memory is one OUT_BUFFER_BYTES and one IN_BUFFER_BYTES buffer plus a socket
+ * send buffer of SOCKET_SEND_BYTES, whatever the sample rate or how long it stalls, and at
+ * most MAX_CLIENTS are served.
+ *
+ * {@link #onSample} is called on the control thread and only writes the ring; state
+ * snapshots may be published from any thread.
+ */
+public class TelemetryServer implements ControllerState.Listener, ControlLoop.SampleTap {
+
+    static final int SAMPLE_RING = 2048;            // 10 s at 200 samples/s
+    static final int OUT_BUFFER_BYTES = 8192;
+    static final int IN_BUFFER_BYTES = 2048;        // enough for an upgrade request
+    // Kept small so a stalled client's backlog stays here, where it is conflated, instead of
+    // piling up stale messages in the kernel
+    static final int SOCKET_SEND_BYTES = 16384;
+    static final int MAX_CLIENTS = 16;
+    static final long HANDSHAKE_WAIT_MS = 250;
+    static final long FLUSH_INTERVAL_MS = 50;       // samples are batched this long at most
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64_DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    // Largest sample entry: [4294967295999,65535,65535],
+    private static final int MAX_SAMPLE_BYTES = 40;
+    // WebSocket header of a text message up to 65535 bytes
+    private static final int WS_HEADER_BYTES = 4;
+    // Entries the producer may overwrite while a batch is being copied, at any sane rate
+    private static final int RING_SLACK = SAMPLE_RING / 4;
+
+    private static final int MODE_PENDING = 0;   // waiting to see whether it speaks HTTP
+    private static final int MODE_LINES = 1;
+    private static final int MODE_WEBSOCKET = 2;
+
+    private static final class Client {
+        final SocketChannel channel;
+        final long acceptedMs;
+        final ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_BYTES);
+        final ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER_BYTES);
+        int mode = MODE_PENDING;
+        long stateVersion = 0;
+        long sampleCursor;
+        long skipped = 0;
+
+        Client(SocketChannel channel, long acceptedMs, long sampleCursor) {
+            this.channel = channel;
+            this.acceptedMs = acceptedMs;
+            this.sampleCursor = sampleCursor;
+            out.flip();   // kept in read mode: position..limit is what is left to send
+        }
+    }
+
+    private final int port;
+    private final Thread thread;
+    private final List<Client> clients = new ArrayList<>();
+    private volatile boolean running = true;
+    private volatile int boundPort = -1;
+    private Selector selector;
+    private ServerSocketChannel server;
+
+    // Sample ring; written by the control thread only
+    private final long[] sampleMicros = new long[SAMPLE_RING];
+    private final int[] sampleRpm = new int[SAMPLE_RING];
+    private final int[] sampleCurrentMa = new int[SAMPLE_RING];
+    private final AtomicLong samplesWritten = new AtomicLong();
+
+    // Newest state, already encoded
+    private final AtomicReference<byte[]> state = new AtomicReference<>();
+    private final AtomicLong stateVersion = new AtomicLong();
+
+    // Server thread only
+    private final byte[] digits = new byte[20];
+    private long lastFlushMs = 0;
+    private volatile int clientCount = 0;
+    private volatile long droppedClients = 0;
+
+    public TelemetryServer(int port) {
+        this.port = port;
+        this.thread = new Thread(this::run, "telemetry-server");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Open the port and start serving. Throws if the port cannot be bound.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        boundPort = server.socket().getLocalPort();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread.start();
+    }
+
+    /**
+     * Disconnect every client and close the port.
+     */
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public int getPort() {
+        return boundPort;
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * Clients disconnected because they broke the protocol or there were too many.
+     */
+    public long getDroppedClients() {
+        return droppedClients;
+    }
+
+    // ---- Producers ----
+
+    @Override
+    public void onSample(long deviceMicros, int rpm, int currentMa) {
+        long sequence = samplesWritten.get();
+        int index = (int) (sequence % SAMPLE_RING);
+        sampleMicros[index] = deviceMicros;
+        sampleRpm[index] = rpm;
+        sampleCurrentMa[index] = currentMa;
+        // Release store: the sample is visible before the new count
+        samplesWritten.lazySet(sequence + 1);
+    }
+
+    @Override
+    public void onStateChanged(ControllerState.Snapshot snapshot) {
+        state.set(encodeState(snapshot));
+        stateVersion.incrementAndGet();
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    private static byte[] encodeState(ControllerState.Snapshot snapshot) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"type\":\"state\",\"connected\":").append(snapshot.isConnected())
+                .append(",\"device\":");
+        appendString(json, snapshot.getConnectedDeviceName());
+        json.append(",\"rpm\":").append(snapshot.getRpm())
+                .append(",\"speed\":").append(snapshot.getSpeed())
+                .append(",\"compensating\":").append(snapshot.isCompensating())
+                .append(",\"status\":");
+        appendString(json, snapshot.getStatus());
+        json.append(",\"load_nm\":").append(number(snapshot.getLoadNm()))
+                .append(",\"hunting_hz\":").append(number(snapshot.getHuntingHz()))
+                .append(",\"gain\":").append(number(snapshot.getCompensationGain()))
+                .append(",\"fault\":");
+        appendString(json, snapshot.getFault());
+        json.append('}');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.US, "%.3f", value);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    // ---- Server thread ----
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(FLUSH_INTERVAL_MS);
+                long nowMs = System.nanoTime() / 1_000_000L;
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(nowMs);
+                    } else {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(client, key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                send(client, key);
+                            }
+                        } catch (RuntimeException e) {
+                            // One client's bad input must not end the server for the others
+                            e.printStackTrace();
+                            drop(client, true);
+                        }
+                    }
+                }
+                boolean flushSamples = nowMs - lastFlushMs >= FLUSH_INTERVAL_MS;
+                if (flushSamples) {
+                    lastFlushMs = nowMs;
+                }
+                for (int i = clients.size() - 1; i >= 0; i--) {
+                    Client client = clients.get(i);
+                    try {
+                        service(client, nowMs, flushSamples);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        drop(client, true);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                drop(clients.get(i), false);
+            }
+            closeQuietly(server);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept(long nowMs) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                closeQuietly(channel);
+                droppedClients++;
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSendBufferSize(SOCKET_SEND_BYTES);
+            Client client = new Client(channel, nowMs, samplesWritten.get());
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+            clientCount = clients.size();
+        }
+    }
+
+    private void read(Client client, SelectionKey key) {
+        int read;
+        try {
+            read = client.channel.read(client.in);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            drop(client, false);
+            return;
+        }
+        if (client.mode == MODE_PENDING) {
+            handshake(client, key);
+        } else if (client.mode == MODE_WEBSOCKET) {
+            readWebSocket(client);
+        } else {
+            client.in.clear();   // line clients have nothing to say
+        }
+    }
+
+    // Upgrade to WebSocket once the whole request is in
+    private void handshake(Client client, SelectionKey key) {
+        ByteBuffer in = client.in;
+        String request = new String(in.array(), 0, in.position(), StandardCharsets.US_ASCII);
+        if (!request.startsWith("GET ") && !"GET ".startsWith(request)) {
+            client.mode = MODE_LINES;   // not HTTP; treat it as a plain client
+            in.clear();
+            return;
+        }
+        int end = request.indexOf("\r\n\r\n");
+        if (end < 0) {
+            if (!in.hasRemaining()) {
+                drop(client, true);
+            }
+            return;
+        }
+        String keyHeader = null;
+        for (String line : request.substring(0, end).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                keyHeader = line.substring(colon + 1).trim();
+            }
+        }
+        if (keyHeader == null) {
+            drop(client, true);
+            return;
+        }
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = base64(
+                    sha1.digest((keyHeader + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            drop(client, true);
+            return;
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        ByteBuffer out = client.out;
+        out.clear();
+        out.put(response.getBytes(StandardCharsets.US_ASCII));
+        out.flip();
+        client.mode = MODE_WEBSOCKET;
+        in.clear();
+        send(client, key);
+    }
+
+    // Client frames are only read to notice a close; their content is ignored
+    private void readWebSocket(Client client) {
+        ByteBuffer in = client.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int opcode = in.get(in.position()) & 0x0F;
+            int second = in.get(in.position() + 1) & 0xFF;
+            long length = second & 0x7F;
+            int header = 2;
+            if (length == 126) {
+                header = 4;
+            } else if (length == 127) {
+                header = 10;
+            }
+            if (in.remaining() < header) {
+                break;
+            }
+            if (length == 126) {
+                length = in.getShort(in.position() + 2) & 0xFFFF;
+            } else if (length == 127) {
+                length = in.getLong(in.position() + 2);
+            }
+            long frameBytes = header + ((second & 0x80) != 0 ? 4 : 0) + length;
+            // A 64-bit length with the top bit set is invalid and would never be skipped
+            if (opcode == 0x8 || length < 0 || frameBytes > IN_BUFFER_BYTES) {
+                drop(client, opcode != 0x8);
+                return;
+            }
+            if (in.remaining() < frameBytes) {
+                break;
+            }
+            in.position(in.position() + (int) frameBytes);
+        }
+        in.compact();
+    }
+
+    // Top up the client's buffer with the newest state and pending samples, then send
+    private void service(Client client, long nowMs, boolean flushSamples) {
+        if (!client.channel.isOpen()) {
+            return;
+        }
+        if (client.mode == MODE_PENDING) {
+            if (nowMs - client.acceptedMs < HANDSHAKE_WAIT_MS) {
+                return;
+            }
+            client.mode = MODE_LINES;
+        }
+        ByteBuffer out = client.out;
+        if (out.hasRemaining()) {
+            return;   // still sending the last batch; waiting for OP_WRITE
+        }
+        out.clear();
+        long version = stateVersion.get();
+        byte[] encoded = state.get();
+        if (version != client.stateVersion && encoded != null) {
+            client.stateVersion = version;
+            int headerAt = beginMessage(client);
+            out.put(encoded);
+            endMessage(client, headerAt);
+        }
+        if (flushSamples) {
+            encodeSamples(client);
+        }
+        out.flip();
+        if (out.hasRemaining()) {
+            send(client, client.channel.keyFor(selector));
+        }
+    }
+
+    private void encodeSamples(Client client) {
+        long written = samplesWritten.get();
+        if (written - client.sampleCursor > SAMPLE_RING - RING_SLACK) {
+            // Conflate: skip what is overwritten or about to be, keep the newest
+            long oldest = written - (SAMPLE_RING - RING_SLACK);
+            client.skipped += oldest - client.sampleCursor;
+            client.sampleCursor = oldest;
+        }
+        if (client.sampleCursor == written) {
+            return;
+        }
+        ByteBuffer out = client.out;
+        int headerAt = beginMessage(client);
+        out.put("{\"type\":\"samples\",\"skipped\":".getBytes(StandardCharsets.US_ASCII));
+        putNumber(out, client.skipped);
+        out.put(",\"data\":[".getBytes(StandardCharsets.US_ASCII));
+        client.skipped = 0;
+        boolean first = true;
+        while (client.sampleCursor < written && out.remaining() > MAX_SAMPLE_BYTES + 2) {
+            int index = (int) (client.sampleCursor % SAMPLE_RING);
+            if (!first) {
+                out.put((byte) ',');
+            }
+            first = false;
+            out.put((byte) '[');
+            putNumber(out, sampleMicros[index]);
+            out.put((byte) ',');
+            putNumber(out, sampleRpm[index]);
+            out.put((byte) ',');
+            putNumber(out, sampleCurrentMa[index]);
+            out.put((byte) ']');
+            client.sampleCursor++;
+        }
+        out.put((byte) ']');
+        out.put((byte) '}');
+        endMessage(client, headerAt);
+    }
+
+    // WebSocket messages need their length up front: reserve the header, fill it in at the end
+    private int beginMessage(Client client) {
+        int at = client.out.position();
+        if (client.mode == MODE_WEBSOCKET) {
+            client.out.position(at + WS_HEADER_BYTES);
+        }
+        return at;
+    }
+
+    private void endMessage(Client client, int headerAt) {
+        ByteBuffer out = client.out;
+        if (client.mode != MODE_WEBSOCKET) {
+            out.put((byte) '\n');
+            return;
+        }
+        int length = out.position() - headerAt - WS_HEADER_BYTES;
+        out.put(headerAt, (byte) 0x81);   // final text frame
+        if (length < 126) {
+            // The shortest length encoding is required: close the two-byte gap
+            out.put(headerAt + 1, (byte) length);
+            byte[] array = out.array();
+            System.arraycopy(array, headerAt + WS_HEADER_BYTES, array, headerAt + 2, length);
+            out.position(headerAt + 2 + length);
+        } else {
+            out.put(headerAt + 1, (byte) 126);
+            out.putShort(headerAt + 2, (short) length);
+        }
+    }
+
+    private void send(Client client, SelectionKey key) {
+        try {
+            client.channel.write(client.out);
+        } catch (IOException e) {
+            drop(client, false);
+            return;
+        }
+        if (key != null && key.isValid()) {
+            // Ask for OP_WRITE only while the socket is full
+            key.interestOps(client.out.hasRemaining()
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void drop(Client client, boolean misbehaved) {
+        closeQuietly(client.channel);
+        clients.remove(client);
+        clientCount = clients.size();
+        if (misbehaved) {
+            droppedClients++;
+        }
+    }
+
+    // Decimal digits straight into the buffer, without a String
+    private void putNumber(ByteBuffer out, long value) {
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (count > 0) {
+            out.put(digits[--count]);
+        }
+    }
+
+    // java.util.Base64 needs API 26, and android.util.Base64 is not there off the device
+    private static String base64(byte[] bytes) {
+        StringBuilder text = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int remaining = bytes.length - i;
+            int group = (bytes[i] & 0xFF) << 16
+                    | (remaining > 1 ? (bytes[i + 1] & 0xFF) << 8 : 0)
+                    | (remaining > 2 ? bytes[i + 2] & 0xFF : 0);
+            text.append(BASE64_DIGITS[group >> 18 & 0x3F]);
+            text.append(BASE64_DIGITS[group >> 12 & 0x3F]);
+            text.append(remaining > 1 ? BASE64_DIGITS[group >> 6 & 0x3F] : '=');
+            text.append(remaining > 2 ? BASE64_DIGITS[group & 0x3F] : '=');
+        }
+        return text.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
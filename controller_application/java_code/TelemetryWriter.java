@@ -0,0 +1,171 @@
+package com.example.motorcontroller;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming writer for the compact telemetry format read by {@link TelemetryReader}.
+ *
+ * A file holds timestamped samples of a fixed set of int channels (e.g. rpm, speed,
+ * current_ma). Samples are grouped into blocks of up to BLOCK_SAMPLES. Inside a block the
+ * timestamp is stored as the zig-zag varint of its delta-of-delta (so a regular report
+ * interval costs one byte) and each channel as the zig-zag varint of its delta from the
+ * previous sample. Slowly changing RPM usually fits in one byte per channel.
+ *
+ *   file    = MAGIC version:u8 channels:u8 (nameLength:u8 name)*  block*  index  trailer
+ *   block   = samples:i32 payloadBytes:i32 firstTime:i64 lastTime:i64  payload
+ *   payload = per sample: zz(time delta-of-delta) zz(channel delta)*
+ *   index   = per block: offset:i64 firstTime:i64
+ *   trailer = indexOffset:i64 blocks:i32 INDEX_MAGIC
+ *
+ * Every block starts from zero, so it decodes on its own, and the index at the end lets a
+ * reader jump straight to the block covering a given time. All integers are big-endian.
+ */
+public class TelemetryWriter implements Closeable {
+
+    static final byte[] MAGIC = {'M', 'T', 'L', '1'};
+    static final byte[] INDEX_MAGIC = {'M', 'T', 'L', 'X'};
+    static final int VERSION = 1;
+    static final int BLOCK_SAMPLES = 1024;
+    static final int BLOCK_HEADER_BYTES = 24;
+    static final int TRAILER_BYTES = 16;
+    // Worst case per varint of a 64-bit value
+    private static final int MAX_VARINT_BYTES = 10;
+
+    private final DataOutputStream out;
+    private final int channels;
+    private final byte[] payload;
+    private final int[] previousValues;
+
+    private long offset = 0;
+    private int payloadBytes = 0;
+    private int blockSamples = 0;
+    private long firstTime = 0;
+    private long previousTime = 0;
+    private long previousTimeDelta = 0;
+
+    // Grows as blocks are written; one entry per block is small next to the data
+    private long[] blockOffsets = new long[16];
+    private long[] blockFirstTimes = new long[16];
+    private int blocks = 0;
+    private boolean closed = false;
+
+    public TelemetryWriter(OutputStream out, String... channelNames) throws IOException {
+        if (channelNames.length == 0 || channelNames.length > 255) {
+            throw new IllegalArgumentException("1 to 255 channels, got " + channelNames.length);
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.channels = channelNames.length;
+        this.payload = new byte[BLOCK_SAMPLES * (channels + 1) * MAX_VARINT_BYTES];
+        this.previousValues = new int[channels];
+
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeByte(channels);
+        offset = MAGIC.length + 2;
+        for (String name : channelNames) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 255) {
+                throw new IllegalArgumentException("Channel name too long: " + name);
+            }
+            this.out.writeByte(bytes.length);
+            this.out.write(bytes);
+            offset += 1 + bytes.length;
+        }
+    }
+
+    /**
+     * Append one sample. values must have one entry per channel; it is not kept, so callers
+     * can reuse the array. Timestamps should not go backwards, but nothing breaks if they do.
+     */
+    public void append(long timeMs, int[] values) throws IOException {
+        if (values.length != channels) {
+            throw new IllegalArgumentException("Expected " + channels + " values, got " + values.length);
+        }
+        if (blockSamples == 0) {
+            firstTime = timeMs;
+            previousTime = timeMs;
+            previousTimeDelta = 0;
+            for (int c = 0; c < channels; c++) {
+                previousValues[c] = 0;
+            }
+        }
+        long delta = timeMs - previousTime;
+        payloadBytes = writeVarint(payload, payloadBytes, zigZag(delta - previousTimeDelta));
+        previousTimeDelta = delta;
+        previousTime = timeMs;
+        for (int c = 0; c < channels; c++) {
+            payloadBytes = writeVarint(payload, payloadBytes, zigZag((long) values[c] - previousValues[c]));
+            previousValues[c] = values[c];
+        }
+        blockSamples++;
+        if (blockSamples == BLOCK_SAMPLES) {
+            flushBlock();
+        }
+    }
+
+    /**
+     * Write any partial block, the index and the trailer, then close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBlock();
+            long indexOffset = offset;
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(blockOffsets[i]);
+                out.writeLong(blockFirstTimes[i]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(blocks);
+            out.write(INDEX_MAGIC);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockSamples == 0) {
+            return;
+        }
+        if (blocks == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+            blockFirstTimes = Arrays.copyOf(blockFirstTimes, blocks * 2);
+        }
+        blockOffsets[blocks] = offset;
+        blockFirstTimes[blocks] = firstTime;
+        blocks++;
+
+        out.writeInt(blockSamples);
+        out.writeInt(payloadBytes);
+        out.writeLong(firstTime);
+        out.writeLong(previousTime);
+        out.write(payload, 0, payloadBytes);
+        offset += BLOCK_HEADER_BYTES + payloadBytes;
+        blockSamples = 0;
+        payloadBytes = 0;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
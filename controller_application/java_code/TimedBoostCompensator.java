@@ -0,0 +1,178 @@
+package com.example.motorcontroller;
+
+/**
+ * Compensation logic from the 4th revision: on a sudden RPM drop, boost the speed by
+ * COMPENSATION_INCREMENT, or by what the load estimate calls for, for
+ * COMPENSATION_DURATION_MS, then go back and ignore further drops for
+ * COMPENSATION_COOLDOWN_MS. The revision used Handler.postDelayed for both timers; here they
+ * are deadlines checked on every reading and tick.
+ */
+public class TimedBoostCompensator implements CompensationStrategy {
+
+    public static final String NAME = "rev4";
+
+    static final int DROP_THRESHOLD = 50;
+    static final int CONSISTENCY_TOLERANCE = 30;
+    static final int COMPENSATION_INCREMENT = 10;
+    static final long COMPENSATION_DURATION_MS = 3000;
+    static final long COMPENSATION_COOLDOWN_MS = 5000; // cooldown period after compensation
+
+    private final SpeedSink sink;
+    private double gain = 1.0;
+    private int loadBoost = 0;
+
+    private int currentSpeed = 0;
+    // Compared a second apart whatever the report rate
+    private final ReadingWindow readings = new ReadingWindow();
+
+    private boolean isCompensating = false;
+    private int originalSpeed = 0;
+    private int boostedSpeed = 0;
+    private long revertAtMs = 0;
+    private boolean isCooldownActive = false;
+    private long cooldownEndMs = 0;
+
+    private String consistencyStatus = "Unknown";
+    private String status = "N/A";
+
+    public TimedBoostCompensator(SpeedSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void onManualSpeedChange(int speed, long nowMs) {
+        // A running boost still ends on time, but will not undo the user's speed
+        currentSpeed = speed;
+        sink.sendSpeed(speed);
+    }
+
+    @Override
+    public void onRpmReading(int measuredRpm, long nowMs) {
+        onTick(nowMs);
+        Integer lastRpm = readings.reference(nowMs);
+        boolean consistent = false;
+        if (lastRpm != null) {
+            int difference = Math.abs(measuredRpm - lastRpm);
+            consistent = difference <= CONSISTENCY_TOLERANCE;
+            if (consistent) {
+                consistencyStatus = "Consistent (±" + CONSISTENCY_TOLERANCE + ")";
+            } else {
+                consistencyStatus = "Not Consistent (±" + CONSISTENCY_TOLERANCE + ")";
+                // If we detect a sudden significant drop, try to compensate
+                if (measuredRpm < lastRpm && (lastRpm - measuredRpm) >= DROP_THRESHOLD) {
+                    applySpeedCompensation(nowMs);
+                }
+            }
+        } else {
+            // First reading, can't compare yet
+            consistencyStatus = "No Previous Reading";
+        }
+        status = (currentSpeed == 0 && measuredRpm == 0) ? "Idle" : "Running";
+        readings.add(measuredRpm, nowMs, consistent);
+    }
+
+    @Override
+    public void onLoadRise(long nowMs) {
+        onTick(nowMs);
+        applySpeedCompensation(nowMs);
+    }
+
+    @Override
+    public boolean onTick(long nowMs) {
+        boolean changed = false;
+        if (isCompensating && nowMs - revertAtMs >= 0) {
+            endBoost(nowMs);
+            changed = true;
+        }
+        if (isCooldownActive && nowMs - cooldownEndMs >= 0) {
+            isCooldownActive = false;
+        }
+        return changed;
+    }
+
+    @Override
+    public void revertToOriginalSpeed() {
+        if (isCompensating) {
+            isCompensating = false;
+            if (currentSpeed == boostedSpeed) {
+                currentSpeed = originalSpeed;
+                sink.sendSpeed(originalSpeed);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        currentSpeed = 0;
+        readings.clear();
+        isCompensating = false;
+        isCooldownActive = false;
+        gain = 1.0;
+        loadBoost = 0;
+        consistencyStatus = "Unknown";
+        status = "N/A";
+    }
+
+    @Override
+    public void setGain(double gain) {
+        this.gain = gain;
+    }
+
+    @Override
+    public void setLoadBoost(int boost) {
+        loadBoost = boost;
+    }
+
+    private void applySpeedCompensation(long nowMs) {
+        if (isCompensating || isCooldownActive) {
+            // Already compensating or in cooldown; skip
+            return;
+        }
+        // Sized to the estimated load if there is one
+        int increment = Math.max(1, (int) Math.round(
+                (loadBoost > 0 ? loadBoost : COMPENSATION_INCREMENT) * gain));
+        isCompensating = true;
+        originalSpeed = currentSpeed;
+        boostedSpeed = Math.min(currentSpeed + increment, 100);
+        currentSpeed = boostedSpeed;
+        revertAtMs = nowMs + COMPENSATION_DURATION_MS;
+        sink.sendSpeed(boostedSpeed);
+    }
+
+    private void endBoost(long nowMs) {
+        isCompensating = false;
+        // If the user hasn't changed speed in the meantime, revert to original
+        if (currentSpeed == boostedSpeed) {
+            currentSpeed = originalSpeed;
+            sink.sendSpeed(originalSpeed);
+        }
+        // Cooldown to prevent immediate retrigger
+        isCooldownActive = true;
+        cooldownEndMs = nowMs + COMPENSATION_COOLDOWN_MS;
+    }
+
+    @Override
+    public int getCurrentSpeed() {
+        return currentSpeed;
+    }
+
+    @Override
+    public boolean isCompensating() {
+        return isCompensating;
+    }
+
+    @Override
+    public String getConsistencyStatus() {
+        return consistencyStatus;
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+}
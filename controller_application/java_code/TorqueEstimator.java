@@ -0,0 +1,156 @@
+package com.example.motorcontroller;
+
+/**
+ * Live torque and load estimate from the firmware's CURRENT and RPM lines.
+ *
+ * The firmware has no current sensor: "CURRENT<x>" is estimateCurrent(duty), i.e. the applied
+ * voltage over the winding resistance, sent whenever the duty changes. The load information
+ * comes from correcting that for the back-EMF at the measured RPM:
+ *
+ *   I = (V_applied - KE * rpm) / R      torque = KT * I      load = torque - KT * I_no_load
+ *
+ * An RPM report covers the whole interval before it, so it is paired with the time-weighted
+ * average of the current over that same interval rather than with the latest CURRENT line.
+ * The app changes the report rate as it goes (see {@link ReportRate}), so the interval is the
+ * time since the previous report rather than a constant.
+ * A speed change shows up in the current at once but in the RPM only after the motor has
+ * caught up, so estimates taken within SETTLE_NANOS of a current change are not trusted for
+ * load detection.
+ */
+public class TorqueEstimator {
+
+    static final double MOTOR_RESISTANCE = 1.2;   // same as the firmware
+    static final double SUPPLY_VOLTAGE = 12.0;
+    // Back-EMF constant, ~400 RPM unloaded at 12 V drawing ~0.5 A
+    static final double KE_V_PER_RPM = (SUPPLY_VOLTAGE - 0.5 * MOTOR_RESISTANCE) / 400.0;
+    static final double KT_NM_PER_A = KE_V_PER_RPM * 60.0 / (2 * Math.PI);
+    static final double NO_LOAD_CURRENT_PER_PERCENT = 0.005;   // friction, measured unloaded
+    static final double LOAD_RISE_THRESHOLD_NM = 0.15;       // ~20 RPM worth of load
+    static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;   // the firmware's default, until two reports came
+    static final long MAX_REPORT_INTERVAL_NANOS = ReportRate.MAX_INTERVAL_MS * 1_000_000L;
+    static final long SETTLE_NANOS = 1_000_000_000L;     // four motor time constants
+    private static final int HISTORY = 256;
+
+    // Ring of current samples, newest at (count - 1) % HISTORY
+    private final long[] currentNanos = new long[HISTORY];
+    private final double[] currentAmps = new double[HISTORY];
+    private int count = 0;
+
+    private double correctedCurrent = 0;
+    private double torqueNm = 0;
+    private double loadNm = 0;
+    private double referenceLoadNm = Double.NaN;
+    private boolean valid = false;
+    private boolean reported = false;
+    private long lastRpmNanos = 0;
+
+    /**
+     * A "CURRENT<x>" line arrived at nowNanos.
+     */
+    public void onCurrent(double amps, long nowNanos) {
+        int slot = count % HISTORY;
+        currentNanos[slot] = nowNanos;
+        currentAmps[slot] = amps;
+        count++;
+    }
+
+    /**
+     * An RPM report arrived at nowNanos. Updates the estimate and returns true if the load
+     * has risen by LOAD_RISE_THRESHOLD_NM since the last reference, which is then moved up
+     * so the same rise is reported only once.
+     */
+    public boolean onRpm(int rpm, long nowNanos) {
+        // Bounded, so a stalled link does not average over minutes
+        long interval = reported
+                ? Math.min(nowNanos - lastRpmNanos, MAX_REPORT_INTERVAL_NANOS) : REPORT_INTERVAL_NANOS;
+        reported = true;
+        lastRpmNanos = nowNanos;
+        if (count == 0) {
+            valid = false;
+            return false;
+        }
+        double appliedAmps = averageCurrent(nowNanos - interval, nowNanos);
+        double appliedVolts = appliedAmps * MOTOR_RESISTANCE;
+        double percent = appliedVolts / SUPPLY_VOLTAGE * 100.0;
+        correctedCurrent = Math.max(0, (appliedVolts - KE_V_PER_RPM * rpm) / MOTOR_RESISTANCE);
+        torqueNm = KT_NM_PER_A * correctedCurrent;
+        loadNm = Math.max(0, torqueNm - KT_NM_PER_A * NO_LOAD_CURRENT_PER_PERCENT * percent);
+        valid = true;
+
+        long sinceChange = nowNanos - lastChangeNanos();
+        if (sinceChange < SETTLE_NANOS + interval) {
+            // The report window still overlaps the motor catching up with the last duty change
+            referenceLoadNm = Double.NaN;
+            return false;
+        }
+        if (Double.isNaN(referenceLoadNm) || loadNm < referenceLoadNm) {
+            referenceLoadNm = loadNm;
+            return false;
+        }
+        if (loadNm - referenceLoadNm >= LOAD_RISE_THRESHOLD_NM) {
+            referenceLoadNm = loadNm;
+            return true;
+        }
+        return false;
+    }
+
+    public void reset() {
+        count = 0;
+        correctedCurrent = 0;
+        torqueNm = 0;
+        loadNm = 0;
+        referenceLoadNm = Double.NaN;
+        valid = false;
+        reported = false;
+    }
+
+    // Time-weighted mean of the piecewise-constant current over [from, to]
+    private double averageCurrent(long from, long to) {
+        double weighted = 0;
+        long end = to;
+        int oldest = Math.max(0, count - HISTORY);
+        for (int i = count - 1; i >= oldest; i--) {
+            int slot = i % HISTORY;
+            long start = Math.max(from, currentNanos[slot]);
+            if (end > start) {
+                weighted += currentAmps[slot] * (end - start);
+            }
+            end = start;
+            if (start <= from) {
+                break;
+            }
+        }
+        long covered = to - end;
+        return covered > 0 ? weighted / covered : currentAmps[(count - 1) % HISTORY];
+    }
+
+    private long lastChangeNanos() {
+        int newest = (count - 1) % HISTORY;
+        long changed = currentNanos[newest];
+        int oldest = Math.max(0, count - HISTORY);
+        for (int i = count - 2; i >= oldest; i--) {
+            int slot = i % HISTORY;
+            if (currentAmps[slot] != currentAmps[newest]) {
+                break;
+            }
+            changed = currentNanos[slot];
+        }
+        return changed;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public double getCorrectedCurrent() {
+        return correctedCurrent;
+    }
+
+    public double getTorqueNm() {
+        return torqueNm;
+    }
+
+    public double getLoadNm() {
+        return loadNm;
+    }
+}
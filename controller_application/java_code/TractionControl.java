@@ -0,0 +1,254 @@
+package com.example.motorcontroller;
+
+/**
+ * Traction control for the two drive motors. Both run at one setpoint, so with both turning
+ * the same way their RPM should match; a large gap means one wheel is slipping (spinning
+ * fast on a loose surface) or held back (stuck), which the single-sensor consistency checks
+ * of the strategies cannot see. Asked with REPORT_COMMAND ("TRACTION1"), the firmware reports
+ * motor 2's RPM as "M2RPM<n>" right after motor 1's "RPM<n>", and each pair is one sample
+ * here. Older apps read every line starting with "RPM" as motor 1's, so motor 2's has its own
+ * prefix and is only sent once asked:
+ *
+ *   slip ratio = |rpm1 - rpm2| / max(rpm1, rpm2)
+ *
+ * Above SLIP_RATIO for DETECT_SAMPLES pairs in a row, with the faster wheel above MIN_RPM,
+ * the wheels are slipping, until the ratio is back below RELEASE_RATIO. Motor 1 is the
+ * reference: it carries the sensor and the setpoint the compensation strategies regulate, and
+ * trimming it would look to them like a load. So while slipping, motor 2 is trimmed toward
+ * motor 1, down if it spins faster and up if it is held back, up to MAX_TRIM: by TRIM_GAIN of
+ * the percent the RPM gap is worth at the RPM per percent {@link DisturbanceObserver} has
+ * identified for motor 1, then nothing until SETTLE_MS later, so the motor has caught up
+ * before the next correction whatever the report rate. Once the ratio has stayed below
+ * RELEASE_RATIO for RELEASE_SAMPLES pairs the trim is given back a point per SETTLE_MS, so a
+ * wheel that has found grip again gets its share of the speed back gradually. Trims go to
+ * the firmware as
+ *
+ *   TRIM<trim1> <trim2>      e.g. TRIM0 -6, percent added to each motor's speed
+ *
+ * from a precomputed table, trim1 always 0. A turn, a spin or a stopped motor is not slip:
+ * unless both motors run in the same direction the trim is dropped and nothing is detected.
+ *
+ * Rigs with one sensor have nothing on motor 2's pin and report it as 0, so nothing is judged
+ * until motor 2 has reported a non-zero RPM on this connection. After that, motor 2 reading 0
+ * for DETECT_SAMPLES pairs while motor 1 turns above FAULT_MIN_RPM is a fault (sensor lost
+ * or motor stalled), reported by {@link #isMotor2Fault} and not taken as slip. Neither a
+ * fault nor a held-back wheel below MIN_RPM gets an upward trim, as more current would only
+ * heat a motor that cannot turn.
+ *
+ * Constant work per sample and no allocation. Used only on the control thread.
+ */
+public class TractionControl {
+
+    static final double SLIP_RATIO = 0.25;
+    static final double RELEASE_RATIO = 0.10;
+    static final int MIN_RPM = 40;               // below this a pulse or two is a big ratio
+    static final int FAULT_MIN_RPM = 3 * MIN_RPM;  // clear of both motors starting together
+    static final int DETECT_SAMPLES = 2;
+    static final int RELEASE_SAMPLES = 3;
+    static final double TRIM_GAIN = 0.7;
+    static final long SETTLE_MS = 500;           // two motor time constants
+    static final int MAX_TRIM = 30;
+    static final String REPORT_COMMAND = "TRACTION1\n";
+
+    // TRIM commands by motor 2's trim, at MAX_TRIM + trim
+    private static final String[] TRIM_COMMANDS = new String[2 * MAX_TRIM + 1];
+
+    static {
+        for (int trim = -MAX_TRIM; trim <= MAX_TRIM; trim++) {
+            TRIM_COMMANDS[MAX_TRIM + trim] = "TRIM0 " + trim + "\n";
+        }
+    }
+
+    private boolean sameDirection = false;
+    private int rpm1 = -1;   // motor 1's report, waiting for motor 2's
+    private int rpm2 = -1;
+    private double slipRatio = Double.NaN;
+    private int slipSamples = 0;
+    private int gripSamples = 0;
+    private boolean slipping = false;
+    private boolean sensorSeen = false;   // motor 2 has reported a non-zero RPM
+    private int faultSamples = 0;
+    private boolean motor2Fault = false;
+    private int trim = 0;
+    private long trimmedAtMs = 0;
+    private long episodes = 0;
+
+    /**
+     * Both motors' directions as last sent.
+     *
+     * @return true if the trim changed and has to be sent
+     */
+    public boolean onDirections(char motor1, char motor2) {
+        sameDirection = motor1 == motor2 && (motor1 == 'F' || motor1 == 'R');
+        if (sameDirection) {
+            return false;
+        }
+        slipSamples = 0;
+        gripSamples = 0;
+        slipping = false;
+        slipRatio = Double.NaN;
+        faultSamples = 0;
+        motor2Fault = false;
+        return setTrim(0, trimmedAtMs);
+    }
+
+    /**
+     * Motor 1's RPM report; paired with the motor 2 report that follows it.
+     */
+    public void onRpm1(int rpm) {
+        rpm1 = rpm;
+    }
+
+    /**
+     * Motor 2's RPM report, completing a sample.
+     *
+     * @param rpmPerPercent the drive's identified gain, or NaN while it is not yet known
+     * @return true if the trim changed and has to be sent
+     */
+    public boolean onRpm2(int rpm, double rpmPerPercent, long nowMs) {
+        rpm2 = rpm;
+        if (rpm1 < 0) {
+            return false;
+        }
+        int first = rpm1;
+        rpm1 = -1;
+        if (rpm > 0) {
+            sensorSeen = true;
+        }
+        if (!sameDirection || !sensorSeen) {
+            return false;
+        }
+        int faster = Math.max(first, rpm);
+        if (faster < MIN_RPM) {
+            // Stopped or crawling: nothing to judge, and nothing to trim for
+            slipRatio = Double.NaN;
+            slipSamples = 0;
+            gripSamples = 0;
+            slipping = false;
+            faultSamples = 0;
+            motor2Fault = false;
+            return setTrim(0, nowMs);
+        }
+        slipRatio = Math.abs(first - rpm) / (double) faster;
+
+        if (rpm == 0 && first >= FAULT_MIN_RPM) {
+            // Sensor lost or motor stalled: report it, and take back any upward trim
+            if (++faultSamples >= DETECT_SAMPLES) {
+                motor2Fault = true;
+            }
+            slipSamples = 0;
+            gripSamples = 0;
+            slipping = false;
+            return setTrim(Math.min(trim, 0), nowMs);
+        }
+        faultSamples = 0;
+        motor2Fault = false;
+
+        slipSamples = slipRatio > SLIP_RATIO ? slipSamples + 1 : 0;
+        if (!slipping && slipSamples >= DETECT_SAMPLES) {
+            slipping = true;
+            episodes++;
+        } else if (slipping && slipRatio < RELEASE_RATIO) {
+            slipping = false;
+        }
+        if (slipping) {
+            gripSamples = 0;
+            if (rpm < first && rpm < MIN_RPM) {
+                // The held-back wheel is not turning; more speed would only heat it
+                return setTrim(Math.min(trim, 0), nowMs);
+            }
+            if (nowMs - trimmedAtMs < SETTLE_MS) {
+                return false;
+            }
+            // Bring motor 2 to motor 1's speed; the bench calibration until the gain is known
+            double gain = Double.isNaN(rpmPerPercent) ? AnomalyDetector.RPM_PER_PERCENT
+                    : rpmPerPercent;
+            int step = (int) Math.max(1, Math.round(Math.abs(first - rpm) / gain * TRIM_GAIN));
+            return setTrim(trim + (rpm > first ? -step : step), nowMs);
+        }
+        gripSamples = slipRatio < RELEASE_RATIO ? gripSamples + 1 : 0;
+        if (gripSamples >= RELEASE_SAMPLES && trim != 0 && nowMs - trimmedAtMs >= SETTLE_MS) {
+            return setTrim(trim - Integer.signum(trim), nowMs);
+        }
+        return false;
+    }
+
+    private boolean setTrim(int newTrim, long nowMs) {
+        newTrim = Math.max(-MAX_TRIM, Math.min(MAX_TRIM, newTrim));
+        if (newTrim == trim) {
+            return false;
+        }
+        trim = newTrim;
+        trimmedAtMs = nowMs;
+        return true;
+    }
+
+    /**
+     * The TRIM command for the current trim.
+     */
+    public String command() {
+        return TRIM_COMMANDS[MAX_TRIM + trim];
+    }
+
+    /**
+     * For a new connection: the trim goes back to 0, to be sent with {@link #command()}.
+     */
+    public void reset() {
+        rpm1 = -1;
+        rpm2 = -1;
+        slipRatio = Double.NaN;
+        slipSamples = 0;
+        gripSamples = 0;
+        slipping = false;
+        sensorSeen = false;
+        faultSamples = 0;
+        motor2Fault = false;
+        trim = 0;
+    }
+
+    public boolean isSlipping() {
+        return slipping;
+    }
+
+    /**
+     * True while slipping or trimmed, including while the trim is given back.
+     */
+    public boolean isActive() {
+        return trim != 0 || slipping;
+    }
+
+    /**
+     * The last pair's slip ratio; NaN if not judged, e.g. turning or stopped.
+     */
+    public double getSlipRatio() {
+        return slipRatio;
+    }
+
+    /**
+     * Motor 2 reads 0 while motor 1 turns: its sensor is lost or the motor is stalled.
+     */
+    public boolean isMotor2Fault() {
+        return motor2Fault;
+    }
+
+    /**
+     * Motor 2's last RPM report, -1 if none on this connection.
+     */
+    public int getRpm2() {
+        return rpm2;
+    }
+
+    /**
+     * Percent added to motor 2's speed.
+     */
+    public int getTrim() {
+        return trim;
+    }
+
+    /**
+     * Times slip was detected since the app started.
+     */
+    public long getEpisodes() {
+        return episodes;
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.motorcontroller;
+
+import java.util.Locale;
+
+/**
+ * Running statistics for one trip (one connection): RPM and current percentiles, how long
+ * compensation was active and how often it kicked in. The percentiles are {@link P2Quantile}
+ * estimates, so memory stays the same however long the trip and no sample is stored.
+ *
+ * Fed and read only on the control thread; adding a sample never allocates. The UI gets an
+ * immutable {@link Summary} through {@link ControllerState}, made only when something changed.
+ */
+public class TripStats {
+
+    static final double[] QUANTILES = {0.05, 0.50, 0.95};
+
+    /**
+     * The trip so far. Immutable. Percentiles are NaN until the first sample of their kind.
+     */
+    public static final class Summary {
+        static final Summary EMPTY = new Summary(0, 0, unknown(), 0, unknown(), 0, 0, 0);
+
+        private final long durationMs;
+        private final long rpmSamples;
+        private final double[] rpm;
+        private final long currentSamples;
+        private final double[] current;
+        private final long compensatingMs;
+        private final int compensations;
+        private final int maxRpm;
+
+        Summary(long durationMs, long rpmSamples, double[] rpm, long currentSamples,
+                double[] current, long compensatingMs, int compensations, int maxRpm) {
+            this.durationMs = durationMs;
+            this.rpmSamples = rpmSamples;
+            this.rpm = rpm;
+            this.currentSamples = currentSamples;
+            this.current = current;
+            this.compensatingMs = compensatingMs;
+            this.compensations = compensations;
+            this.maxRpm = maxRpm;
+        }
+
+        private static double[] unknown() {
+            return new double[]{Double.NaN, Double.NaN, Double.NaN};
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        public long getRpmSamples() {
+            return rpmSamples;
+        }
+
+        public double getRpmP5() {
+            return rpm[0];
+        }
+
+        public double getRpmP50() {
+            return rpm[1];
+        }
+
+        public double getRpmP95() {
+            return rpm[2];
+        }
+
+        public int getMaxRpm() {
+            return maxRpm;
+        }
+
+        public long getCurrentSamples() {
+            return currentSamples;
+        }
+
+        public double getCurrentP5() {
+            return current[0];
+        }
+
+        public double getCurrentP50() {
+            return current[1];
+        }
+
+        public double getCurrentP95() {
+            return current[2];
+        }
+
+        public long getCompensatingMs() {
+            return compensatingMs;
+        }
+
+        /**
+         * Times compensation went from off to on.
+         */
+        public int getCompensations() {
+            return compensations;
+        }
+
+        public double getCompensatingFraction() {
+            return durationMs == 0 ? 0 : compensatingMs / (double) durationMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(128);
+            text.append(String.format(Locale.US, "Trip %d s", durationMs / 1000));
+            if (rpmSamples > 0) {
+                text.append(String.format(Locale.US, ", RPM p5/p50/p95 %.0f/%.0f/%.0f",
+                        rpm[0], rpm[1], rpm[2]));
+            }
+            if (currentSamples > 0) {
+                text.append(String.format(Locale.US, ", A %.2f/%.2f/%.2f",
+                        current[0], current[1], current[2]));
+            }
+            text.append(String.format(Locale.US, ", compensating %.0f%% (%d×)",
+                    getCompensatingFraction() * 100, compensations));
+            return text.toString();
+        }
+    }
+
+    private final P2Quantile[] rpm = new P2Quantile[QUANTILES.length];
+    private final P2Quantile[] current = new P2Quantile[QUANTILES.length];
+    private long startNanos;
+    private int maxRpm;
+    private boolean compensating;
+    private long compensatingSinceNanos;
+    private long compensatingNanos;
+    private int compensations;
+    private boolean changed;
+    private Summary summary = Summary.EMPTY;
+
+    public TripStats() {
+        for (int i = 0; i < QUANTILES.length; i++) {
+            rpm[i] = new P2Quantile(QUANTILES[i]);
+            current[i] = new P2Quantile(QUANTILES[i]);
+        }
+        reset(System.nanoTime());
+    }
+
+    /**
+     * Start a new trip.
+     */
+    public void reset(long nowNanos) {
+        for (int i = 0; i < QUANTILES.length; i++) {
+            rpm[i].reset();
+            current[i].reset();
+        }
+        startNanos = nowNanos;
+        maxRpm = 0;
+        compensating = false;
+        compensatingNanos = 0;
+        compensations = 0;
+        changed = false;
+        summary = Summary.EMPTY;
+    }
+
+    public void onRpm(int measuredRpm) {
+        for (P2Quantile estimator : rpm) {
+            estimator.add(measuredRpm);
+        }
+        maxRpm = Math.max(maxRpm, measuredRpm);
+        changed = true;
+    }
+
+    public void onCurrent(double amps) {
+        for (P2Quantile estimator : current) {
+            estimator.add(amps);
+        }
+        changed = true;
+    }
+
+    /**
+     * Whether the active strategy is compensating now. Cheap to call on every state change.
+     */
+    public void onCompensation(boolean active, long nowNanos) {
+        if (active == compensating) {
+            return;
+        }
+        if (active) {
+            compensatingSinceNanos = nowNanos;
+            compensations++;
+        } else {
+            compensatingNanos += nowNanos - compensatingSinceNanos;
+        }
+        compensating = active;
+        changed = true;
+    }
+
+    /**
+     * The trip up to now; the same object as last time if nothing was added since.
+     */
+    public Summary getSummary(long nowNanos) {
+        if (!changed && !compensating) {
+            return summary;
+        }
+        changed = false;
+        long compensated = compensatingNanos + (compensating ? nowNanos - compensatingSinceNanos : 0);
+        summary = new Summary((nowNanos - startNanos) / 1_000_000L, rpm[0].getCount(), estimates(rpm),
+                current[0].getCount(), estimates(current), compensated / 1_000_000L, compensations, maxRpm);
+        return summary;
+    }
+
+    private static double[] estimates(P2Quantile[] estimators) {
+        double[] values = new double[estimators.length];
+        for (int i = 0; i < estimators.length; i++) {
+            values[i] = estimators[i].getEstimate();
+        }
+        return values;
+    }
+}
@@ -1,4 +1,6 @@
 #include "BluetoothSerial.h"
+#include "soc/soc.h"
+#include "soc/gpio_reg.h"
 BluetoothSerial SerialBT;
 
 // Motor control pin definitions
@@ -9,8 +11,9 @@ BluetoothSerial SerialBT;
 #define ENA  22
 #define ENB  23
 
-// RPM sensor pin definition (adjust as needed)
+// RPM sensor pin definitions (adjust as needed); motor 2's feeds traction control in the app
 #define RPM_SENSOR_PIN 4
+#define RPM2_SENSOR_PIN 5
 
 // LEDC (PWM) configuration
 #define LEDC_BASE_FREQ 5000
@@ -31,19 +34,183 @@ float estimateCurrent(int duty) {
   return estimatedCurrent;
 }
 
+int currentDuty = 0;   // motor 1's last duty, written by setMotorSpeed()
+
+// Traction control trims, set by the app with TRIM<trim1> <trim2>: percent added to each
+// motor's share of the speed, so a slipping wheel can be slowed and its partner sped up
+#define TRIM_MAX 30
+int speedSetting = 0;
+int motor1Trim = 0;
+int motor2Trim = 0;
+
+// When each motor's outputs last changed, for SKEW: with DIR1 and DIR2 sent separately the
+// wheels start one Bluetooth packet apart, with DRIVE a few microseconds apart
+unsigned long motor1ChangedAt = 0;
+unsigned long motor2ChangedAt = 0;
+
 volatile unsigned long pulseCount = 0;
 volatile unsigned long lastPulseTime = 0;
+volatile unsigned long pulseCount2 = 0;
+volatile unsigned long lastPulseTime2 = 0;
 unsigned long lastRpmTime = 0;
 
+// Motor 2's report, switched on with TRACTION1: "M2RPM<n>" right after each "RPM<n>". Off by
+// default, and not prefixed "RPM", since the older apps read any such line as motor 1's.
+bool motor2Report = false;
+
+// RPM report interval, set by the app with RATE<ms>: fast while it compensates, slow while
+// the motor is stopped. Each report is scaled by the time it actually covers.
+#define REPORT_MIN_MS 100
+#define REPORT_MAX_MS 5000
+unsigned long reportIntervalMs = 1000;
+
+// Pulse-period telemetry, switched on with PULSES1. Every PULSE_BATCH_MS the periods of the
+// pulses since the last batch are sent as
+//   PP<batch_micros> <last_pulse_micros> <period_us> <period_us> ...
+// oldest first, the last one ending at last_pulse_micros. The app rebuilds RPM from them.
+#define PULSE_RING_SIZE 64   // power of two; ~0.3 s of pulses at full speed
+#define PULSE_BATCH_MS 20
+volatile unsigned long pulsePeriods[PULSE_RING_SIZE];
+volatile uint8_t pulseHead = 0;   // free-running, written by the ISR
+uint8_t pulseTail = 0;            // free-running, read by loop()
+bool pulseMode = false;
+unsigned long lastBatchTime = 0;
+
+// Sample stream, switched on with STREAM<n>: RPM and current every STREAM_SAMPLE_MS, sent n
+// samples to a binary frame so the Bluetooth link pays its per-packet cost once per frame:
+//   0xA5 0x5A count:u8 first_micros:u32 (delta_micros:u16 rpm:u16 current_ma:u16)*count crc8
+// little-endian, CRC-8 (poly 0x07) over count..last sample. STREAM1 sends each sample as a
+// text line "T<micros> <rpm> <current_ma>" instead; STREAM0 stops.
+#define STREAM_SAMPLE_MS 5
+#define STREAM_MAX_BATCH 32
+#define FRAME_HEADER_BYTES 7
+#define FRAME_SAMPLE_BYTES 6
+uint8_t streamBatch = 0;
+uint8_t frame[FRAME_HEADER_BYTES + FRAME_SAMPLE_BYTES * STREAM_MAX_BATCH + 1];
+uint8_t frameSamples = 0;
+unsigned long frameLastMicros = 0;
+unsigned long lastSampleTime = 0;
+
 // Interrupt service routine for RPM sensor pulses with debounce
 void IRAM_ATTR onPulse() {
   unsigned long now = micros();
   if (now - lastPulseTime > DEBOUNCE_MICROS) {
     pulseCount++;
+    pulsePeriods[pulseHead & (PULSE_RING_SIZE - 1)] = now - lastPulseTime;
+    pulseHead++;
     lastPulseTime = now;
   }
 }
 
+// Motor 2's sensor: counted only, for its RPM report
+void IRAM_ATTR onPulse2() {
+  unsigned long now = micros();
+  if (now - lastPulseTime2 > DEBOUNCE_MICROS) {
+    pulseCount2++;
+    lastPulseTime2 = now;
+  }
+}
+
+void sendPulseBatch() {
+  noInterrupts();
+  uint8_t head = pulseHead;
+  unsigned long lastPulse = lastPulseTime;
+  interrupts();
+  unsigned long batchTime = micros();
+  if ((uint8_t)(head - pulseTail) > PULSE_RING_SIZE) {
+    pulseTail = head - PULSE_RING_SIZE;   // overrun: the oldest periods were overwritten
+  }
+  SerialBT.print("PP");
+  SerialBT.print(batchTime);
+  SerialBT.print(' ');
+  SerialBT.print(lastPulse);
+  while (pulseTail != head) {
+    SerialBT.print(' ');
+    SerialBT.print(pulsePeriods[pulseTail & (PULSE_RING_SIZE - 1)]);
+    pulseTail++;
+  }
+  SerialBT.println();
+}
+
+// RPM from the last pulse period, or lower if the next pulse is already overdue
+unsigned int sampleRpm(unsigned long now) {
+  noInterrupts();
+  uint8_t head = pulseHead;
+  unsigned long period = pulsePeriods[(uint8_t)(head - 1) & (PULSE_RING_SIZE - 1)];
+  unsigned long lastPulse = lastPulseTime;
+  interrupts();
+  unsigned long sinceLast = now - lastPulse;
+  if (lastPulse == 0 || period == 0) {   // no pulse yet
+    return 0;
+  }
+  if (sinceLast > period) {
+    period = sinceLast;
+  }
+  return 60000000UL / (period * 20);   // 20 slots per revolution
+}
+
+uint8_t crc8(const uint8_t *data, int length) {
+  uint8_t crc = 0;
+  for (int i = 0; i < length; i++) {
+    crc ^= data[i];
+    for (int bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x80) ? (uint8_t)((crc << 1) ^ 0x07) : (uint8_t)(crc << 1);
+    }
+  }
+  return crc;
+}
+
+void put16(uint8_t *at, unsigned int value) {
+  at[0] = value & 0xFF;
+  at[1] = (value >> 8) & 0xFF;
+}
+
+void flushFrame() {
+  if (frameSamples == 0) {
+    return;
+  }
+  int length = FRAME_HEADER_BYTES + FRAME_SAMPLE_BYTES * frameSamples;
+  frame[0] = 0xA5;
+  frame[1] = 0x5A;
+  frame[2] = frameSamples;
+  frame[length] = crc8(frame + 2, length - 2);
+  SerialBT.write(frame, length + 1);   // one write, one packet
+  frameSamples = 0;
+}
+
+void streamSample(unsigned long now) {
+  unsigned int rpm = sampleRpm(now);
+  unsigned int currentMa = (unsigned int)(estimateCurrent(currentDuty) * 1000);
+  if (streamBatch == 1) {
+    SerialBT.print('T');
+    SerialBT.print(now);
+    SerialBT.print(' ');
+    SerialBT.print(rpm);
+    SerialBT.print(' ');
+    SerialBT.println(currentMa);
+    return;
+  }
+  if (frameSamples > 0 && now - frameLastMicros > 0xFFFF) {
+    flushFrame();   // the delta would not fit
+  }
+  if (frameSamples == 0) {
+    frame[3] = now & 0xFF;
+    frame[4] = (now >> 8) & 0xFF;
+    frame[5] = (now >> 16) & 0xFF;
+    frame[6] = (now >> 24) & 0xFF;
+    frameLastMicros = now;
+  }
+  uint8_t *at = frame + FRAME_HEADER_BYTES + FRAME_SAMPLE_BYTES * frameSamples;
+  put16(at, now - frameLastMicros);
+  put16(at + 2, rpm);
+  put16(at + 4, currentMa);
+  frameLastMicros = now;
+  frameSamples++;
+  if (frameSamples >= streamBatch) {
+    flushFrame();
+  }
+}
+
 // Function to set motor direction (Motor 1)
 void setMotor1Direction(char direction) {
   if (direction == 'F') { // Forward for Motor 1
@@ -56,6 +223,7 @@ void setMotor1Direction(char direction) {
     digitalWrite(IN1, LOW);
     digitalWrite(IN2, LOW);
   }
+  motor1ChangedAt = micros();
 }
 
 // Function to set motor direction (Motor 2)
@@ -70,13 +238,26 @@ void setMotor2Direction(char direction) {
     digitalWrite(IN3, LOW);
     digitalWrite(IN4, LOW);
   }
+  motor2ChangedAt = micros();
+}
+
+// Duty for the speed plus a motor's trim; a stopped motor stays stopped whatever its trim
+int trimmedDuty(int speedPercentage, int trim) {
+  if (speedPercentage == 0) {
+    return 0;
+  }
+  int percent = constrain(speedPercentage + trim, 0, 100);
+  return (map(percent, 0, 100, 0, 255) * MOTOR_PWM_MAX) / 255;
 }
 
 void setMotorSpeed(int speedPercentage) {
-  int pwm8bitVal = map(speedPercentage, 0, 100, 0, 255);
-  int duty = (pwm8bitVal * MOTOR_PWM_MAX) / 255;
+  speedSetting = speedPercentage;
+  int duty = trimmedDuty(speedPercentage, motor1Trim);
+  currentDuty = duty;
   ledcWrite(ENA, duty);
-  ledcWrite(ENB, duty);
+  motor1ChangedAt = micros();
+  ledcWrite(ENB, trimmedDuty(speedPercentage, motor2Trim));
+  motor2ChangedAt = micros();
 
   // Estimate current
   float motorCurrent = estimateCurrent(duty);
@@ -89,6 +270,44 @@ void setMotorSpeed(int speedPercentage) {
   SerialBT.println(motorCurrent);
 }
 
+bool isDirection(char direction) {
+  return direction == 'F' || direction == 'R' || direction == 'S';
+}
+
+// Both motors at once, for DRIVE. The four direction pins are all below 32, so they change
+// together in one write to the GPIO set and clear registers; the two duties follow
+// back to back and take effect at the next PWM period.
+void driveBoth(char direction1, char direction2, int speedPercentage) {
+  uint32_t all = (1UL << IN1) | (1UL << IN2) | (1UL << IN3) | (1UL << IN4);
+  uint32_t high = 0;
+  if (direction1 == 'F') {
+    high |= 1UL << IN1;
+  } else if (direction1 == 'R') {
+    high |= 1UL << IN2;
+  }
+  // Motor 2 is mounted the other way round; see setMotor2Direction()
+  if (direction2 == 'R') {
+    high |= 1UL << IN3;
+  } else if (direction2 == 'F') {
+    high |= 1UL << IN4;
+  }
+  speedSetting = speedPercentage;
+  int duty = trimmedDuty(speedPercentage, motor1Trim);
+  int duty2 = trimmedDuty(speedPercentage, motor2Trim);
+  currentDuty = duty;
+  REG_WRITE(GPIO_OUT_W1TC_REG, all & ~high);
+  REG_WRITE(GPIO_OUT_W1TS_REG, high);
+  ledcWrite(ENA, duty);
+  motor1ChangedAt = micros();
+  ledcWrite(ENB, duty2);
+  motor2ChangedAt = micros();
+
+  float motorCurrent = estimateCurrent(duty);
+  Serial.println(motorCurrent);
+  SerialBT.print("CURRENT");
+  SerialBT.println(motorCurrent);
+}
+
 void setup() {
   // Set motor control pins as outputs
   pinMode(IN1, OUTPUT);
@@ -99,6 +318,8 @@ void setup() {
   // Set RPM sensor pin as input with pull-up and attach interrupt
   pinMode(RPM_SENSOR_PIN, INPUT_PULLUP);
   attachInterrupt(digitalPinToInterrupt(RPM_SENSOR_PIN), onPulse, RISING);
+  pinMode(RPM2_SENSOR_PIN, INPUT_PULLUP);
+  attachInterrupt(digitalPinToInterrupt(RPM2_SENSOR_PIN), onPulse2, RISING);
 
   // Attach PWM channels to motor enable pins using the LEDC API
   ledcAttach(ENA, LEDC_BASE_FREQ, LEDC_TIMER_BITS);
@@ -117,6 +338,7 @@ void setup() {
 void loop() {
   // Handle incoming Bluetooth commands
   if (SerialBT.available()) {
+    unsigned long receivedAt = micros();   // for SYNC, before the line is read out
     String command = SerialBT.readStringUntil('\n');
     command.trim();
     Serial.print("Received command: ");
@@ -149,23 +371,116 @@ void loop() {
       } else {
         SerialBT.println("Invalid direction for Motor 2 (F, R, S)");
       }
+    } else if (command.startsWith("DRIVE")) {
+      // DRIVE<dir1><dir2><speed>, e.g. DRIVEFR50: both motors in one command, applied together
+      char direction1 = command.charAt(5);
+      char direction2 = command.charAt(6);
+      int speedValue = command.substring(7).toInt();
+      if (command.length() > 7 && isDirection(direction1) && isDirection(direction2)
+          && speedValue >= 0 && speedValue <= 100) {
+        driveBoth(direction1, direction2, speedValue);
+        // The same echoes as the separate commands, so the app's bookkeeping is unchanged
+        SerialBT.print("Motor 1 direction: ");
+        SerialBT.println(direction1);
+        SerialBT.print("Motor 2 direction: ");
+        SerialBT.println(direction2);
+        SerialBT.print("Speed set to: ");
+        SerialBT.println(speedValue);
+      } else {
+        SerialBT.println("Invalid drive command (DRIVE<F|R|S><F|R|S><0-100>)");
+      }
+    } else if (command == "SKEW") {
+      // Microseconds from motor 1's last change to motor 2's
+      SerialBT.print("Skew: ");
+      SerialBT.println((long)(motor2ChangedAt - motor1ChangedAt));
+    } else if (command.startsWith("PULSES")) {
+      pulseMode = command.charAt(6) == '1';
+      noInterrupts();
+      pulseTail = pulseHead;   // start from the next pulse
+      interrupts();
+      SerialBT.print("Pulse mode: ");
+      SerialBT.println(pulseMode ? 1 : 0);
+    } else if (command.startsWith("TRACTION")) {
+      motor2Report = command.charAt(8) == '1';
+      SerialBT.print("Traction: ");
+      SerialBT.println(motor2Report ? 1 : 0);
+    } else if (command.startsWith("STREAM")) {
+      int batch = command.substring(6).toInt();
+      if (batch >= 0 && batch <= STREAM_MAX_BATCH) {
+        flushFrame();   // don't mix batch sizes in one frame
+        streamBatch = batch;
+        SerialBT.print("Stream: ");
+        SerialBT.println(batch);
+      } else {
+        SerialBT.println("Invalid stream batch (0-32)");
+      }
+    } else if (command.startsWith("RATE")) {
+      long interval = command.substring(4).toInt();
+      if (interval >= REPORT_MIN_MS && interval <= REPORT_MAX_MS) {
+        reportIntervalMs = interval;
+        SerialBT.print("Rate: ");
+        SerialBT.println(interval);
+      } else {
+        SerialBT.println("Invalid report rate (100-5000 ms)");
+      }
+    } else if (command.startsWith("TRIM")) {
+      // TRIM<trim1> <trim2>, e.g. TRIM-6 6, applied to the current speed at once
+      int space = command.indexOf(' ');
+      int trim1 = command.substring(4, space < 0 ? command.length() : space).toInt();
+      int trim2 = space < 0 ? 0 : command.substring(space + 1).toInt();
+      if (space > 4 && abs(trim1) <= TRIM_MAX && abs(trim2) <= TRIM_MAX) {
+        motor1Trim = trim1;
+        motor2Trim = trim2;
+        setMotorSpeed(speedSetting);
+        SerialBT.print("Trim: ");
+        SerialBT.print(trim1);
+        SerialBT.print(' ');
+        SerialBT.println(trim2);
+      } else {
+        SerialBT.println("Invalid trim (TRIM<-30..30> <-30..30>)");
+      }
+    } else if (command.startsWith("SYNC")) {
+      // SYNC<seq>: clock sync for the app, which maps our sample times onto its own clock.
+      // Answered "Sync: <seq> <rx_us> <tx_us>", micros() on arrival and just before writing
+      SerialBT.print("Sync: ");
+      SerialBT.print(command.substring(4).toInt());
+      SerialBT.print(' ');
+      SerialBT.print(receivedAt);
+      SerialBT.print(' ');
+      SerialBT.println(micros());
+    } else if (command == "PING") {
+      // Identification handshake used by the app to find controllers among paired devices
+      SerialBT.println("PONG MotorController");
     } else {
       SerialBT.println("Unknown command");
     }
   }
   
-  // Calculate and send RPM every second
   unsigned long currentTime = millis();
-  if (currentTime - lastRpmTime >= 1000) { // 1-second interval
+  if (streamBatch > 0 && currentTime - lastSampleTime >= STREAM_SAMPLE_MS) {
+    lastSampleTime = currentTime;
+    streamSample(micros());
+  }
+  if (pulseMode && currentTime - lastBatchTime >= PULSE_BATCH_MS) {
+    lastBatchTime = currentTime;
+    sendPulseBatch();
+  }
+
+  // Calculate and send RPM every report interval
+  unsigned long elapsed = currentTime - lastRpmTime;
+  if (elapsed >= reportIntervalMs) {
     noInterrupts();
     unsigned long pulses = pulseCount;
     pulseCount = 0;
+    unsigned long pulses2 = pulseCount2;
+    pulseCount2 = 0;
     interrupts();
     
     // Compute the raw RPM value.
-    // With 20 holes, each re volution gives 20 pulses so:
-    // RPM = (pulses per second * 60) / 20 = pulses * 3
-    int rawRpm = pulses * 3;
+    // With 20 holes, each revolution gives 20 pulses so:
+    // RPM = (pulses per second * 60) / 20 = pulses * 3000 / elapsed ms
+    // Scaled by the time since the last report, which after a RATE change is not the interval
+    int rawRpm = (pulses * 3000UL + elapsed / 2) / elapsed;
     
     // Remove baseline noise: subtract offset (300 here) so that idle becomes 0 RPM.
     int offset = 0; // Adjust this offset based on your sensor's noise characteristics
@@ -177,6 +492,11 @@ void loop() {
     Serial.println(rpm);
     SerialBT.print("RPM");
     SerialBT.println(rpm);
+    // Motor 2 right after, over the same interval, so the app can pair the two
+    if (motor2Report) {
+      SerialBT.print("M2RPM");
+      SerialBT.println((pulses2 * 3000UL + elapsed / 2) / elapsed);
+    }
     lastRpmTime = currentTime;
   }
 }